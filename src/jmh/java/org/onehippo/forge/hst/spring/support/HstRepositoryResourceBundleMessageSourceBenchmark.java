@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.jsp.jstl.core.Config;
+import javax.servlet.jsp.jstl.fmt.LocalizationContext;
+
+import org.easymock.EasyMock;
+import org.hippoecm.hst.container.ModifiableRequestContextProvider;
+import org.hippoecm.hst.core.container.ComponentManager;
+import org.hippoecm.hst.mock.core.request.MockHstRequestContext;
+import org.hippoecm.hst.resourcebundle.ResourceBundleRegistry;
+import org.hippoecm.hst.resourcebundle.SimpleListResourceBundle;
+import org.hippoecm.hst.site.HstServices;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Benchmarks of {@link HstRepositoryResourceBundleMessageSource} on the cache hit paths.
+ * <p>
+ * Run it with the <code>gc</code> profiler, which is the default of the <code>jmh</code> profile:
+ * </p>
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="-prof gc .*HstRepositoryResourceBundleMessageSourceBenchmark.*"
+ * </pre>
+ * <p>
+ * <code>gc.alloc.rate.norm</code> of the argument-less message benchmarks from the default resource bundle
+ * is expected to be zero bytes per operation with the default provider.
+ * The benchmarks from the repository resource bundle include the <code>ResourceBundleRegistry</code> lookup
+ * through the (mocked) component manager as well.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HstRepositoryResourceBundleMessageSourceBenchmark {
+
+    private static final String REPOSITORY_BUNDLE_ID = "org.onehippo.forge.hst.spring.support.benchmark";
+
+    private static final Object [] ARGS = { "John" };
+
+    private HstRepositoryResourceBundleMessageSource messageSource;
+
+    private HstRepositoryResourceBundleMessageSource legacyMessageSource;
+
+    @Setup
+    public void setup() {
+        final Map<String, String> defaultBundleContent = new HashMap<String, String>();
+        defaultBundleContent.put("greeting.hello", "Hello, World!");
+        defaultBundleContent.put("greeting.hello.name", "Hello, {0}!");
+        final ResourceBundle defaultBundle = new SimpleListResourceBundle(defaultBundleContent);
+
+        final Map<String, String> repositoryBundleContent = new HashMap<String, String>();
+        repositoryBundleContent.put("greeting.howdy", "Howdy!");
+        repositoryBundleContent.put("greeting.howdy.name", "Howdy, {0}!");
+        final ResourceBundle repositoryBundle = new SimpleListResourceBundle(repositoryBundleContent);
+
+        final ResourceBundleRegistry registry = EasyMock.createNiceMock(ResourceBundleRegistry.class);
+        EasyMock.expect(registry.getBundle(REPOSITORY_BUNDLE_ID, Locale.ENGLISH)).andReturn(repositoryBundle).anyTimes();
+        EasyMock.replay(registry);
+
+        final ComponentManager componentManager = EasyMock.createNiceMock(ComponentManager.class);
+        EasyMock.expect(componentManager.getComponent(ResourceBundleRegistry.class.getName())).andReturn(registry).anyTimes();
+        EasyMock.replay(componentManager);
+        HstServices.setComponentManager(componentManager);
+
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        // This is done in LocalizationValve of HST-2 Container.
+        Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, new LocalizationContext(defaultBundle));
+
+        final MockHstRequestContext requestContext = new MockHstRequestContext();
+        requestContext.setServletRequest(request);
+        ModifiableRequestContextProvider.set(requestContext);
+
+        messageSource = new HstRepositoryResourceBundleMessageSource();
+        messageSource.setBasenames(REPOSITORY_BUNDLE_ID);
+
+        legacyMessageSource = new HstRepositoryResourceBundleMessageSource();
+        legacyMessageSource.setResourceBundleMessageFormatProvider(new CachingRepositoryResourceBundleMessageFormatProvider());
+        legacyMessageSource.setBasenames(REPOSITORY_BUNDLE_ID);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ModifiableRequestContextProvider.clear();
+    }
+
+    @Benchmark
+    public String messageWithoutArgumentsFromDefaultBundle() {
+        return messageSource.getMessage("greeting.hello", null, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String messageWithoutArgumentsFromRepositoryBundle() {
+        return messageSource.getMessage("greeting.howdy", null, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String messageWithArgumentsFromDefaultBundle() {
+        return messageSource.getMessage("greeting.hello.name", ARGS, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String legacyMessageWithoutArgumentsFromDefaultBundle() {
+        return legacyMessageSource.getMessage("greeting.hello", null, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String legacyMessageWithArgumentsFromDefaultBundle() {
+        return legacyMessageSource.getMessage("greeting.hello.name", ARGS, Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.jsp.jstl.core.Config;
+import javax.servlet.jsp.jstl.fmt.LocalizationContext;
+
+import org.easymock.EasyMock;
+import org.hippoecm.hst.container.ModifiableRequestContextProvider;
+import org.hippoecm.hst.core.container.ComponentManager;
+import org.hippoecm.hst.mock.core.request.MockHstRequestContext;
+import org.hippoecm.hst.resourcebundle.CompositeResourceBundle;
+import org.hippoecm.hst.resourcebundle.ResourceBundleRegistry;
+import org.hippoecm.hst.resourcebundle.SimpleListResourceBundle;
+import org.hippoecm.hst.site.HstServices;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Throughput benchmarks of {@link HstRepositoryResourceBundleMessageSource} shared by all the benchmark threads,
+ * covering cache hits and misses, fallback through multiple basenames, a composite default resource bundle
+ * and live vs. preview, with the concurrent (default), the striped locking, the snapshot
+ * and the legacy synchronized providers.
+ * <p>
+ * Each benchmark thread has its own request context, as in a container thread serving a request.
+ * Run it with different numbers of threads to see how it scales under contention, for example:
+ * </p>
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="-prof gc -t 1 .*ThroughputBenchmark.*"
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="-prof gc -t 8 .*ThroughputBenchmark.*"
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="-prof gc -t 64 .*ThroughputBenchmark.*"
+ * </pre>
+ * <p>
+ * Compare <code>ops/s</code> between the providers for lock contention,
+ * and <code>gc.alloc.rate.norm</code> for allocations per message.
+ * Use <code>-p provider=concurrent</code> or <code>-p preview=true</code> to narrow down the parameters.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HstRepositoryResourceBundleMessageSourceThroughputBenchmark {
+
+    private static final String [] REPOSITORY_BUNDLE_IDS = {
+            "org.onehippo.forge.hst.spring.support.benchmark.site",
+            "org.onehippo.forge.hst.spring.support.benchmark.channel",
+            "org.onehippo.forge.hst.spring.support.benchmark.common" };
+
+    private static final Object [] ARGS = { "John" };
+
+    /**
+     * Either <code>concurrent</code> for {@link ConcurrentCachingRepositoryResourceBundleMessageFormatProvider},
+     * <code>striped</code> for {@link StripedCachingRepositoryResourceBundleMessageFormatProvider},
+     * <code>snapshot</code> for {@link SnapshotRepositoryResourceBundleMessageFormatProvider}
+     * or <code>legacy</code> for {@link CachingRepositoryResourceBundleMessageFormatProvider}.
+     */
+    @Param({ "concurrent", "striped", "snapshot", "legacy" })
+    public String provider;
+
+    @Param({ "false", "true" })
+    public boolean preview;
+
+    private HstRepositoryResourceBundleMessageSource messageSource;
+
+    private ResourceBundle defaultBundle;
+
+    /**
+     * Request context of each benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class RequestState {
+
+        @Setup
+        public void setup(final HstRepositoryResourceBundleMessageSourceThroughputBenchmark benchmark) {
+            final MockHttpServletRequest request = new MockHttpServletRequest();
+            // This is done in LocalizationValve of HST-2 Container.
+            Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, new LocalizationContext(benchmark.defaultBundle));
+
+            final boolean preview = benchmark.preview;
+            final MockHstRequestContext requestContext = new MockHstRequestContext() {
+                @Override
+                public boolean isPreview() {
+                    return preview;
+                }
+            };
+            requestContext.setServletRequest(request);
+            ModifiableRequestContextProvider.set(requestContext);
+        }
+
+        @TearDown
+        public void tearDown() {
+            ModifiableRequestContextProvider.clear();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        // The default resource bundle composed of the site and common bundles, as HST-2 does for multiple bundle IDs.
+        final Map<String, String> siteDefaultBundleContent = new HashMap<String, String>();
+        siteDefaultBundleContent.put("greeting.hello", "Hello, World!");
+        siteDefaultBundleContent.put("greeting.hello.name", "Hello, {0}!");
+        final Map<String, String> commonDefaultBundleContent = new HashMap<String, String>();
+        commonDefaultBundleContent.put("footer.copyright", "Copyright {0}");
+        defaultBundle = new CompositeResourceBundle(new SimpleListResourceBundle(siteDefaultBundleContent),
+                new SimpleListResourceBundle(commonDefaultBundleContent));
+
+        final ResourceBundleRegistry registry = EasyMock.createNiceMock(ResourceBundleRegistry.class);
+
+        for (int i = 0; i < REPOSITORY_BUNDLE_IDS.length; i++) {
+            final Map<String, String> repositoryBundleContent = new HashMap<String, String>();
+            repositoryBundleContent.put("bundle" + i + ".howdy.name", "Howdy, {0}!");
+
+            // Only the last basename has the fallback messages.
+            if (i == REPOSITORY_BUNDLE_IDS.length - 1) {
+                repositoryBundleContent.put("fallback.howdy", "Howdy!");
+                repositoryBundleContent.put("fallback.howdy.name", "Howdy, {0}!");
+            }
+
+            EasyMock.expect(registry.getBundle(REPOSITORY_BUNDLE_IDS[i], Locale.ENGLISH))
+                    .andReturn(new SimpleListResourceBundle(repositoryBundleContent)).anyTimes();
+            EasyMock.expect(registry.getBundleForPreview(REPOSITORY_BUNDLE_IDS[i], Locale.ENGLISH))
+                    .andReturn(new SimpleListResourceBundle(repositoryBundleContent)).anyTimes();
+        }
+
+        EasyMock.replay(registry);
+
+        final ComponentManager componentManager = EasyMock.createNiceMock(ComponentManager.class);
+        EasyMock.expect(componentManager.getComponent(ResourceBundleRegistry.class.getName())).andReturn(registry).anyTimes();
+        EasyMock.replay(componentManager);
+        HstServices.setComponentManager(componentManager);
+
+        messageSource = new HstRepositoryResourceBundleMessageSource();
+
+        if ("legacy".equals(provider)) {
+            messageSource.setResourceBundleMessageFormatProvider(new CachingRepositoryResourceBundleMessageFormatProvider());
+        } else if ("striped".equals(provider)) {
+            messageSource.setResourceBundleMessageFormatProvider(new StripedCachingRepositoryResourceBundleMessageFormatProvider());
+        } else if ("snapshot".equals(provider)) {
+            messageSource.setResourceBundleMessageFormatProvider(new SnapshotRepositoryResourceBundleMessageFormatProvider());
+        }
+
+        messageSource.setBasenames(REPOSITORY_BUNDLE_IDS);
+    }
+
+    @Benchmark
+    public String hitWithoutArgumentsFromDefaultBundle(final RequestState requestState) {
+        return messageSource.getMessage("greeting.hello", null, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String hitFromDefaultBundle(final RequestState requestState) {
+        return messageSource.getMessage("greeting.hello.name", ARGS, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String hitFromCompositeDefaultBundle(final RequestState requestState) {
+        return messageSource.getMessage("footer.copyright", ARGS, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String hitFromFirstBasename(final RequestState requestState) {
+        return messageSource.getMessage("bundle0.howdy.name", ARGS, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String hitWithoutArgumentsFromFallbackBasename(final RequestState requestState) {
+        return messageSource.getMessage("fallback.howdy", null, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String hitFromFallbackBasename(final RequestState requestState) {
+        return messageSource.getMessage("fallback.howdy.name", ARGS, Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String missWithoutArguments(final RequestState requestState) {
+        return messageSource.getMessage("greeting.nonexisting", null, "Not found", Locale.ENGLISH);
+    }
+
+    @Benchmark
+    public String miss(final RequestState requestState) {
+        return messageSource.getMessage("greeting.nonexisting.name", ARGS, "Not found", Locale.ENGLISH);
+    }
+}
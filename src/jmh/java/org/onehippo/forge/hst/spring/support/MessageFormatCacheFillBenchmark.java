@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+import org.hippoecm.hst.resourcebundle.SimpleListResourceBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of filling an empty <code>MessageFormat</code> cache with all the messages of bundles in many locales,
+ * comparing the flat cache of {@link ConcurrentCachingRepositoryResourceBundleMessageFormatProvider}
+ * with the nested maps of {@link CachingRepositoryResourceBundleMessageFormatProvider}.
+ * <p>
+ * Run it with the <code>gc</code> profiler, for example:
+ * </p>
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="-prof gc .*MessageFormatCacheFillBenchmark.*"
+ * </pre>
+ * <p>
+ * Compare <code>gc.alloc.rate.norm</code> between the providers for the memory allocated to cache the messages.
+ * Every message has a distinct pattern, so that sharing the identical patterns doesn't make the difference.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class MessageFormatCacheFillBenchmark {
+
+    private static final String BUNDLE_ID = "org.onehippo.forge.hst.spring.support.benchmark";
+
+    private static final Locale [] LOCALES = { Locale.ENGLISH, Locale.FRENCH, Locale.GERMAN, Locale.ITALIAN,
+            Locale.JAPANESE, Locale.KOREAN, Locale.CHINESE, new Locale("nl"), new Locale("es"), new Locale("pt"),
+            new Locale("sv"), new Locale("da") };
+
+    private static final int CODE_COUNT = 8000;
+
+    /**
+     * Either <code>concurrent</code> for {@link ConcurrentCachingRepositoryResourceBundleMessageFormatProvider}
+     * or <code>legacy</code> for {@link CachingRepositoryResourceBundleMessageFormatProvider}.
+     */
+    @Param({ "concurrent", "legacy" })
+    public String provider;
+
+    private String [] codes;
+
+    private ResourceBundle [] bundles;
+
+    @Setup
+    public void setup() {
+        codes = new String[CODE_COUNT];
+
+        for (int i = 0; i < CODE_COUNT; i++) {
+            codes[i] = "message.key." + i;
+        }
+
+        bundles = new ResourceBundle[LOCALES.length];
+
+        for (int i = 0; i < LOCALES.length; i++) {
+            final Map<String, String> bundleContent = new HashMap<String, String>();
+
+            for (int j = 0; j < CODE_COUNT; j++) {
+                bundleContent.put(codes[j], "Hello, {0}! #" + j + " " + LOCALES[i]);
+            }
+
+            bundles[i] = new SimpleListResourceBundle(bundleContent);
+            // Load the bundle contents up front not to count them in.
+            bundles[i].getString(codes[0]);
+        }
+    }
+
+    @Benchmark
+    public RepositoryResourceBundleMessageFormatProvider fill() {
+        final RepositoryResourceBundleMessageFormatProvider messageFormatProvider = ("legacy".equals(provider))
+                ? new CachingRepositoryResourceBundleMessageFormatProvider()
+                : new ConcurrentCachingRepositoryResourceBundleMessageFormatProvider();
+
+        for (int i = 0; i < LOCALES.length; i++) {
+            messageFormatProvider.registerBundle(BUNDLE_ID, LOCALES[i], bundles[i]);
+
+            for (String code : codes) {
+                messageFormatProvider.getMessageFormat(bundles[i], code, LOCALES[i]);
+            }
+        }
+
+        return messageFormatProvider;
+    }
+}
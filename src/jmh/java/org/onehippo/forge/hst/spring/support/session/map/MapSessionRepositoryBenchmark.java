@@ -0,0 +1,119 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.session.MapSession;
+
+/**
+ * Read and write latency benchmarks of {@link OffHeapMapSessionRepository} against {@link ExpiringMapSessionRepository},
+ * with sessions of different attribute sizes.
+ * <p>
+ * Run it, for example:
+ * </p>
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="-prof gc .*MapSessionRepositoryBenchmark.*"
+ * </pre>
+ * <p>
+ * Compare <code>ns/op</code> between the repositories for the cost of (de)serializing the attributes,
+ * and <code>gc.alloc.rate.norm</code> for the garbage produced per operation.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MapSessionRepositoryBenchmark {
+
+    private static final int SESSION_COUNT = 10000;
+
+    /**
+     * Either <code>map</code> for {@link ExpiringMapSessionRepository}
+     * or <code>offheap</code> for {@link OffHeapMapSessionRepository}.
+     */
+    @Param({ "map", "offheap" })
+    public String repository;
+
+    /**
+     * The number of the characters of the string attribute of each session.
+     */
+    @Param({ "100", "10000" })
+    public int attributeSize;
+
+    private ExpiringMapSessionRepository sessionRepository;
+
+    private MapSession [] sessions;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        if ("offheap".equals(repository)) {
+            sessionRepository = new OffHeapMapSessionRepository(OffHeapMapSessionRepository.DEFAULT_MAX_MEMORY);
+        } else {
+            sessionRepository = new ExpiringMapSessionRepository();
+        }
+
+        final StringBuilder sb = new StringBuilder(attributeSize);
+
+        for (int i = 0; i < attributeSize; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+
+        sessions = new MapSession[SESSION_COUNT];
+
+        for (int i = 0; i < SESSION_COUNT; i++) {
+            final MapSession session = sessionRepository.createSession();
+            session.setAttribute("userName", "user" + i);
+            session.setAttribute("count", Integer.valueOf(i));
+            session.setAttribute("content", sb.toString());
+            sessionRepository.save(session);
+            sessions[i] = session;
+        }
+    }
+
+    @Benchmark
+    public void save() {
+        sessionRepository.save(nextSession());
+    }
+
+    @Benchmark
+    public MapSession findById() {
+        return sessionRepository.findById(nextSession().getId());
+    }
+
+    private MapSession nextSession() {
+        if (++index == SESSION_COUNT) {
+            index = 0;
+        }
+
+        return sessions[index];
+    }
+}
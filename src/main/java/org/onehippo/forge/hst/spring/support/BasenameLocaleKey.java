@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.Locale;
+
+import org.hippoecm.hst.util.KeyValue;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * Pair of a resource bundle basename and a <code>Locale</code>, used as a key by {@link MessageFormatCache}.
+ * <p>
+ * The keys stored in a map are never changed after construction. Only a lookup key, which is reused
+ * per thread by {@link MessageFormatCache} not to allocate a key on every bundle registration, is reset by
+ * {@link #set}. This is equal only to another <code>BasenameLocaleKey</code>, so it must not be mixed with
+ * other {@link KeyValue} implementations in a map.
+ * </p>
+ */
+final class BasenameLocaleKey implements KeyValue<String, Locale> {
+
+    private String basename;
+    private Locale locale;
+    private int hash;
+
+    BasenameLocaleKey() {
+    }
+
+    BasenameLocaleKey(final String basename, final Locale locale) {
+        set(basename, locale);
+    }
+
+    @Override
+    public String getKey() {
+        return basename;
+    }
+
+    @Override
+    public Locale getValue() {
+        return locale;
+    }
+
+    /**
+     * Resets this key. This must be invoked only on a lookup key.
+     * @param basename resource bundle basename
+     * @param locale resource bundle locale
+     * @return this key
+     */
+    BasenameLocaleKey set(final String basename, final Locale locale) {
+        this.basename = basename;
+        this.locale = locale;
+        this.hash = 31 * (basename != null ? basename.hashCode() : 0) + (locale != null ? locale.hashCode() : 0);
+        return this;
+    }
+
+    /**
+     * Clears the references of a lookup key.
+     */
+    void clear() {
+        set(null, null);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof BasenameLocaleKey)) {
+            return false;
+        }
+
+        final BasenameLocaleKey that = (BasenameLocaleKey) o;
+
+        return hash == that.hash && ObjectUtils.nullSafeEquals(basename, that.basename)
+                && ObjectUtils.nullSafeEquals(locale, that.locale);
+    }
+
+    @Override
+    public String toString() {
+        return "BasenameLocaleKey{basename=" + basename + ", locale=" + locale + "}";
+    }
+}
@@ -16,24 +16,61 @@
 package org.onehippo.forge.hst.spring.support;
 
 import java.text.MessageFormat;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hippoecm.hst.container.RequestContextProvider;
 import org.hippoecm.hst.core.request.HstRequestContext;
 import org.hippoecm.hst.util.DefaultKeyValue;
 import org.hippoecm.hst.util.KeyValue;
+import org.springframework.util.ObjectUtils;
 import org.springframework.context.support.MessageSourceSupport;
 
 /**
  * {@link RepositoryResourceBundleMessageFormatProvider} implementation providing
  * <code>MessageFormat</code> caching per <code>ResourceBundle</code>, resource key and locale.
  * Also, it maintain the cache separately based on preview/live request context.
+ * <p>
+ * Message codes missing in a bundle are cached as well, until the bundle is replaced,
+ * so that falling back through several basenames doesn't look up the same missing code again.
+ * </p>
+ * <p>
+ * Registering the same bundle again by the same basename and locale returns immediately without taking the cache lock
+ * or allocating anything, as most registrations only confirm that the bundle is still current.
+ * </p>
+ * <p>
+ * By default, the registered bundles are held by strong references until replaced by refreshed bundles.
+ * If constructed with <code>weakBundleReferences</code> set to true, the bundles are held by weak references,
+ * so that an outdated bundle nobody requests any more is garbage collected together with its cached
+ * <code>MessageFormat</code>s.
+ * </p>
+ * <p>
+ * As a {@link RepositoryResourceBundleChangeListener}, it unregisters the outdated bundles and drops their cached
+ * <code>MessageFormat</code>s as soon as it is notified of a change.
+ * </p>
+ * <p>
+ * If enabled by {@link #setAccessCountingEnabled(boolean)}, the accesses are counted per basename, locale and
+ * message code, and the most frequently used message codes are reported by {@link #getHotMessageCodes(int)} and
+ * {@link #getHotPreviewMessageCodes(int)}. It is disabled by default, not to do more work while holding the cache lock.
+ * </p>
+ * <p>
+ * The cache statistics are available through {@link RepositoryResourceBundleMessageFormatStatistics},
+ * which this provider implements as an MXBean.
+ * </p>
  */
-public class CachingRepositoryResourceBundleMessageFormatProvider extends MessageSourceSupport implements RepositoryResourceBundleMessageFormatProvider {
+public class CachingRepositoryResourceBundleMessageFormatProvider extends MessageSourceSupport
+        implements RepositoryResourceBundleMessageFormatProvider, RepositoryResourceBundleChangeListener,
+        RepositoryResourceBundleMessageFormatStatistics, RepositoryResourceBundleMessageCodeAccessStatistics {
 
     /**
      * Cache to hold already generated live MessageFormats.
@@ -42,20 +79,25 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
      * with the Locale and holds the MessageFormat values.
      * @see #getMessageFormat
      */
-    private final Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> cachedBundleMessageFormats =
-            new HashMap<ResourceBundle, Map<String, Map<Locale, MessageFormat>>>();
+    private final Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> cachedBundleMessageFormats;
+
+    /**
+     * Cache to hold message codes known to be missing per live resource bundle.
+     */
+    private final Map<ResourceBundle, Set<String>> missingBundleCodes;
 
     /**
      * Cache to hold basename and locale per live resource bundle.
+     * This is concurrent to allow the lock-free check in {@link #registerBundle(String, Locale, ResourceBundle)},
+     * but it is updated only while holding the lock on {@link #cachedBundleMessageFormats}.
+     * If {@link #isWeakBundleReferences()}, this is a synchronized <code>WeakHashMap</code> instead.
      */
-    private final Map<ResourceBundle, KeyValue<String, Locale>> bundleBasenameLocales =
-            new HashMap<ResourceBundle, KeyValue<String, Locale>>();
+    private final Map<ResourceBundle, KeyValue<String, Locale>> bundleBasenameLocales;
 
     /**
      * Cache to hold live resource bundles per each basename and locale.
      */
-    private final Map<KeyValue<String, Locale>, ResourceBundle> basenameLocaleBundles =
-            new HashMap<KeyValue<String, Locale>, ResourceBundle>();
+    private final Map<KeyValue<String, Locale>, ResourceBundle> basenameLocaleBundles;
 
     /**
      * Cache to hold already generated preview MessageFormats.
@@ -64,39 +106,138 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
      * with the Locale and holds the MessageFormat values.
      * @see #getMessageFormat
      */
-    private final Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> cachedBundleMessageFormatsForPreview =
-            new HashMap<ResourceBundle, Map<String, Map<Locale, MessageFormat>>>();
+    private final Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> cachedBundleMessageFormatsForPreview;
+
+    /**
+     * Cache to hold message codes known to be missing per preview resource bundle.
+     */
+    private final Map<ResourceBundle, Set<String>> missingBundleCodesForPreview;
 
     /**
      * Cache to hold basename and locale per preview resource bundle.
+     * This is concurrent to allow the lock-free check in {@link #registerPreviewBundle(String, Locale, ResourceBundle)},
+     * but it is updated only while holding the lock on {@link #cachedBundleMessageFormatsForPreview}.
+     * If {@link #isWeakBundleReferences()}, this is a synchronized <code>WeakHashMap</code> instead.
+     */
+    private final Map<ResourceBundle, KeyValue<String, Locale>> bundleBasenameLocalesForPreview;
+
+    /**
+     * Counters shared by the live and preview caches.
+     */
+    private final MessageFormatCacheCounters counters = new MessageFormatCacheCounters();
+
+    /**
+     * Access counters per basename, locale and message code of the live bundles, which survive bundle refreshes.
+     */
+    private final MessageCodeAccessCounters accessCounters = new MessageCodeAccessCounters();
+
+    /**
+     * Access counters per basename, locale and message code of the preview bundles, which survive bundle refreshes.
      */
-    private final Map<ResourceBundle, KeyValue<String, Locale>> bundleBasenameLocalesForPreview =
-            new HashMap<ResourceBundle, KeyValue<String, Locale>>();
+    private final MessageCodeAccessCounters accessCountersForPreview = new MessageCodeAccessCounters();
 
     /**
      * Cache to hold preview resource bundles per each basename and locale.
      */
-    private final Map<KeyValue<String, Locale>, ResourceBundle> basenameLocaleBundlesForPreview =
-            new HashMap<KeyValue<String, Locale>, ResourceBundle>();
+    private final Map<KeyValue<String, Locale>, ResourceBundle> basenameLocaleBundlesForPreview;
+
+    /**
+     * Flag whether or not the registered bundles are held by weak references.
+     */
+    private final boolean weakBundleReferences;
+
+    /**
+     * Flag whether or not the accesses are counted per basename, locale and message code.
+     */
+    private volatile boolean accessCountingEnabled;
+
+    /**
+     * Constructs a provider holding the registered bundles by strong references.
+     */
+    public CachingRepositoryResourceBundleMessageFormatProvider() {
+        this(false);
+    }
+
+    /**
+     * Constructs a provider holding the registered bundles by weak references if {@code weakBundleReferences} is true.
+     * <p>
+     * In that case, a bundle which is not referenced elsewhere any more, e.g. an outdated bundle of a locale nobody
+     * requests after the bundle was refreshed in the <code>ResourceBundleRegistry</code>, can be garbage collected,
+     * and its cached <code>MessageFormat</code>s are removed on the next access to the cache. However, the check whether
+     * a bundle has already been registered takes a short lock instead of being lock-free.
+     * </p>
+     * @param weakBundleReferences flag whether or not the registered bundles should be held by weak references
+     */
+    public CachingRepositoryResourceBundleMessageFormatProvider(boolean weakBundleReferences) {
+        this.weakBundleReferences = weakBundleReferences;
+
+        cachedBundleMessageFormats = newBundleMap(weakBundleReferences);
+        missingBundleCodes = newBundleMap(weakBundleReferences);
+        bundleBasenameLocales = newBundleBasenameLocaleMap(weakBundleReferences);
+        basenameLocaleBundles = newBasenameLocaleBundleMap(weakBundleReferences);
+
+        cachedBundleMessageFormatsForPreview = newBundleMap(weakBundleReferences);
+        missingBundleCodesForPreview = newBundleMap(weakBundleReferences);
+        bundleBasenameLocalesForPreview = newBundleBasenameLocaleMap(weakBundleReferences);
+        basenameLocaleBundlesForPreview = newBasenameLocaleBundleMap(weakBundleReferences);
+    }
+
+    /**
+     * Returns true if the registered bundles are held by weak references.
+     * @return true if the registered bundles are held by weak references
+     */
+    public boolean isWeakBundleReferences() {
+        return weakBundleReferences;
+    }
+
+    /**
+     * Returns true if the accesses are counted per basename, locale and message code.
+     * @return true if the accesses are counted per basename, locale and message code
+     */
+    public boolean isAccessCountingEnabled() {
+        return accessCountingEnabled;
+    }
+
+    /**
+     * Sets whether or not to count the accesses per basename, locale and message code, to report the hot message
+     * codes. Disabled by default.
+     * @param accessCountingEnabled whether or not to count the accesses
+     */
+    public void setAccessCountingEnabled(boolean accessCountingEnabled) {
+        this.accessCountingEnabled = accessCountingEnabled;
+    }
 
     /**
      * {@inheritDoc}
      */
     public void registerBundle(String basename, Locale locale, ResourceBundle bundle) {
+        if (isRegistered(bundleBasenameLocales, basename, locale, bundle)) {
+            counters.recordSkippedBundleRegistration();
+            return;
+        }
+
         KeyValue<String, Locale> pair = new DefaultKeyValue<String, Locale>(basename, locale);
+        final long lockStartNanos = System.nanoTime();
 
         synchronized (cachedBundleMessageFormats) {
+            counters.recordLockWait(lockStartNanos);
+
             ResourceBundle oldBundle = basenameLocaleBundles.get(pair);
 
             if (oldBundle != bundle) {
                 if (oldBundle != null) {
                     cachedBundleMessageFormats.remove(oldBundle);
+                    missingBundleCodes.remove(oldBundle);
                     bundleBasenameLocales.remove(oldBundle);
                 }
 
                 cachedBundleMessageFormats.put(bundle, new HashMap<String, Map<Locale, MessageFormat>>());
+                missingBundleCodes.put(bundle, new HashSet<String>());
                 bundleBasenameLocales.put(bundle, pair);
                 basenameLocaleBundles.put(pair, bundle);
+                counters.recordBundleRegistration(oldBundle != null);
+            } else {
+                counters.recordSkippedBundleRegistration();
             }
         }
     }
@@ -105,45 +246,231 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
      * {@inheritDoc}
      */
     public void registerPreviewBundle(String basename, Locale locale, ResourceBundle bundle) {
+        if (isRegistered(bundleBasenameLocalesForPreview, basename, locale, bundle)) {
+            counters.recordSkippedBundleRegistration();
+            return;
+        }
+
         KeyValue<String, Locale> pair = new DefaultKeyValue<String, Locale>(basename, locale);
+        final long lockStartNanos = System.nanoTime();
 
         synchronized (cachedBundleMessageFormatsForPreview) {
+            counters.recordLockWait(lockStartNanos);
+
             ResourceBundle oldBundle = basenameLocaleBundlesForPreview.get(pair);
 
             if (oldBundle != bundle) {
                 if (oldBundle != null) {
                     cachedBundleMessageFormatsForPreview.remove(oldBundle);
+                    missingBundleCodesForPreview.remove(oldBundle);
                     bundleBasenameLocalesForPreview.remove(oldBundle);
                 }
 
                 cachedBundleMessageFormatsForPreview.put(bundle, new HashMap<String, Map<Locale, MessageFormat>>());
+                missingBundleCodesForPreview.put(bundle, new HashSet<String>());
                 bundleBasenameLocalesForPreview.put(bundle, pair);
                 basenameLocaleBundlesForPreview.put(pair, bundle);
+                counters.recordBundleRegistration(oldBundle != null);
+            } else {
+                counters.recordSkippedBundleRegistration();
             }
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHitCount() {
+        return counters.getHitCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMissCount() {
+        return counters.getMissCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getHitRatio() {
+        return counters.getHitRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMissRatio() {
+        return counters.getMissRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLiveBundleCount() {
+        return bundleBasenameLocales.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPreviewBundleCount() {
+        return bundleBasenameLocalesForPreview.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLiveEntryCount() {
+        int count = 0;
+
+        for (Integer bundleCount : getLiveEntryCountsPerBundle().values()) {
+            count += bundleCount;
+        }
+
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPreviewEntryCount() {
+        int count = 0;
+
+        for (Integer bundleCount : getPreviewEntryCountsPerBundle().values()) {
+            count += bundleCount;
+        }
+
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getLiveEntryCountsPerBundle() {
+        return getEntryCountsPerBundle(cachedBundleMessageFormats, missingBundleCodes, bundleBasenameLocales);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getPreviewEntryCountsPerBundle() {
+        return getEntryCountsPerBundle(cachedBundleMessageFormatsForPreview, missingBundleCodesForPreview,
+                bundleBasenameLocalesForPreview);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Live and preview bundle registrations are counted together.
+     * </p>
+     */
+    @Override
+    public long getBundleRegistrationCount() {
+        return counters.getBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSkippedBundleRegistrationCount() {
+        return counters.getSkippedBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleReplacementCount() {
+        return counters.getBundleReplacementCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleInvalidationCount() {
+        return counters.getBundleInvalidationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This provider never evicts entries, so it is always zero.
+     * </p>
+     */
+    @Override
+    public long getEvictionCount() {
+        return counters.getEvictionCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every lookup takes the lock of either the live or preview cache in this provider.
+     * </p>
+     */
+    @Override
+    public long getLockWaitTimeNanos() {
+        return counters.getLockWaitTimeNanos();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetStatistics() {
+        counters.reset();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public MessageFormat getMessageFormat(ResourceBundle bundle, String code, Locale locale) {
         Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> contextCachedBundleMessageFormats = cachedBundleMessageFormats;
+        Map<ResourceBundle, Set<String>> contextMissingBundleCodes = missingBundleCodes;
         Map<ResourceBundle, KeyValue<String, Locale>> contextBundleBasenameLocales = bundleBasenameLocales;
+        MessageCodeAccessCounters contextAccessCounters = accessCounters;
 
         final HstRequestContext requestContext = RequestContextProvider.get();
         final boolean preview = requestContext != null && requestContext.isPreview();
 
         if (preview) {
             contextCachedBundleMessageFormats = cachedBundleMessageFormatsForPreview;
+            contextMissingBundleCodes = missingBundleCodesForPreview;
             contextBundleBasenameLocales = bundleBasenameLocalesForPreview;
+            contextAccessCounters = accessCountersForPreview;
         }
 
+        final long lockStartNanos = System.nanoTime();
+
         synchronized (contextCachedBundleMessageFormats) {
-            if (!contextBundleBasenameLocales.containsKey(bundle)) {
+            counters.recordLockWait(lockStartNanos);
+
+            KeyValue<String, Locale> basenameLocale = contextBundleBasenameLocales.get(bundle);
+
+            if (basenameLocale == null) {
+                counters.recordMiss();
                 return null;
             }
 
+            if (accessCountingEnabled) {
+                contextAccessCounters.record(basenameLocale, code);
+            }
+
             Map<String, Map<Locale, MessageFormat>> codeMap = contextCachedBundleMessageFormats.get(bundle);
             Map<Locale, MessageFormat> localeMap = codeMap.get(code);
 
@@ -151,10 +478,20 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
                 MessageFormat result = localeMap.get(locale);
 
                 if (result != null) {
+                    counters.recordHit();
                     return result;
                 }
             }
 
+            Set<String> missingCodes = contextMissingBundleCodes.get(bundle);
+
+            if (missingCodes.contains(code)) {
+                counters.recordHit();
+                return null;
+            }
+
+            counters.recordMiss();
+
             String msg = getStringOrNull(bundle, code);
 
             if (msg != null) {
@@ -169,10 +506,39 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
                 return result;
             }
 
+            missingCodes.add(code);
+
             return null;
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onResourceBundleChanged(String basename) {
+        unregisterBundles(basename, cachedBundleMessageFormats, missingBundleCodes, bundleBasenameLocales,
+                basenameLocaleBundles);
+        unregisterBundles(basename, cachedBundleMessageFormatsForPreview, missingBundleCodesForPreview,
+                bundleBasenameLocalesForPreview, basenameLocaleBundlesForPreview);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<MessageCodeAccessCount> getHotMessageCodes(int limit) {
+        return accessCounters.getTopAccessCounts(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<MessageCodeAccessCount> getHotPreviewMessageCodes(int limit) {
+        return accessCountersForPreview.getTopAccessCounts(limit);
+    }
+
     /**
      * Test purpose getter.
      * @return cached bundle message formats
@@ -181,6 +547,14 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
         return cachedBundleMessageFormats;
     }
 
+    /**
+     * Test purpose getter.
+     * @return missing bundle codes
+     */
+    protected Map<ResourceBundle, Set<String>> getMissingBundleCodes() {
+        return missingBundleCodes;
+    }
+
     /**
      * Test purpose getter.
      * @return bundle basename locales
@@ -205,6 +579,14 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
         return cachedBundleMessageFormatsForPreview;
     }
 
+    /**
+     * Test purpose getter.
+     * @return missing bundle codes for preview
+     */
+    protected Map<ResourceBundle, Set<String>> getMissingBundleCodesForPreview() {
+        return missingBundleCodesForPreview;
+    }
+
     /**
      * Test purpose getter.
      * @return bundle basename locales for preview
@@ -221,12 +603,110 @@ public class CachingRepositoryResourceBundleMessageFormatProvider extends Messag
         return basenameLocaleBundlesForPreview;
     }
 
+    private static Map<String, Integer> getEntryCountsPerBundle(
+            Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> contextCachedBundleMessageFormats,
+            Map<ResourceBundle, Set<String>> contextMissingBundleCodes,
+            Map<ResourceBundle, KeyValue<String, Locale>> contextBundleBasenameLocales) {
+        Map<String, Integer> entryCounts = new HashMap<String, Integer>();
+
+        synchronized (contextCachedBundleMessageFormats) {
+            // Hold the lock of the synchronized weak map as well not to let a registration check expunge entries meanwhile.
+            synchronized (contextBundleBasenameLocales) {
+                for (Map.Entry<ResourceBundle, KeyValue<String, Locale>> entry : contextBundleBasenameLocales.entrySet()) {
+                    int count = 0;
+                    Map<String, Map<Locale, MessageFormat>> codeMap = contextCachedBundleMessageFormats.get(entry.getKey());
+
+                    if (codeMap != null) {
+                        for (Map<Locale, MessageFormat> localeMap : codeMap.values()) {
+                            count += localeMap.size();
+                        }
+                    }
+
+                    Set<String> missingCodes = contextMissingBundleCodes.get(entry.getKey());
+
+                    if (missingCodes != null) {
+                        count += missingCodes.size();
+                    }
+
+                    entryCounts.put(entry.getValue().getKey() + ":" + entry.getValue().getValue(), count);
+                }
+            }
+        }
+
+        return entryCounts;
+    }
+
+    private void unregisterBundles(String basename,
+            Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> contextCachedBundleMessageFormats,
+            Map<ResourceBundle, Set<String>> contextMissingBundleCodes,
+            Map<ResourceBundle, KeyValue<String, Locale>> contextBundleBasenameLocales,
+            Map<KeyValue<String, Locale>, ResourceBundle> contextBasenameLocaleBundles) {
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (contextCachedBundleMessageFormats) {
+            counters.recordLockWait(lockStartNanos);
+
+            int count = 0;
+
+            for (Iterator<Map.Entry<KeyValue<String, Locale>, ResourceBundle>> it = contextBasenameLocaleBundles.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<KeyValue<String, Locale>, ResourceBundle> entry = it.next();
+
+                if (ObjectUtils.nullSafeEquals(entry.getKey().getKey(), basename)) {
+                    it.remove();
+                    contextCachedBundleMessageFormats.remove(entry.getValue());
+                    contextMissingBundleCodes.remove(entry.getValue());
+                    contextBundleBasenameLocales.remove(entry.getValue());
+                    ++count;
+                }
+            }
+
+            counters.recordBundleInvalidations(count);
+        }
+    }
+
+    private static <V> Map<ResourceBundle, V> newBundleMap(boolean weakBundleReferences) {
+        return (weakBundleReferences) ? new WeakHashMap<ResourceBundle, V>() : new HashMap<ResourceBundle, V>();
+    }
+
+    private static Map<ResourceBundle, KeyValue<String, Locale>> newBundleBasenameLocaleMap(boolean weakBundleReferences) {
+        if (weakBundleReferences) {
+            return Collections.synchronizedMap(new WeakHashMap<ResourceBundle, KeyValue<String, Locale>>());
+        }
+
+        return new ConcurrentHashMap<ResourceBundle, KeyValue<String, Locale>>();
+    }
+
+    private static Map<KeyValue<String, Locale>, ResourceBundle> newBasenameLocaleBundleMap(boolean weakBundleReferences) {
+        if (weakBundleReferences) {
+            return new WeakValueHashMap<KeyValue<String, Locale>, ResourceBundle>();
+        }
+
+        return new HashMap<KeyValue<String, Locale>, ResourceBundle>();
+    }
+
+    /**
+     * Lock-free and allocation-free check whether the {@code bundle} has already been registered by the same
+     * {@code basename} and {@code locale}. An outdated bundle is always removed from {@code contextBundleBasenameLocales},
+     * so a bundle found there is current.
+     */
+    private static boolean isRegistered(Map<ResourceBundle, KeyValue<String, Locale>> contextBundleBasenameLocales,
+            String basename, Locale locale, ResourceBundle bundle) {
+        KeyValue<String, Locale> registeredPair = contextBundleBasenameLocales.get(bundle);
+        return registeredPair != null && ObjectUtils.nullSafeEquals(registeredPair.getKey(), basename)
+                && ObjectUtils.nullSafeEquals(registeredPair.getValue(), locale);
+    }
+
     private String getStringOrNull(ResourceBundle bundle, String key) {
-        try {
-            return bundle.getString(key);
-        } catch (MissingResourceException ex) {
-            return null;
+        // Check the key first not to pay for a MissingResourceException on every miss.
+        if (bundle.containsKey(key)) {
+            try {
+                return bundle.getString(key);
+            } catch (MissingResourceException ex) {
+                // Fall through.
+            }
         }
+
+        return null;
     }
 
 }
@@ -0,0 +1,587 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.text.MessageFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import org.hippoecm.hst.container.RequestContextProvider;
+import org.hippoecm.hst.core.request.HstRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link RepositoryResourceBundleMessageFormatProvider} implementation providing
+ * <code>MessageFormat</code> caching per <code>ResourceBundle</code>, resource key and locale.
+ * Also, it maintain the cache separately based on preview/live request context.
+ * <p>
+ * Unlike {@link CachingRepositoryResourceBundleMessageFormatProvider}, this implementation is built on
+ * concurrent maps, so cache hits never take a lock and a cache miss only contends with the threads resolving
+ * the same bundle, code and locale. Only an actual bundle replacement is serialized.
+ * </p>
+ * <p>
+ * <code>MessageFormat</code>s are kept in a single flat map keyed by bundle identity, code and locale
+ * (see {@link MessageFormatCache}), which costs one hash lookup without any allocation on a cache hit.
+ * Each message is compiled into a {@link MessageTemplate}, and its <code>MessageFormat</code> is created only
+ * when requested by {@link #getMessageFormat(ResourceBundle, String, Locale)}.
+ * Missing message codes are cached as well until the bundle is replaced.
+ * </p>
+ * <p>
+ * The compiled {@link MessageTemplate}s are interned by pattern and locale in a pool shared by the live and preview
+ * caches (see {@link MessageTemplatePool}), so an identical message in the live and preview bundles, or in the bundles
+ * of multiple basenames, is compiled and kept only once.
+ * </p>
+ * <p>
+ * Both the live and preview caches are unbounded by default, and can be bounded by {@link #setMaxEntries(int)}
+ * and {@link #setMaxPreviewEntries(int)}. A bounded cache evicts the least frequently used entries when full.
+ * </p>
+ * <p>
+ * By default, the registered bundles are held by strong references until replaced by refreshed bundles.
+ * If constructed with <code>weakBundleReferences</code> set to true, the bundles are held by weak references,
+ * so that an outdated bundle nobody requests any more is garbage collected and its cached
+ * <code>MessageFormat</code>s are purged.
+ * </p>
+ * <p>
+ * As a {@link RepositoryResourceBundleChangeListener}, it unregisters the outdated bundles and drops their cached
+ * <code>MessageFormat</code>s as soon as it is notified of a change, instead of waiting for the refreshed bundles
+ * to be registered.
+ * </p>
+ * <p>
+ * Optionally, the <code>MessageFormat</code>s of a newly registered bundle can be warmed up on a background
+ * {@link Executor} (see {@link #setWarmUpMode(WarmUpMode)}), not to make the first requests after a bundle
+ * publication parse all the messages again. As the cache entries are keyed by bundle identity, the new bundle is
+ * served right away, and the requests arriving before the warm-up completes simply compile their own messages.
+ * </p>
+ * <p>
+ * If enabled by {@link #setAccessCountingEnabled(boolean)}, the accesses are counted per basename, locale and
+ * message code, regardless of bundle identity, so the most frequently used message codes are known across bundle
+ * refreshes. Those are reported by {@link #getHotMessageCodes(int)} and {@link #getHotPreviewMessageCodes(int)},
+ * and warmed up first in {@link WarmUpMode#HOT_KEYS} mode. It is disabled by default, because counting makes every
+ * cache hit write to shared counters.
+ * </p>
+ * <p>
+ * The cache statistics are available through {@link RepositoryResourceBundleMessageFormatStatistics},
+ * which this provider implements as an MXBean.
+ * </p>
+ */
+public class ConcurrentCachingRepositoryResourceBundleMessageFormatProvider
+        implements RepositoryResourceBundleMessageTemplateProvider, RepositoryResourceBundleChangeListener,
+        RepositoryResourceBundleMessageFormatStatistics, RepositoryResourceBundleMessageCodeAccessStatistics {
+
+    private static Logger log = LoggerFactory.getLogger(ConcurrentCachingRepositoryResourceBundleMessageFormatProvider.class);
+
+    /**
+     * Warm-up mode of the <code>MessageFormat</code>s of a newly registered bundle.
+     */
+    public enum WarmUpMode {
+
+        /**
+         * No warm-up. Each message is compiled when it is requested for the first time. This is the default.
+         */
+        NONE,
+
+        /**
+         * Compiles all the messages of a newly registered bundle for the locale by which the bundle is registered.
+         */
+        ALL_KEYS,
+
+        /**
+         * Compiles only the messages which have been accessed in the bundles registered by the same basename and locale,
+         * most frequently accessed first if access counting is enabled, as well as the messages cached for the
+         * outdated bundle.
+         */
+        HOT_KEYS
+
+    }
+
+    /**
+     * Counters shared by the live and preview caches.
+     */
+    private final MessageFormatCacheCounters counters = new MessageFormatCacheCounters();
+
+    /**
+     * Pool of the compiled templates shared by the live and preview caches.
+     */
+    private final MessageTemplatePool templatePool = new MessageTemplatePool();
+
+    private volatile WarmUpMode warmUpMode = WarmUpMode.NONE;
+
+    private volatile Executor warmUpExecutor;
+
+    private volatile boolean accessCountingEnabled;
+
+    /**
+     * Cache to hold already generated live MessageFormats.
+     */
+    private final MessageFormatCache messageFormatCache;
+
+    /**
+     * Cache to hold already generated preview MessageFormats.
+     */
+    private final MessageFormatCache messageFormatCacheForPreview;
+
+    /**
+     * Constructs a provider holding the registered bundles by strong references.
+     */
+    public ConcurrentCachingRepositoryResourceBundleMessageFormatProvider() {
+        this(false);
+    }
+
+    /**
+     * Constructs a provider holding the registered bundles by weak references if {@code weakBundleReferences} is true.
+     * <p>
+     * In that case, a bundle which is not referenced elsewhere any more, e.g. an outdated bundle of a locale nobody
+     * requests after the bundle was refreshed in the <code>ResourceBundleRegistry</code>, can be garbage collected,
+     * and its registration and cached <code>MessageFormat</code>s are purged on the next bundle registration or
+     * cache miss. A cache hit is still lock-free, but a cache miss takes a short lock to check whether the bundle
+     * is registered.
+     * </p>
+     * @param weakBundleReferences flag whether or not the registered bundles should be held by weak references
+     */
+    public ConcurrentCachingRepositoryResourceBundleMessageFormatProvider(boolean weakBundleReferences) {
+        messageFormatCache = new MessageFormatCache(counters, weakBundleReferences);
+        messageFormatCacheForPreview = new MessageFormatCache(counters, weakBundleReferences);
+    }
+
+    /**
+     * Returns true if the registered bundles are held by weak references.
+     * @return true if the registered bundles are held by weak references
+     */
+    public boolean isWeakBundleReferences() {
+        return messageFormatCache.isWeakBundleReferences();
+    }
+
+    /**
+     * Returns the maximum number of the cached live <code>MessageFormat</code>s. Zero or negative for no limit.
+     * @return the maximum number of the cached live <code>MessageFormat</code>s
+     */
+    public int getMaxEntries() {
+        return messageFormatCache.getMaxEntries();
+    }
+
+    /**
+     * Sets the maximum number of the cached live <code>MessageFormat</code>s. Zero or negative for no limit.
+     * @param maxEntries the maximum number of the cached live <code>MessageFormat</code>s
+     */
+    public void setMaxEntries(int maxEntries) {
+        messageFormatCache.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Returns the maximum number of the cached preview <code>MessageFormat</code>s. Zero or negative for no limit.
+     * @return the maximum number of the cached preview <code>MessageFormat</code>s
+     */
+    public int getMaxPreviewEntries() {
+        return messageFormatCacheForPreview.getMaxEntries();
+    }
+
+    /**
+     * Sets the maximum number of the cached preview <code>MessageFormat</code>s. Zero or negative for no limit.
+     * @param maxPreviewEntries the maximum number of the cached preview <code>MessageFormat</code>s
+     */
+    public void setMaxPreviewEntries(int maxPreviewEntries) {
+        messageFormatCacheForPreview.setMaxEntries(maxPreviewEntries);
+    }
+
+    /**
+     * Returns true if the accesses are counted per basename, locale and message code.
+     * @return true if the accesses are counted per basename, locale and message code
+     */
+    public boolean isAccessCountingEnabled() {
+        return accessCountingEnabled;
+    }
+
+    /**
+     * Sets whether or not to count the accesses per basename, locale and message code, to report the hot message
+     * codes and warm them up in {@link WarmUpMode#HOT_KEYS} mode. Disabled by default.
+     * @param accessCountingEnabled whether or not to count the accesses
+     */
+    public void setAccessCountingEnabled(boolean accessCountingEnabled) {
+        this.accessCountingEnabled = accessCountingEnabled;
+    }
+
+    /**
+     * Returns the warm-up mode of the <code>MessageFormat</code>s of a newly registered bundle.
+     * @return the warm-up mode
+     */
+    public WarmUpMode getWarmUpMode() {
+        return warmUpMode;
+    }
+
+    /**
+     * Sets the warm-up mode of the <code>MessageFormat</code>s of a newly registered bundle.
+     * Null is regarded as {@link WarmUpMode#NONE}.
+     * @param warmUpMode the warm-up mode
+     */
+    public void setWarmUpMode(WarmUpMode warmUpMode) {
+        this.warmUpMode = (warmUpMode != null) ? warmUpMode : WarmUpMode.NONE;
+    }
+
+    /**
+     * Returns the executor to run warm-up tasks, or null if the common <code>ForkJoinPool</code> is used.
+     * @return the executor to run warm-up tasks
+     */
+    public Executor getWarmUpExecutor() {
+        return warmUpExecutor;
+    }
+
+    /**
+     * Sets the executor to run warm-up tasks. If not set, the common <code>ForkJoinPool</code> is used.
+     * @param warmUpExecutor the executor to run warm-up tasks
+     */
+    public void setWarmUpExecutor(Executor warmUpExecutor) {
+        this.warmUpExecutor = warmUpExecutor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHitCount() {
+        return counters.getHitCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMissCount() {
+        return counters.getMissCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getHitRatio() {
+        return counters.getHitRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMissRatio() {
+        return counters.getMissRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLiveBundleCount() {
+        return messageFormatCache.getBundleCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPreviewBundleCount() {
+        return messageFormatCacheForPreview.getBundleCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLiveEntryCount() {
+        return messageFormatCache.getEntryCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPreviewEntryCount() {
+        return messageFormatCacheForPreview.getEntryCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getLiveEntryCountsPerBundle() {
+        return messageFormatCache.getEntryCountsPerBundle();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getPreviewEntryCountsPerBundle() {
+        return messageFormatCacheForPreview.getEntryCountsPerBundle();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Live and preview bundle registrations are counted together.
+     * </p>
+     */
+    @Override
+    public long getBundleRegistrationCount() {
+        return counters.getBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Such registrations are skipped without any lock or allocation.
+     * </p>
+     */
+    @Override
+    public long getSkippedBundleRegistrationCount() {
+        return counters.getSkippedBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleReplacementCount() {
+        return counters.getBundleReplacementCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleInvalidationCount() {
+        return counters.getBundleInvalidationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getEvictionCount() {
+        return counters.getEvictionCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only a bundle registration which actually registers a new or refreshed bundle takes a lock in this provider.
+     * </p>
+     */
+    @Override
+    public long getLockWaitTimeNanos() {
+        return counters.getLockWaitTimeNanos();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetStatistics() {
+        counters.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void registerBundle(String basename, Locale locale, ResourceBundle bundle) {
+        registerBundle(messageFormatCache, basename, locale, bundle);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void registerPreviewBundle(String basename, Locale locale, ResourceBundle bundle) {
+        registerBundle(messageFormatCacheForPreview, basename, locale, bundle);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageFormat getMessageFormat(final ResourceBundle bundle, final String code, final Locale locale) {
+        final MessageTemplate messageTemplate = getMessageTemplate(bundle, code, locale);
+        return (messageTemplate != null) ? messageTemplate.getMessageFormat() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageTemplate getMessageTemplate(final ResourceBundle bundle, final String code, final Locale locale) {
+        final HstRequestContext requestContext = RequestContextProvider.get();
+        final boolean preview = requestContext != null && requestContext.isPreview();
+        final MessageFormatCache contextMessageFormatCache = (preview) ? messageFormatCacheForPreview : messageFormatCache;
+
+        MessageTemplate result = contextMessageFormatCache.get(bundle, code, locale);
+
+        if (result != null) {
+            counters.recordHit();
+        } else {
+            counters.recordMiss();
+            result = compileIfAbsent(contextMessageFormatCache, bundle, code, locale);
+        }
+
+        if (accessCountingEnabled) {
+            contextMessageFormatCache.recordAccess(bundle, code);
+        }
+
+        return (result != MessageFormatCache.MISSING) ? result : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The access counts of the {@code basename} are kept, so the hot message codes can still be warmed up
+     * when the refreshed bundles are registered.
+     * </p>
+     */
+    @Override
+    public void onResourceBundleChanged(final String basename) {
+        messageFormatCache.unregisterBundles(basename);
+        messageFormatCacheForPreview.unregisterBundles(basename);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<MessageCodeAccessCount> getHotMessageCodes(final int limit) {
+        return messageFormatCache.getHotMessageCodes(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<MessageCodeAccessCount> getHotPreviewMessageCodes(final int limit) {
+        return messageFormatCacheForPreview.getHotMessageCodes(limit);
+    }
+
+    /**
+     * Test purpose getter.
+     * @return template pool
+     */
+    MessageTemplatePool getTemplatePool() {
+        return templatePool;
+    }
+
+    /**
+     * Test purpose getter.
+     * @return live message format cache
+     */
+    MessageFormatCache getMessageFormatCache() {
+        return messageFormatCache;
+    }
+
+    /**
+     * Test purpose getter.
+     * @return preview message format cache
+     */
+    MessageFormatCache getMessageFormatCacheForPreview() {
+        return messageFormatCacheForPreview;
+    }
+
+    private void registerBundle(final MessageFormatCache contextMessageFormatCache, final String basename,
+            final Locale locale, final ResourceBundle bundle) {
+        final List<MessageFormatCacheKey> outdatedKeys = contextMessageFormatCache.registerBundle(basename, locale, bundle);
+        final WarmUpMode mode = warmUpMode;
+
+        if (outdatedKeys == null || mode == WarmUpMode.NONE) {
+            return;
+        }
+
+        final Set<MessageFormatCacheKey> warmUpKeys = new LinkedHashSet<MessageFormatCacheKey>();
+
+        if (mode == WarmUpMode.ALL_KEYS) {
+            for (String code : bundle.keySet()) {
+                warmUpKeys.add(new MessageFormatCacheKey(bundle, code, locale));
+            }
+        } else {
+            for (String code : contextMessageFormatCache.getHotCodes(basename, locale)) {
+                warmUpKeys.add(new MessageFormatCacheKey(bundle, code, locale));
+            }
+
+            for (MessageFormatCacheKey outdatedKey : outdatedKeys) {
+                warmUpKeys.add(new MessageFormatCacheKey(bundle, outdatedKey.getCode(), outdatedKey.getLocale()));
+            }
+        }
+
+        if (warmUpKeys.isEmpty()) {
+            return;
+        }
+
+        final Executor executor = (warmUpExecutor != null) ? warmUpExecutor : ForkJoinPool.commonPool();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp(contextMessageFormatCache, basename, warmUpKeys);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Warm-up rejected for the resource bundle, '{}' ({}). {}", basename, locale, e.toString());
+        }
+    }
+
+    private void warmUp(final MessageFormatCache contextMessageFormatCache, final String basename,
+            final Set<MessageFormatCacheKey> warmUpKeys) {
+        try {
+            for (MessageFormatCacheKey key : warmUpKeys) {
+                // Stop if the bundle has already been replaced again.
+                if (compileIfAbsent(contextMessageFormatCache, key.getBundle(), key.getCode(), key.getLocale()) == null) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to warm up the resource bundle, '{}'. {}", basename, e.toString());
+        }
+    }
+
+    private MessageTemplate compileIfAbsent(final MessageFormatCache contextMessageFormatCache,
+            final ResourceBundle bundle, final String code, final Locale locale) {
+        return contextMessageFormatCache.computeIfAbsent(bundle, code, locale,
+                new Function<MessageFormatCacheKey, MessageTemplate>() {
+                    @Override
+                    public MessageTemplate apply(MessageFormatCacheKey key) {
+                        final String msg = getStringOrNull(bundle, code);
+                        return (msg != null) ? templatePool.intern(msg, locale) : MessageFormatCache.MISSING;
+                    }
+                });
+    }
+
+    private String getStringOrNull(ResourceBundle bundle, String key) {
+        // Check the key first not to pay for a MissingResourceException on every miss.
+        if (bundle.containsKey(key)) {
+            try {
+                return bundle.getString(key);
+            } catch (MissingResourceException ex) {
+                // Fall through.
+            }
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default {@link RepositoryResourceBundleChangeNotifier} implementation, which notifies the listeners
+ * whenever {@link #fireResourceBundleChanged(String)} is invoked, for example by a JCR event listener
+ * or a message listener of the application.
+ * <p>
+ * A listener failing to handle a change doesn't stop the others from being notified.
+ * </p>
+ */
+public class DefaultRepositoryResourceBundleChangeNotifier implements RepositoryResourceBundleChangeNotifier {
+
+    private static Logger log = LoggerFactory.getLogger(DefaultRepositoryResourceBundleChangeNotifier.class);
+
+    private final List<RepositoryResourceBundleChangeListener> listeners =
+            new CopyOnWriteArrayList<RepositoryResourceBundleChangeListener>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addListener(RepositoryResourceBundleChangeListener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeListener(RepositoryResourceBundleChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies all the listeners that the resource bundles of the {@code basename} have changed.
+     * @param basename resource bundle basename
+     */
+    public void fireResourceBundleChanged(String basename) {
+        for (RepositoryResourceBundleChangeListener listener : listeners) {
+            try {
+                listener.onResourceBundleChanged(basename);
+            } catch (RuntimeException e) {
+                log.warn("Failed to notify the resource bundle change of '{}'. {}", basename, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Test purpose getter.
+     * @return listeners
+     */
+    List<RepositoryResourceBundleChangeListener> getListeners() {
+        return listeners;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+/**
+ * Count-Min sketch estimating the access frequency of cache keys with 4-bit counters,
+ * used as the eviction policy of a bounded {@link MessageFormatCache}.
+ * <p>
+ * All the counters are halved once the number of recorded accesses reaches ten times the maximum cache size,
+ * so that the estimation follows the recent popularity of the keys rather than the whole history.
+ * </p>
+ * <p>
+ * Updates are not synchronized on purpose. A lost increment under contention only makes the estimation
+ * slightly less accurate, which is not worth a lock on the cache hit path.
+ * </p>
+ */
+class FrequencySketch {
+
+    /**
+     * The maximum value of a 4-bit counter.
+     */
+    static final int MAX_FREQUENCY = 15;
+
+    private static final long [] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long [] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch for a cache holding up to {@code maximumSize} entries.
+     * @param maximumSize the maximum cache size
+     */
+    FrequencySketch(final int maximumSize) {
+        final int tableLength = Math.max(8, Integer.highestOneBit(Math.max(1, maximumSize) - 1) << 1);
+        table = new long[tableLength];
+        // 16 counters of 4 bits in each long.
+        counterMask = (tableLength << 4) - 1;
+        sampleSize = (maximumSize > Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE : 10 * Math.max(1, maximumSize);
+    }
+
+    /**
+     * Records an access of the item by its hash code.
+     * @param hash the hash code of the item
+     */
+    void increment(final int hash) {
+        boolean added = false;
+
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i));
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated access frequency of the item by its hash code, up to {@link #MAX_FREQUENCY}.
+     * @param hash the hash code of the item
+     * @return the estimated access frequency
+     */
+    int frequency(final int hash) {
+        int frequency = MAX_FREQUENCY;
+
+        for (int i = 0; i < SEEDS.length; i++) {
+            final int index = indexOf(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xfL));
+        }
+
+        return frequency;
+    }
+
+    private boolean incrementAt(final int index) {
+        final int slot = index >>> 4;
+        final int shift = (index & 15) << 2;
+        final long value = table[slot];
+
+        if (((value >>> shift) & 0xfL) < MAX_FREQUENCY) {
+            table[slot] = value + (1L << shift);
+            return true;
+        }
+
+        return false;
+    }
+
+    private int indexOf(final int hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += (h >>> 32);
+        return ((int) h) & counterMask;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+
+        additions >>>= 1;
+    }
+}
@@ -18,6 +18,7 @@ package org.onehippo.forge.hst.spring.support;
 import java.text.MessageFormat;
 import java.util.Locale;
 import java.util.MissingResourceException;
+import java.util.Properties;
 import java.util.ResourceBundle;
 
 import javax.servlet.jsp.jstl.core.Config;
@@ -27,9 +28,11 @@ import org.hippoecm.hst.container.RequestContextProvider;
 import org.hippoecm.hst.core.request.HstRequestContext;
 import org.hippoecm.hst.resourcebundle.ResourceBundleRegistry;
 import org.hippoecm.hst.site.HstServices;
+import org.onehippo.forge.hst.spring.support.util.DefaultResourceBundleCacheSettings;
 import org.onehippo.forge.hst.spring.support.util.HstLocalizationUtils;
 import org.springframework.context.support.MessageSourceResourceBundle;
 import org.springframework.context.support.ResourceBundleMessageSource;
+import org.springframework.util.ObjectUtils;
 
 /**
  * {@link org.springframework.context.MessageSource} implementation that
@@ -39,8 +42,36 @@ import org.springframework.context.support.ResourceBundleMessageSource;
  * to resolve {@link MessageFormat}.
  * If  falls back to the super class,
  * {@link ResourceBundleMessageSource}, if nothing found (from HST-2 Dynamic Resource Bundles).
+ * <p>
+ * If the {@link RepositoryResourceBundleMessageFormatProvider} is a {@link RepositoryResourceBundleMessageTemplateProvider},
+ * messages with arguments from the repository resource bundles are formatted by {@link MessageTemplate}s
+ * without synchronizing on shared <code>MessageFormat</code>s.
+ * </p>
+ * <p>
+ * If a {@link RepositoryResourceBundleChangeNotifier} is set, this listens to the resource bundle changes
+ * and lets the {@link RepositoryResourceBundleMessageFormatProvider} drop the outdated bundles eagerly
+ * if the provider is a {@link RepositoryResourceBundleChangeListener}.
+ * </p>
  */
-public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMessageSource {
+public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMessageSource
+        implements RepositoryResourceBundleChangeListener {
+
+    /**
+     * Request attribute name of the request scoped {@link LocalizationContext}, which is equivalent to what
+     * {@link Config#get(javax.servlet.ServletRequest, String)} looks up, without building the name on every call.
+     */
+    private static final String LOCALIZATION_CONTEXT_REQUEST_ATTR = Config.FMT_LOCALIZATION_CONTEXT + ".request";
+
+    /**
+     * {@link HstRequestContext} attribute name of the default resource bundle resolved in the current request.
+     */
+    private static final String DEFAULT_RESOURCE_BUNDLE_MEMO_ATTR =
+            HstRepositoryResourceBundleMessageSource.class.getName() + ".defaultResourceBundle";
+
+    /**
+     * Result of {@link #resolveCodeSource(String, Locale)} when the code is not found in any resource bundle.
+     */
+    private static final Object MISSING_CODE = new Object();
 
     /**
      * Flag whether or not the default resource bundle should be found from {@link LocalizationContext}
@@ -57,7 +88,11 @@ public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMess
      */
     private boolean repositoryResourceBundleEnabled = true;
 
-    private RepositoryResourceBundleMessageFormatProvider resourceBundleMessageFormatProvider = new CachingRepositoryResourceBundleMessageFormatProvider();
+    private RepositoryResourceBundleMessageFormatProvider resourceBundleMessageFormatProvider = new ConcurrentCachingRepositoryResourceBundleMessageFormatProvider();
+
+    private RepositoryResourceBundleChangeNotifier resourceBundleChangeNotifier;
+
+    private DefaultResourceBundleCacheSettings defaultResourceBundleCacheSettings = new DefaultResourceBundleCacheSettings();
 
     /**
      * Zero-argument default constructor.
@@ -127,10 +162,218 @@ public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMess
         this.resourceBundleMessageFormatProvider = resourceBundleMessageFormatProvider;
     }
 
+    /**
+     * Returns {@link RepositoryResourceBundleChangeNotifier} which this listens to for the resource bundle changes.
+     * @return {@link RepositoryResourceBundleChangeNotifier} which this listens to for the resource bundle changes
+     */
+    public RepositoryResourceBundleChangeNotifier getResourceBundleChangeNotifier() {
+        return resourceBundleChangeNotifier;
+    }
+
+    /**
+     * Sets {@link RepositoryResourceBundleChangeNotifier} to listen to for the resource bundle changes,
+     * removing this from the previous notifier if any.
+     * @param resourceBundleChangeNotifier {@link RepositoryResourceBundleChangeNotifier} to listen to for the resource bundle changes
+     */
+    public void setResourceBundleChangeNotifier(RepositoryResourceBundleChangeNotifier resourceBundleChangeNotifier) {
+        if (this.resourceBundleChangeNotifier != null) {
+            this.resourceBundleChangeNotifier.removeListener(this);
+        }
+
+        this.resourceBundleChangeNotifier = resourceBundleChangeNotifier;
+
+        if (resourceBundleChangeNotifier != null) {
+            resourceBundleChangeNotifier.addListener(this);
+        }
+    }
+
+    /**
+     * Returns the settings of the caches of the default resource bundles shared across requests.
+     * @return the settings of the caches of the default resource bundles shared across requests
+     */
+    public DefaultResourceBundleCacheSettings getDefaultResourceBundleCacheSettings() {
+        return defaultResourceBundleCacheSettings;
+    }
+
+    /**
+     * Sets the settings of the caches of the default resource bundles shared across requests.
+     * @param defaultResourceBundleCacheSettings the settings of the caches of the default resource bundles
+     */
+    public void setDefaultResourceBundleCacheSettings(DefaultResourceBundleCacheSettings defaultResourceBundleCacheSettings) {
+        this.defaultResourceBundleCacheSettings = defaultResourceBundleCacheSettings;
+    }
+
     /**
      * {@inheritDoc}
      *
-     * If {@link #isLocalizationContextResourceBundleEnabled()} returns true,
+     * It lets the {@link RepositoryResourceBundleMessageFormatProvider} drop the outdated bundles of the {@code basename}
+     * if the provider is a {@link RepositoryResourceBundleChangeListener}.
+     *
+     * @param basename resource bundle basename
+     */
+    @Override
+    public void onResourceBundleChanged(String basename) {
+        if (resourceBundleMessageFormatProvider instanceof RepositoryResourceBundleChangeListener) {
+            ((RepositoryResourceBundleChangeListener) resourceBundleMessageFormatProvider).onResourceBundleChanged(basename);
+        }
+    }
+
+    /**
+     * Returns the statistics of the <code>MessageFormat</code> cache if {@link #getResourceBundleMessageFormatProvider()}
+     * supports it, which can be registered as an MXBean, for example by Spring Framework's <code>MBeanExporter</code>.
+     * @return the statistics of the <code>MessageFormat</code> cache, or null if the provider doesn't support it
+     */
+    public RepositoryResourceBundleMessageFormatStatistics getStatistics() {
+        if (resourceBundleMessageFormatProvider instanceof RepositoryResourceBundleMessageFormatStatistics) {
+            return (RepositoryResourceBundleMessageFormatStatistics) resourceBundleMessageFormatProvider;
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If the message needs to be formatted and it is resolved to a {@link MessageTemplate},
+     * then it formats the message by the template. If it is found in a resource bundle not maintained by the
+     * {@link RepositoryResourceBundleMessageFormatProvider}, then it formats the message by the <code>MessageFormat</code>
+     * from the bundle. If it is not found in any resource bundle, then it looks up the common messages
+     * and the parent message source only, without looking up the resource bundles again.
+     * Otherwise, it proceeds with the default behavior.
+     *
+     * @param code message code
+     * @param args message arguments
+     * @param locale message locale
+     * @return message resolved by the code, arguments and locale
+     */
+    @Override
+    protected String getMessageInternal(String code, Object[] args, Locale locale) {
+        if (code != null && (isAlwaysUseMessageFormat() || !ObjectUtils.isEmpty(args))) {
+            final Locale localeToUse = (locale != null) ? locale : Locale.getDefault();
+            final Object source = resolveCodeSource(code, localeToUse);
+
+            if (source instanceof MessageTemplate) {
+                return ((MessageTemplate) source).format(resolveArguments(args, localeToUse));
+            }
+
+            if (source instanceof ResourceBundle) {
+                final MessageFormat messageFormat = getMessageFormat((ResourceBundle) source, code, localeToUse);
+
+                if (messageFormat != null) {
+                    final Object [] argsToUse = resolveArguments(args, localeToUse);
+
+                    synchronized (messageFormat) {
+                        return messageFormat.format(argsToUse);
+                    }
+                }
+            }
+
+            if (source == MISSING_CODE) {
+                return getMessageFromCommonMessagesOrParent(code, args, localeToUse);
+            }
+        }
+
+        return super.getMessageInternal(code, args, locale);
+    }
+
+    /**
+     * Resolves the given message code to a {@link MessageTemplate} in the same order as {@link #resolveCode(String, Locale)}.
+     * <p>
+     * It returns null if the {@link RepositoryResourceBundleMessageFormatProvider} is not
+     * a {@link RepositoryResourceBundleMessageTemplateProvider}, if the code is not found,
+     * or if the code is found first in a resource bundle not maintained by the provider
+     * (e.g, a resource bundle from the classpath), so that the caller can fall back to the default behavior.
+     * </p>
+     *
+     * @param code message code
+     * @param locale message locale
+     * @return message template resolved by code and locale, or null
+     */
+    protected MessageTemplate resolveCodeTemplate(String code, Locale locale) {
+        final Object source = resolveCodeSource(code, locale);
+        return (source instanceof MessageTemplate) ? (MessageTemplate) source : null;
+    }
+
+    /**
+     * Resolves the given message code in the same order as {@link #resolveCode(String, Locale)},
+     * walking the resource bundles only once.
+     *
+     * @param code message code
+     * @param locale message locale
+     * @return the {@link MessageTemplate} if resolved by the provider, the {@link ResourceBundle} containing the code
+     * if the bundle is not maintained by the provider, {@link #MISSING_CODE} if the code is not found in any bundle,
+     * or null if the provider is not a {@link RepositoryResourceBundleMessageTemplateProvider}
+     */
+    private Object resolveCodeSource(String code, Locale locale) {
+        if (!(resourceBundleMessageFormatProvider instanceof RepositoryResourceBundleMessageTemplateProvider)) {
+            return null;
+        }
+
+        final RepositoryResourceBundleMessageTemplateProvider templateProvider =
+                (RepositoryResourceBundleMessageTemplateProvider) resourceBundleMessageFormatProvider;
+
+        if (isLocalizationContextResourceBundleEnabled()) {
+            ResourceBundle defaultResourceBundle = findDefaultResourceBundle();
+
+            if (defaultResourceBundle != null) {
+                registerResourceBundle("", locale, defaultResourceBundle);
+                MessageTemplate messageTemplate = templateProvider.getMessageTemplate(defaultResourceBundle, code, locale);
+
+                if (messageTemplate != null) {
+                    return messageTemplate;
+                }
+
+                if (defaultResourceBundle.containsKey(code)) {
+                    return defaultResourceBundle;
+                }
+            }
+        }
+
+        for (String basename : getBasenameSet()) {
+            ResourceBundle bundle = getResourceBundle(basename, locale);
+
+            if (bundle != null) {
+                MessageTemplate messageTemplate = templateProvider.getMessageTemplate(bundle, code, locale);
+
+                if (messageTemplate != null) {
+                    return messageTemplate;
+                }
+
+                if (bundle.containsKey(code)) {
+                    return bundle;
+                }
+            }
+        }
+
+        return MISSING_CODE;
+    }
+
+    /**
+     * Looks up the common messages and then the parent message source, in the same way as the default behavior
+     * does after not finding the code in any resource bundle.
+     */
+    private String getMessageFromCommonMessagesOrParent(String code, Object[] args, Locale locale) {
+        final Properties commonMessages = getCommonMessages();
+
+        if (commonMessages != null) {
+            final String commonMessage = commonMessages.getProperty(code);
+
+            if (commonMessage != null) {
+                return formatMessage(commonMessage, args, locale);
+            }
+        }
+
+        return getMessageFromParent(code, resolveArguments(args, locale), locale);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If the code is resolved to a {@link MessageTemplate}, then it returns the raw message pattern
+     * of the cached template without any allocation. If it is found in a resource bundle not maintained by the
+     * {@link RepositoryResourceBundleMessageFormatProvider}, then it returns the message from the bundle,
+     * and if it is not found in any resource bundle, then it returns null, without looking up the bundles again.
+     * Otherwise, if {@link #isLocalizationContextResourceBundleEnabled()} returns true,
      * then it tries to find the default resource bundle from {@link LocalizationContext} first.
      * Otherwise or if not found, it proceeds with the default behavior.
      *
@@ -140,6 +383,24 @@ public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMess
      */
     @Override
     protected String resolveCodeWithoutArguments(String code, Locale locale) {
+        final Object source = resolveCodeSource(code, locale);
+
+        if (source instanceof MessageTemplate) {
+            return ((MessageTemplate) source).getPattern();
+        }
+
+        if (source instanceof ResourceBundle) {
+            final String message = getStringOrNull((ResourceBundle) source, code);
+
+            if (message != null) {
+                return message;
+            }
+        }
+
+        if (source == MISSING_CODE) {
+            return null;
+        }
+
         if (isLocalizationContextResourceBundleEnabled()) {
             ResourceBundle defaultResourceBundle = findDefaultResourceBundle();
 
@@ -212,12 +473,7 @@ public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMess
                 }
 
                 if (bundle != null) {
-                    if (preview) {
-                        resourceBundleMessageFormatProvider.registerPreviewBundle(basename, locale, bundle);
-                    } else {
-                        resourceBundleMessageFormatProvider.registerBundle(basename, locale, bundle);
-                    }
-
+                    registerResourceBundle(basename, locale, bundle, preview);
                     return bundle;
                 }
             }
@@ -259,23 +515,38 @@ public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMess
      * @return message format resolved
      */
     protected MessageFormat getMessageFormatFromDefaultResourceBundle(ResourceBundle defaultResourceBundle, String code, Locale locale) {
-        HstRequestContext requestContext = RequestContextProvider.get();
-        final boolean preview = requestContext != null && requestContext.isPreview();
-
         if (defaultResourceBundle != null) {
             // Use empty string basename for the default localization context resource bundle.
-            if (preview) {
-                resourceBundleMessageFormatProvider.registerPreviewBundle("", locale, defaultResourceBundle);
-            } else {
-                resourceBundleMessageFormatProvider.registerBundle("", locale, defaultResourceBundle);
-            }
-
+            registerResourceBundle("", locale, defaultResourceBundle);
             return getMessageFormat(defaultResourceBundle, code, locale);
         }
 
         return null;
     }
 
+    /**
+     * Invokes {@link RepositoryResourceBundleMessageFormatProvider#registerBundle(String, Locale, ResourceBundle)}
+     * or {@link RepositoryResourceBundleMessageFormatProvider#registerPreviewBundle(String, Locale, ResourceBundle)}
+     * depending on the current request context.
+     *
+     * @param basename resource bundle basename
+     * @param locale resource bundle locale
+     * @param bundle resource bundle
+     */
+    protected void registerResourceBundle(String basename, Locale locale, ResourceBundle bundle) {
+        HstRequestContext requestContext = RequestContextProvider.get();
+        final boolean preview = requestContext != null && requestContext.isPreview();
+        registerResourceBundle(basename, locale, bundle, preview);
+    }
+
+    private void registerResourceBundle(String basename, Locale locale, ResourceBundle bundle, boolean preview) {
+        if (preview) {
+            resourceBundleMessageFormatProvider.registerPreviewBundle(basename, locale, bundle);
+        } else {
+            resourceBundleMessageFormatProvider.registerBundle(basename, locale, bundle);
+        }
+    }
+
     /**
      * Finds the default {@code LocalizationContext}'s {@code ResourceBundle} set by HST-2 Container in the frontend pipeline.
      * <p>
@@ -288,45 +559,76 @@ public class HstRepositoryResourceBundleMessageSource extends ResourceBundleMess
     protected ResourceBundle findDefaultResourceBundle() {
         HstRequestContext requestContext = RequestContextProvider.get();
 
-        if (requestContext != null) {
-            final LocalizationContext localizationContext = (LocalizationContext) Config.get(requestContext.getServletRequest(), Config.FMT_LOCALIZATION_CONTEXT);
+        if (requestContext != null && requestContext.getServletRequest() != null) {
+            final LocalizationContext localizationContext = (LocalizationContext) requestContext.getServletRequest()
+                    .getAttribute(LOCALIZATION_CONTEXT_REQUEST_ATTR);
 
             if (localizationContext != null) {
-                ResourceBundle defaultResourceBundle = localizationContext.getResourceBundle();
-
-                if (defaultResourceBundle != null) {
-                    if (defaultResourceBundle instanceof MessageSourceResourceBundle) {
-                        // JSTL LocalizationContext has been modified by Spring Framework JstlView / JstUtils.
-                        // Because MessageSourceResourceBundle is just a wrapper of this MessageSource implementation,
-                        // it will cause infinte self-recursive call if you use it.
-                        // So, we will need to find the LocalizationContext set by HST-2 Container.
-                        defaultResourceBundle = HstLocalizationUtils.getCurrentDefaultResourceBundle();
-
-                        if (defaultResourceBundle != null) {
-                            return defaultResourceBundle;
-                        }
-                    } else {
-                        return defaultResourceBundle;
-                    }
+                // The bundle resolved from the same LocalizationContext is reused for the rest of the request.
+                // If the LocalizationContext is replaced, e.g. by JstlView, the identity check invalidates it.
+                DefaultResourceBundleMemo memo = (DefaultResourceBundleMemo) requestContext
+                        .getAttribute(DEFAULT_RESOURCE_BUNDLE_MEMO_ATTR);
+
+                if (memo != null && memo.localizationContext == localizationContext) {
+                    return memo.defaultResourceBundle;
                 }
 
-                return null;
+                final ResourceBundle defaultResourceBundle = findDefaultResourceBundle(localizationContext);
+                requestContext.setAttribute(DEFAULT_RESOURCE_BUNDLE_MEMO_ATTR,
+                        new DefaultResourceBundleMemo(localizationContext, defaultResourceBundle));
+
+                return defaultResourceBundle;
             }
         }
 
         return null;
     }
 
+    private ResourceBundle findDefaultResourceBundle(final LocalizationContext localizationContext) {
+        ResourceBundle defaultResourceBundle = localizationContext.getResourceBundle();
+
+        if (defaultResourceBundle instanceof MessageSourceResourceBundle) {
+            // JSTL LocalizationContext has been modified by Spring Framework JstlView / JstUtils.
+            // Because MessageSourceResourceBundle is just a wrapper of this MessageSource implementation,
+            // it will cause infinte self-recursive call if you use it.
+            // So, we will need to find the LocalizationContext set by HST-2 Container.
+            defaultResourceBundle = HstLocalizationUtils.getCurrentDefaultResourceBundle(null,
+                    defaultResourceBundleCacheSettings);
+        }
+
+        return defaultResourceBundle;
+    }
+
     /*
      * HIPFORGE-129: As this forge module can be used in Spring Framework [4.0,5.0),
      * let's change the visibility from private to protected for now.
      * Since Spring Framework 4.2.x, it has been changed from private to protected as well.
      */
     protected String getStringOrNull(ResourceBundle bundle, String key) {
-        try {
-            return bundle.getString(key);
-        } catch (MissingResourceException ex) {
-            return null;
+        // Check the key first not to pay for a MissingResourceException on every miss, as Spring Framework 5 does.
+        if (bundle.containsKey(key)) {
+            try {
+                return bundle.getString(key);
+            } catch (MissingResourceException ex) {
+                // Fall through.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Default resource bundle resolved from a {@link LocalizationContext} in the current request.
+     */
+    private static class DefaultResourceBundleMemo {
+
+        private final LocalizationContext localizationContext;
+        private final ResourceBundle defaultResourceBundle;
+
+        private DefaultResourceBundleMemo(final LocalizationContext localizationContext,
+                final ResourceBundle defaultResourceBundle) {
+            this.localizationContext = localizationContext;
+            this.defaultResourceBundle = defaultResourceBundle;
         }
     }
 
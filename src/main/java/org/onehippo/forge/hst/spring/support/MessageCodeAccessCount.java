@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.Locale;
+
+/**
+ * Number of the accesses to a message code of the resource bundles registered by a basename and locale,
+ * reported by {@link RepositoryResourceBundleMessageCodeAccessStatistics#getHotMessageCodes(int)}.
+ */
+public class MessageCodeAccessCount {
+
+    private final String basename;
+
+    private final Locale locale;
+
+    private final String code;
+
+    private final long count;
+
+    public MessageCodeAccessCount(final String basename, final Locale locale, final String code, final long count) {
+        this.basename = basename;
+        this.locale = locale;
+        this.code = code;
+        this.count = count;
+    }
+
+    /**
+     * Returns the basename by which the resource bundles were registered.
+     * @return the basename by which the resource bundles were registered
+     */
+    public String getBasename() {
+        return basename;
+    }
+
+    /**
+     * Returns the locale by which the resource bundles were registered.
+     * @return the locale by which the resource bundles were registered
+     */
+    public Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     * Returns the message code.
+     * @return the message code
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the number of the accesses to the message code.
+     * @return the number of the accesses to the message code
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return basename + ":" + locale + ":" + code + "=" + count;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.hippoecm.hst.util.KeyValue;
+
+/**
+ * Access counters per basename, locale and message code of either live or preview resource bundles.
+ * <p>
+ * Unlike the cached <code>MessageFormat</code>s, the counters are keyed by the basename and locale by which
+ * the bundles are registered, not by bundle identity, so they survive bundle refreshes and tell which message codes
+ * are actually used. Once {@code maxTrackedCodes} codes are tracked, new codes are not tracked any more
+ * while the tracked ones keep being counted.
+ * </p>
+ */
+class MessageCodeAccessCounters {
+
+    /**
+     * The default maximum number of the tracked message codes.
+     */
+    static final int DEFAULT_MAX_TRACKED_CODES = 10000;
+
+    private static final Function<KeyValue<String, Locale>, ConcurrentMap<String, LongAdder>> NEW_CODE_COUNTS =
+            new Function<KeyValue<String, Locale>, ConcurrentMap<String, LongAdder>>() {
+                @Override
+                public ConcurrentMap<String, LongAdder> apply(KeyValue<String, Locale> basenameLocale) {
+                    return new ConcurrentHashMap<String, LongAdder>();
+                }
+            };
+
+    private static final Comparator<MessageCodeAccessCount> MOST_FREQUENT_FIRST = new Comparator<MessageCodeAccessCount>() {
+        @Override
+        public int compare(MessageCodeAccessCount o1, MessageCodeAccessCount o2) {
+            return Long.compare(o2.getCount(), o1.getCount());
+        }
+    };
+
+    private final ConcurrentMap<KeyValue<String, Locale>, ConcurrentMap<String, LongAdder>> accessCounts =
+            new ConcurrentHashMap<KeyValue<String, Locale>, ConcurrentMap<String, LongAdder>>();
+
+    private final AtomicInteger trackedCodeCount = new AtomicInteger();
+
+    private final Function<String, LongAdder> newCounter = new Function<String, LongAdder>() {
+        @Override
+        public LongAdder apply(String code) {
+            trackedCodeCount.incrementAndGet();
+            return new LongAdder();
+        }
+    };
+
+    private final int maxTrackedCodes;
+
+    MessageCodeAccessCounters() {
+        this(DEFAULT_MAX_TRACKED_CODES);
+    }
+
+    MessageCodeAccessCounters(final int maxTrackedCodes) {
+        this.maxTrackedCodes = maxTrackedCodes;
+    }
+
+    /**
+     * Records an access to the {@code code} of the bundle registered by the {@code basenameLocale}.
+     * Nothing is allocated unless the code is accessed for the first time.
+     * @param basenameLocale basename and locale by which the bundle is registered
+     * @param code message code
+     */
+    void record(final KeyValue<String, Locale> basenameLocale, final String code) {
+        ConcurrentMap<String, LongAdder> codeCounts = accessCounts.get(basenameLocale);
+
+        if (codeCounts == null) {
+            codeCounts = accessCounts.computeIfAbsent(basenameLocale, NEW_CODE_COUNTS);
+        }
+
+        LongAdder counter = codeCounts.get(code);
+
+        if (counter == null) {
+            if (trackedCodeCount.get() >= maxTrackedCodes) {
+                return;
+            }
+
+            counter = codeCounts.computeIfAbsent(code, newCounter);
+        }
+
+        counter.increment();
+    }
+
+    /**
+     * Returns the message codes tracked for the {@code basenameLocale}, most frequently accessed first.
+     * @param basenameLocale basename and locale by which the bundles are registered
+     * @return the message codes tracked for the {@code basenameLocale}
+     */
+    List<String> getHotCodes(final KeyValue<String, Locale> basenameLocale) {
+        final ConcurrentMap<String, LongAdder> codeCounts = accessCounts.get(basenameLocale);
+
+        if (codeCounts == null) {
+            return Collections.emptyList();
+        }
+
+        final List<MessageCodeAccessCount> counts = new ArrayList<MessageCodeAccessCount>(codeCounts.size());
+        addAccessCounts(counts, basenameLocale, codeCounts);
+        Collections.sort(counts, MOST_FREQUENT_FIRST);
+
+        final List<String> codes = new ArrayList<String>(counts.size());
+
+        for (MessageCodeAccessCount count : counts) {
+            codes.add(count.getCode());
+        }
+
+        return codes;
+    }
+
+    /**
+     * Returns the {@code limit} most frequently accessed message codes of all the basenames and locales.
+     * This scans all the counters, so it is meant for monitoring only.
+     * @param limit the maximum number of the message codes to return
+     * @return the most frequently accessed message codes, most frequent first
+     */
+    List<MessageCodeAccessCount> getTopAccessCounts(final int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        final List<MessageCodeAccessCount> counts = new ArrayList<MessageCodeAccessCount>();
+
+        for (Map.Entry<KeyValue<String, Locale>, ConcurrentMap<String, LongAdder>> entry : accessCounts.entrySet()) {
+            addAccessCounts(counts, entry.getKey(), entry.getValue());
+        }
+
+        Collections.sort(counts, MOST_FREQUENT_FIRST);
+
+        return (counts.size() > limit) ? new ArrayList<MessageCodeAccessCount>(counts.subList(0, limit)) : counts;
+    }
+
+    /**
+     * Returns the number of the tracked message codes.
+     * @return the number of the tracked message codes
+     */
+    int getTrackedCodeCount() {
+        return trackedCodeCount.get();
+    }
+
+    private static void addAccessCounts(final List<MessageCodeAccessCount> counts,
+            final KeyValue<String, Locale> basenameLocale, final Map<String, LongAdder> codeCounts) {
+        for (Map.Entry<String, LongAdder> entry : codeCounts.entrySet()) {
+            counts.add(new MessageCodeAccessCount(basenameLocale.getKey(), basenameLocale.getValue(), entry.getKey(),
+                    entry.getValue().sum()));
+        }
+    }
+}
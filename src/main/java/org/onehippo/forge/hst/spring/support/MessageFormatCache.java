@@ -0,0 +1,641 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.hippoecm.hst.util.KeyValue;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * <code>MessageFormat</code> cache of either live or preview resource bundles,
+ * used by {@link ConcurrentCachingRepositoryResourceBundleMessageFormatProvider}.
+ * Each message is cached as a {@link MessageTemplate} which creates its <code>MessageFormat</code> on demand.
+ * <p>
+ * All the {@link MessageTemplate}s are kept in a single flat map keyed by {@link MessageFormatCacheKey},
+ * a composite of bundle identity, message code and locale, instead of nested maps per bundle and per code.
+ * A lookup reuses a thread local key, so a cache hit does not allocate anything.
+ * </p>
+ * <p>
+ * A message code known to be missing in a bundle is cached as {@link #MISSING}, so that it is not looked up
+ * in the bundle again until the bundle is replaced.
+ * </p>
+ * <p>
+ * The cache is unbounded by default. If {@link #setMaxEntries(int)} is set to a positive number, the accesses are
+ * recorded in a {@link FrequencySketch}, and whenever the cache grows over the limit, the least frequently used
+ * entries are evicted in a batch down to 90% of the limit by a single thread, without blocking the others.
+ * The frequencies are estimated by message code and locale regardless of bundle identity, so the codes which were
+ * hot in an outdated bundle are kept in favor of the others after the bundle is refreshed.
+ * </p>
+ * <p>
+ * If constructed with <code>weakBundleReferences</code> set to true, the registered bundles are held by weak
+ * references, so that an outdated bundle nobody requests any more, e.g. of a locale not in use any more, is garbage
+ * collected. The registrations and the cached entries of the collected bundles are purged on the next registration
+ * or cache miss. A cache hit stays lock-free and allocation-free, while checking whether a bundle is registered on a
+ * cache miss takes a short lock.
+ * </p>
+ * <p>
+ * The accesses recorded by {@link #recordAccess} are also counted by basename, locale and message code in
+ * {@link MessageCodeAccessCounters}, which survive bundle refreshes as well, to report and warm up the hot message codes.
+ * </p>
+ */
+class MessageFormatCache {
+
+    /**
+     * Sentinel value cached for a message code which is missing in the bundle.
+     */
+    static final MessageTemplate MISSING = MessageTemplate.compile("", null);
+
+    private static final ThreadLocal<MessageFormatCacheKey> lookupKeys = new ThreadLocal<MessageFormatCacheKey>() {
+        @Override
+        protected MessageFormatCacheKey initialValue() {
+            return new MessageFormatCacheKey();
+        }
+    };
+
+    private static final ThreadLocal<BasenameLocaleKey> basenameLocaleLookupKeys = new ThreadLocal<BasenameLocaleKey>() {
+        @Override
+        protected BasenameLocaleKey initialValue() {
+            return new BasenameLocaleKey();
+        }
+    };
+
+    /**
+     * Cache to hold already compiled MessageTemplates keyed by bundle, message code and locale.
+     */
+    private final ConcurrentMap<MessageFormatCacheKey, MessageTemplate> cachedMessageFormats =
+            new ConcurrentHashMap<MessageFormatCacheKey, MessageTemplate>();
+
+    /**
+     * Lock to let only one thread evict entries at a time.
+     */
+    private final Lock evictionLock = new ReentrantLock();
+
+    /**
+     * The maximum number of entries. Zero or negative for no limit.
+     */
+    private volatile int maxEntries;
+
+    /**
+     * Access frequency sketch which exists only when the cache is bounded.
+     */
+    private volatile FrequencySketch frequencySketch;
+
+    /**
+     * Counters shared by the live and preview caches of a provider.
+     */
+    private final MessageFormatCacheCounters counters;
+
+    /**
+     * Access counters per basename, locale and message code.
+     */
+    private final MessageCodeAccessCounters accessCounters = new MessageCodeAccessCounters();
+
+    /**
+     * Flag whether or not the registered bundles are held by weak references.
+     */
+    private final boolean weakBundleReferences;
+
+    /**
+     * Cache to hold basename and locale per resource bundle. If a bundle is registered by more than one basename
+     * and locale, this holds only one of them. This holds the registered bundles by strong references,
+     * unless {@link #weakBundleReferences}, in which case this is a synchronized <code>WeakHashMap</code> instead.
+     */
+    private final Map<ResourceBundle, KeyValue<String, Locale>> bundleBasenameLocales;
+
+    /**
+     * Cache to hold resource bundles per each basename and locale, keyed by {@link BasenameLocaleKey}s only.
+     * The bundles are held by weak references, which are never cleared while the bundles are held
+     * by {@link #bundleBasenameLocales} unless {@link #weakBundleReferences}.
+     */
+    private final ConcurrentMap<KeyValue<String, Locale>, WeakReference<ResourceBundle>> basenameLocaleBundles =
+            new ConcurrentHashMap<KeyValue<String, Locale>, WeakReference<ResourceBundle>>();
+
+    /**
+     * Queue of the weak references to the garbage collected bundles, which exists only if {@link #weakBundleReferences}.
+     */
+    private final ReferenceQueue<ResourceBundle> collectedBundles;
+
+    MessageFormatCache(final MessageFormatCacheCounters counters) {
+        this(counters, false);
+    }
+
+    MessageFormatCache(final MessageFormatCacheCounters counters, final boolean weakBundleReferences) {
+        this.counters = counters;
+        this.weakBundleReferences = weakBundleReferences;
+
+        if (weakBundleReferences) {
+            bundleBasenameLocales = Collections.synchronizedMap(new WeakHashMap<ResourceBundle, KeyValue<String, Locale>>());
+            collectedBundles = new ReferenceQueue<ResourceBundle>();
+        } else {
+            bundleBasenameLocales = new ConcurrentHashMap<ResourceBundle, KeyValue<String, Locale>>();
+            collectedBundles = null;
+        }
+    }
+
+    /**
+     * Returns true if the registered bundles are held by weak references.
+     * @return true if the registered bundles are held by weak references
+     */
+    boolean isWeakBundleReferences() {
+        return weakBundleReferences;
+    }
+
+    /**
+     * Returns the maximum number of entries. Zero or negative for no limit.
+     * @return the maximum number of entries
+     */
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of entries. Zero or negative for no limit.
+     * @param maxEntries the maximum number of entries
+     */
+    void setMaxEntries(final int maxEntries) {
+        this.frequencySketch = (maxEntries > 0) ? new FrequencySketch(maxEntries) : null;
+        this.maxEntries = maxEntries;
+        evictIfNecessary();
+    }
+
+    /**
+     * Registers the {@code bundle} by the {@code basename} and {@code locale}, removing all the cached
+     * <code>MessageFormat</code>s of the outdated bundle if the bundle was refreshed,
+     * unless the outdated bundle is still registered by another basename or locale.
+     * @param basename resource bundle basename
+     * @param locale resource bundle locale
+     * @param bundle resource bundle
+     * @return null if the {@code bundle} had already been registered, or the keys removed of the outdated bundle
+     *         which is empty if there was no outdated bundle
+     */
+    List<MessageFormatCacheKey> registerBundle(final String basename, final Locale locale, final ResourceBundle bundle) {
+        purgeCollectedBundles();
+
+        // Lock-free and allocation-free check for the most common case where the bundle has not been changed,
+        // which holds even if the same bundle is registered by more than one basename and locale.
+        final BasenameLocaleKey lookupKey = basenameLocaleLookupKeys.get().set(basename, locale);
+        final WeakReference<ResourceBundle> registeredBundleRef;
+
+        try {
+            registeredBundleRef = basenameLocaleBundles.get(lookupKey);
+        } finally {
+            lookupKey.clear();
+        }
+
+        if (registeredBundleRef != null && registeredBundleRef.get() == bundle) {
+            counters.recordSkippedBundleRegistration();
+            return null;
+        }
+
+        final KeyValue<String, Locale> pair = new BasenameLocaleKey(basename, locale);
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (this) {
+            counters.recordLockWait(lockStartNanos);
+
+            final WeakReference<ResourceBundle> oldBundleRef = basenameLocaleBundles.get(pair);
+            final ResourceBundle oldBundle = (oldBundleRef != null) ? oldBundleRef.get() : null;
+
+            if (oldBundle != bundle) {
+                // Make the new bundle available first, and drop the outdated bundle afterward.
+                bundleBasenameLocales.putIfAbsent(bundle, pair);
+                basenameLocaleBundles.put(pair, new WeakReference<ResourceBundle>(bundle, collectedBundles));
+
+                List<MessageFormatCacheKey> removedKeys = Collections.emptyList();
+
+                if (oldBundle != null && !reregisterIfStillUsed(oldBundle)) {
+                    bundleBasenameLocales.remove(oldBundle);
+                    removedKeys = removeMessageFormats(oldBundle);
+                }
+
+                counters.recordBundleRegistration(oldBundle != null);
+                return removedKeys;
+            }
+
+            counters.recordSkippedBundleRegistration();
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters all the bundles registered by the {@code basename} in any locale,
+     * removing all their cached <code>MessageFormat</code>s.
+     * @param basename resource bundle basename
+     * @return the number of the unregistered bundles
+     */
+    int unregisterBundles(final String basename) {
+        final Set<ResourceBundle> bundles = Collections.newSetFromMap(new IdentityHashMap<ResourceBundle, Boolean>());
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (this) {
+            counters.recordLockWait(lockStartNanos);
+
+            for (Iterator<Map.Entry<KeyValue<String, Locale>, WeakReference<ResourceBundle>>> it = basenameLocaleBundles.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<KeyValue<String, Locale>, WeakReference<ResourceBundle>> entry = it.next();
+
+                if (ObjectUtils.nullSafeEquals(entry.getKey().getKey(), basename)) {
+                    it.remove();
+                    final ResourceBundle bundle = entry.getValue().get();
+
+                    if (bundle != null) {
+                        bundles.add(bundle);
+                    }
+                }
+            }
+
+            for (Iterator<ResourceBundle> it = bundles.iterator(); it.hasNext(); ) {
+                final ResourceBundle bundle = it.next();
+
+                if (reregisterIfStillUsed(bundle)) {
+                    it.remove();
+                } else {
+                    bundleBasenameLocales.remove(bundle);
+                }
+            }
+
+            if (!bundles.isEmpty()) {
+                removeMessageFormats(bundles);
+                counters.recordBundleInvalidations(bundles.size());
+            }
+        }
+
+        return bundles.size();
+    }
+
+    /**
+     * Returns the number of the registered bundles.
+     * @return the number of the registered bundles
+     */
+    int getBundleCount() {
+        purgeCollectedBundles();
+        return bundleBasenameLocales.size();
+    }
+
+    /**
+     * Returns the number of the cached entries, including message codes cached as missing.
+     * @return the number of the cached entries
+     */
+    int getEntryCount() {
+        purgeCollectedBundles();
+        return cachedMessageFormats.size();
+    }
+
+    /**
+     * Returns the number of the cached entries per registered bundle, keyed by <code>basename:locale</code>.
+     * This scans all the keys, so it is meant for monitoring only.
+     * @return the number of the cached entries per registered bundle
+     */
+    Map<String, Integer> getEntryCountsPerBundle() {
+        purgeCollectedBundles();
+
+        final Map<ResourceBundle, Integer> bundleEntryCounts = new HashMap<ResourceBundle, Integer>();
+
+        for (MessageFormatCacheKey key : cachedMessageFormats.keySet()) {
+            final Integer count = bundleEntryCounts.get(key.getBundle());
+            bundleEntryCounts.put(key.getBundle(), (count != null) ? count + 1 : 1);
+        }
+
+        final Map<String, Integer> entryCounts = new HashMap<String, Integer>();
+
+        // A synchronized map must be iterated while holding its monitor, which is harmless for a concurrent map.
+        synchronized (bundleBasenameLocales) {
+            for (Map.Entry<ResourceBundle, KeyValue<String, Locale>> entry : bundleBasenameLocales.entrySet()) {
+                final Integer count = bundleEntryCounts.get(entry.getKey());
+                entryCounts.put(entry.getValue().getKey() + ":" + entry.getValue().getValue(), (count != null) ? count : 0);
+            }
+        }
+
+        return entryCounts;
+    }
+
+    /**
+     * Returns true if the {@code bundle} is currently registered.
+     * @param bundle resource bundle
+     * @return true if the {@code bundle} is currently registered
+     */
+    boolean isRegistered(final ResourceBundle bundle) {
+        return bundleBasenameLocales.containsKey(bundle);
+    }
+
+    /**
+     * Returns the cached {@link MessageTemplate} without allocating any key object.
+     * @param bundle resource bundle
+     * @param code message code
+     * @param locale locale
+     * @return the cached {@link MessageTemplate}, {@link #MISSING} if known to be missing, or null if not cached yet
+     */
+    MessageTemplate get(final ResourceBundle bundle, final String code, final Locale locale) {
+        final MessageFormatCacheKey lookupKey = lookupKeys.get().set(bundle, code, locale);
+
+        try {
+            final FrequencySketch sketch = frequencySketch;
+
+            if (sketch != null) {
+                sketch.increment(frequencyHash(code, locale));
+            }
+
+            return cachedMessageFormats.get(lookupKey);
+        } finally {
+            lookupKey.clear();
+        }
+    }
+
+    /**
+     * Returns the cached {@link MessageTemplate}, or computes and caches it by {@code mappingFunction}
+     * if the {@code bundle} is registered. Concurrent callers only wait for each other when computing
+     * the same bundle, code and locale.
+     * @param bundle resource bundle
+     * @param code message code
+     * @param locale locale
+     * @param mappingFunction the function to create a {@link MessageTemplate}, which should return {@link #MISSING}
+     *        if not found
+     * @return the {@link MessageTemplate}, {@link #MISSING} if not found, or null if the bundle is not registered
+     */
+    MessageTemplate computeIfAbsent(final ResourceBundle bundle, final String code, final Locale locale,
+            final Function<MessageFormatCacheKey, MessageTemplate> mappingFunction) {
+        purgeCollectedBundles();
+
+        if (!isRegistered(bundle)) {
+            return null;
+        }
+
+        final MessageFormatCacheKey key = new MessageFormatCacheKey(bundle, code, locale, weakBundleReferences);
+        final MessageTemplate messageTemplate = cachedMessageFormats.computeIfAbsent(key, mappingFunction);
+
+        // The bundle might have been replaced in the meantime, so don't leave anything behind for it.
+        if (messageTemplate != null && !isRegistered(bundle)) {
+            cachedMessageFormats.remove(key);
+        }
+
+        evictIfNecessary();
+
+        return messageTemplate;
+    }
+
+    /**
+     * Records an access to the {@code code} of the {@code bundle} if the {@code bundle} is registered.
+     * @param bundle resource bundle
+     * @param code message code
+     */
+    void recordAccess(final ResourceBundle bundle, final String code) {
+        final KeyValue<String, Locale> basenameLocale = bundleBasenameLocales.get(bundle);
+
+        if (basenameLocale != null) {
+            accessCounters.record(basenameLocale, code);
+        }
+    }
+
+    /**
+     * Returns the message codes accessed in the bundles registered by the {@code basename} and {@code locale},
+     * including the outdated ones, most frequently accessed first.
+     * @param basename resource bundle basename
+     * @param locale resource bundle locale
+     * @return the message codes accessed in the bundles registered by the {@code basename} and {@code locale}
+     */
+    List<String> getHotCodes(final String basename, final Locale locale) {
+        return accessCounters.getHotCodes(new BasenameLocaleKey(basename, locale));
+    }
+
+    /**
+     * Returns the {@code limit} most frequently accessed message codes.
+     * @param limit the maximum number of the message codes to return
+     * @return the most frequently accessed message codes, most frequent first
+     */
+    List<MessageCodeAccessCount> getHotMessageCodes(final int limit) {
+        return accessCounters.getTopAccessCounts(limit);
+    }
+
+    /**
+     * Test purpose getter.
+     * @return cached message formats
+     */
+    ConcurrentMap<MessageFormatCacheKey, MessageTemplate> getCachedMessageFormats() {
+        return cachedMessageFormats;
+    }
+
+    /**
+     * Test purpose getter.
+     * @return bundle basename locales
+     */
+    Map<ResourceBundle, KeyValue<String, Locale>> getBundleBasenameLocales() {
+        return bundleBasenameLocales;
+    }
+
+    /**
+     * Test purpose getter.
+     * @return basename locale bundles
+     */
+    ConcurrentMap<KeyValue<String, Locale>, WeakReference<ResourceBundle>> getBasenameLocaleBundles() {
+        return basenameLocaleBundles;
+    }
+
+    /**
+     * Test purpose method.
+     * @param bundle resource bundle
+     * @return the number of the cached <code>MessageFormat</code>s of the {@code bundle}
+     */
+    int getMessageFormatCount(final ResourceBundle bundle) {
+        return getEntryCount(bundle, false);
+    }
+
+    /**
+     * Test purpose method.
+     * @param bundle resource bundle
+     * @return the number of the message codes of the {@code bundle} cached as missing
+     */
+    int getMissingCount(final ResourceBundle bundle) {
+        return getEntryCount(bundle, true);
+    }
+
+    private int getEntryCount(final ResourceBundle bundle, final boolean missing) {
+        int count = 0;
+
+        for (Map.Entry<MessageFormatCacheKey, MessageTemplate> entry : cachedMessageFormats.entrySet()) {
+            if (entry.getKey().getBundle() == bundle && (entry.getValue() == MISSING) == missing) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Evicts the least frequently used entries down to 90% of the limit if the cache has grown over the limit.
+     * If another thread is already evicting, this returns immediately.
+     */
+    private void evictIfNecessary() {
+        final int max = maxEntries;
+        final FrequencySketch sketch = frequencySketch;
+
+        if (max <= 0 || sketch == null || cachedMessageFormats.size() <= max) {
+            return;
+        }
+
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            int excess = cachedMessageFormats.size() - (max - max / 10);
+
+            if (excess <= 0) {
+                return;
+            }
+
+            // Bucket the keys by the estimated frequency, then evict from the least frequent bucket.
+            final List<List<MessageFormatCacheKey>> buckets =
+                    new ArrayList<List<MessageFormatCacheKey>>(FrequencySketch.MAX_FREQUENCY + 1);
+
+            for (int i = 0; i <= FrequencySketch.MAX_FREQUENCY; i++) {
+                buckets.add(new ArrayList<MessageFormatCacheKey>());
+            }
+
+            for (MessageFormatCacheKey key : cachedMessageFormats.keySet()) {
+                buckets.get(sketch.frequency(frequencyHash(key.getCode(), key.getLocale()))).add(key);
+            }
+
+            int evicted = 0;
+
+            for (List<MessageFormatCacheKey> bucket : buckets) {
+                if (evicted >= excess) {
+                    break;
+                }
+
+                for (MessageFormatCacheKey key : bucket) {
+                    if (evicted >= excess) {
+                        break;
+                    }
+
+                    if (cachedMessageFormats.remove(key) != null) {
+                        ++evicted;
+                    }
+                }
+            }
+
+            counters.recordEvictions(evicted);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Hash of the {@code code} and {@code locale} for the frequency sketch, which doesn't depend on bundle identity.
+     */
+    private static int frequencyHash(final String code, final Locale locale) {
+        return 31 * code.hashCode() + (locale != null ? locale.hashCode() : 0);
+    }
+
+    /**
+     * Points the {@code bundle} to another basename and locale by which it is still registered, if any.
+     * This scans all the registrations, which is fine as it is invoked only when a bundle is replaced.
+     * This must be invoked while holding the monitor of this cache.
+     * @param bundle resource bundle which is no longer registered by a basename and locale
+     * @return true if the {@code bundle} is still registered by another basename and locale
+     */
+    private boolean reregisterIfStillUsed(final ResourceBundle bundle) {
+        for (Map.Entry<KeyValue<String, Locale>, WeakReference<ResourceBundle>> entry : basenameLocaleBundles.entrySet()) {
+            if (entry.getValue().get() == bundle) {
+                bundleBasenameLocales.put(bundle, entry.getKey());
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes the registrations and the cached entries of the bundles garbage collected since the last purge.
+     * This polls the reference queue only, unless any bundle has been collected, in which case this scans all
+     * the registrations and keys, which is fine as bundles are collected only after they are replaced or not in use.
+     */
+    private void purgeCollectedBundles() {
+        if (collectedBundles == null || collectedBundles.poll() == null) {
+            return;
+        }
+
+        while (collectedBundles.poll() != null) {
+            // Drain the queue as all the collected bundles are purged at once.
+        }
+
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (this) {
+            counters.recordLockWait(lockStartNanos);
+
+            for (Iterator<WeakReference<ResourceBundle>> it = basenameLocaleBundles.values().iterator(); it.hasNext(); ) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+
+            for (Iterator<MessageFormatCacheKey> it = cachedMessageFormats.keySet().iterator(); it.hasNext(); ) {
+                if (it.next().getBundle() == null) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached <code>MessageFormat</code>s of the {@code bundle}.
+     * As the cache is flat, this scans all the keys, which is fine as bundles are replaced only on publication.
+     * @param bundle resource bundle
+     * @return the removed keys
+     */
+    private List<MessageFormatCacheKey> removeMessageFormats(final ResourceBundle bundle) {
+        final Set<ResourceBundle> bundles = Collections.newSetFromMap(new IdentityHashMap<ResourceBundle, Boolean>());
+        bundles.add(bundle);
+        return removeMessageFormats(bundles);
+    }
+
+    /**
+     * Removes all the cached <code>MessageFormat</code>s of the {@code bundles} in a single scan.
+     * @param bundles resource bundles compared by identity
+     * @return the removed keys
+     */
+    private List<MessageFormatCacheKey> removeMessageFormats(final Set<ResourceBundle> bundles) {
+        final List<MessageFormatCacheKey> removedKeys = new ArrayList<MessageFormatCacheKey>();
+
+        for (Iterator<MessageFormatCacheKey> it = cachedMessageFormats.keySet().iterator(); it.hasNext(); ) {
+            final MessageFormatCacheKey key = it.next();
+
+            if (bundles.contains(key.getBundle())) {
+                it.remove();
+                removedKeys.add(key);
+            }
+        }
+
+        return removedKeys;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a <code>MessageFormat</code> cache, reported through {@link RepositoryResourceBundleMessageFormatStatistics}.
+ * <p>
+ * The counters are {@link LongAdder}s, so that recording a cache hit doesn't make the threads contend
+ * on a single memory location.
+ * </p>
+ */
+class MessageFormatCacheCounters {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bundleRegistrations = new LongAdder();
+    private final LongAdder skippedBundleRegistrations = new LongAdder();
+    private final LongAdder bundleReplacements = new LongAdder();
+    private final LongAdder bundleInvalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder lockWaitTimeNanos = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordBundleRegistration(final boolean replaced) {
+        bundleRegistrations.increment();
+
+        if (replaced) {
+            bundleReplacements.increment();
+        }
+    }
+
+    void recordSkippedBundleRegistration() {
+        skippedBundleRegistrations.increment();
+    }
+
+    void recordBundleInvalidations(final int count) {
+        bundleInvalidations.add(count);
+    }
+
+    void recordEvictions(final int count) {
+        evictions.add(count);
+    }
+
+    /**
+     * Records the time waited for a lock since {@code startNanos}, taken by <code>System.nanoTime()</code>
+     * before trying to acquire the lock.
+     * @param startNanos <code>System.nanoTime()</code> before trying to acquire the lock
+     */
+    void recordLockWait(final long startNanos) {
+        lockWaitTimeNanos.add(System.nanoTime() - startNanos);
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    double getHitRatio() {
+        return ratio(getHitCount(), getMissCount());
+    }
+
+    double getMissRatio() {
+        return ratio(getMissCount(), getHitCount());
+    }
+
+    long getBundleRegistrationCount() {
+        return bundleRegistrations.sum();
+    }
+
+    long getSkippedBundleRegistrationCount() {
+        return skippedBundleRegistrations.sum();
+    }
+
+    long getBundleReplacementCount() {
+        return bundleReplacements.sum();
+    }
+
+    long getBundleInvalidationCount() {
+        return bundleInvalidations.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    long getLockWaitTimeNanos() {
+        return lockWaitTimeNanos.sum();
+    }
+
+    void reset() {
+        hits.reset();
+        misses.reset();
+        bundleRegistrations.reset();
+        skippedBundleRegistrations.reset();
+        bundleReplacements.reset();
+        bundleInvalidations.reset();
+        evictions.reset();
+        lockWaitTimeNanos.reset();
+    }
+
+    private static double ratio(final long count, final long otherCount) {
+        final long total = count + otherCount;
+        return (total > 0) ? (double) count / total : 0.0;
+    }
+}
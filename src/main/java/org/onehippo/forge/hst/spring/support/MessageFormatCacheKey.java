@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+/**
+ * Composite cache key of a <code>ResourceBundle</code> (by identity), a message code and a <code>Locale</code>.
+ * <p>
+ * The keys stored in a cache are never changed after construction. Only a lookup key, which is reused
+ * per thread by {@link MessageFormatCache} not to allocate a key on every lookup, is reset by {@link #set}.
+ * </p>
+ * <p>
+ * A key stored in a cache holding the bundles by weak references refers to the bundle by a <code>WeakReference</code>,
+ * so {@link #getBundle()} returns null once the bundle has been garbage collected, and the key is not equal to
+ * any lookup key any more.
+ * </p>
+ */
+final class MessageFormatCacheKey {
+
+    /**
+     * The bundle, or a <code>WeakReference</code> to the bundle.
+     */
+    private Object bundle;
+    private String code;
+    private Locale locale;
+    private int hash;
+
+    MessageFormatCacheKey() {
+    }
+
+    MessageFormatCacheKey(final ResourceBundle bundle, final String code, final Locale locale) {
+        set(bundle, code, locale);
+    }
+
+    MessageFormatCacheKey(final ResourceBundle bundle, final String code, final Locale locale,
+            final boolean weakBundleReference) {
+        set(bundle, code, locale);
+
+        if (weakBundleReference) {
+            this.bundle = new WeakReference<ResourceBundle>(bundle);
+        }
+    }
+
+    ResourceBundle getBundle() {
+        if (bundle instanceof Reference) {
+            return (ResourceBundle) ((Reference<?>) bundle).get();
+        }
+
+        return (ResourceBundle) bundle;
+    }
+
+    String getCode() {
+        return code;
+    }
+
+    Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     * Resets this key. This must be invoked only on a lookup key.
+     * @param bundle resource bundle
+     * @param code message code
+     * @param locale locale
+     * @return this key
+     */
+    MessageFormatCacheKey set(final ResourceBundle bundle, final String code, final Locale locale) {
+        this.bundle = bundle;
+        this.code = code;
+        this.locale = locale;
+        this.hash = (bundle != null) ? hashCode(bundle, code, locale) : 0;
+        return this;
+    }
+
+    /**
+     * Clears the references of a lookup key not to hold any outdated bundle in a thread.
+     */
+    void clear() {
+        set(null, null, null);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof MessageFormatCacheKey)) {
+            return false;
+        }
+
+        final MessageFormatCacheKey that = (MessageFormatCacheKey) o;
+
+        return hash == that.hash && getBundle() == that.getBundle() && code.equals(that.code)
+                && (locale != null ? locale.equals(that.locale) : that.locale == null);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageFormatCacheKey{bundle=" + getBundle() + ", code=" + code + ", locale=" + locale + "}";
+    }
+
+    private static int hashCode(final ResourceBundle bundle, final String code, final Locale locale) {
+        int result = System.identityHashCode(bundle);
+        result = 31 * result + code.hashCode();
+        result = 31 * result + (locale != null ? locale.hashCode() : 0);
+        return result;
+    }
+}
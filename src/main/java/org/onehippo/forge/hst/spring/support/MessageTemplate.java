@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Thread-safe, precompiled message pattern.
+ * <p>
+ * If the pattern contains only simple argument placeholders such as <code>{0}</code> (see {@link #isSimple()}),
+ * the pattern is parsed once into literal segments and argument slots by the same quoting rules as
+ * <code>java.text.MessageFormat</code>, and {@link #format(Object[])} renders it without any lock.
+ * Otherwise, for example with <code>{0,number}</code> or <code>{0,choice,...}</code>, it formats by
+ * a <code>java.text.MessageFormat</code>, synchronizing on it as <code>MessageFormat</code> is not thread-safe.
+ * </p>
+ */
+public final class MessageTemplate {
+
+    private static final int [] NO_SLOTS = new int[0];
+
+    private static final int MAX_ARGUMENT_INDEX_DIGITS = 9;
+
+    private final String pattern;
+
+    private final Locale locale;
+
+    /**
+     * All the literal segments concatenated, with the quotes resolved. Null if the pattern is not simple.
+     */
+    private final String literalText;
+
+    /**
+     * Pairs of the end offset in {@link #literalText} of the literal segment preceding each argument slot
+     * and the argument index of the slot. Null if the pattern is not simple.
+     */
+    private final int [] slots;
+
+    private volatile MessageFormat messageFormat;
+
+    private MessageTemplate(final String pattern, final Locale locale, final String literalText, final int [] slots) {
+        this.pattern = pattern;
+        this.locale = locale;
+        this.literalText = literalText;
+        this.slots = slots;
+    }
+
+    /**
+     * Compiles the message {@code pattern} for the {@code locale}.
+     * @param pattern message pattern
+     * @param locale locale
+     * @return compiled message template
+     */
+    public static MessageTemplate compile(final String pattern, final Locale locale) {
+        final int length = pattern.length();
+        final StringBuilder literal = new StringBuilder(length);
+        int [] slots = NO_SLOTS;
+        int slotsLength = 0;
+        boolean inQuote = false;
+
+        for (int i = 0; i < length; i++) {
+            final char ch = pattern.charAt(i);
+
+            if (ch == '\'') {
+                if (i + 1 < length && pattern.charAt(i + 1) == '\'') {
+                    literal.append(ch);
+                    ++i;
+                } else {
+                    inQuote = !inQuote;
+                }
+            } else if (ch == '{' && !inQuote) {
+                final int end = pattern.indexOf('}', i + 1);
+                final int argumentIndex = (end != -1) ? parseArgumentIndex(pattern, i + 1, end) : -1;
+
+                if (argumentIndex < 0) {
+                    // Not a simple placeholder, so leave it to MessageFormat.
+                    return new MessageTemplate(pattern, locale, null, null);
+                }
+
+                if (slotsLength == slots.length) {
+                    slots = Arrays.copyOf(slots, Math.max(4, slotsLength * 2));
+                }
+
+                slots[slotsLength++] = literal.length();
+                slots[slotsLength++] = argumentIndex;
+                i = end;
+            } else {
+                literal.append(ch);
+            }
+        }
+
+        if (slotsLength == 0) {
+            // Share the pattern string itself if there's nothing to unquote.
+            final String literalText = (literal.length() == length) ? pattern : literal.toString();
+            return new MessageTemplate(pattern, locale, literalText, NO_SLOTS);
+        }
+
+        return new MessageTemplate(pattern, locale, literal.toString(), Arrays.copyOf(slots, slotsLength));
+    }
+
+    /**
+     * Returns the message pattern.
+     * @return the message pattern
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the locale.
+     * @return the locale
+     */
+    public Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     * Returns true if the pattern contains only simple argument placeholders such as <code>{0}</code>,
+     * so it can be formatted without <code>MessageFormat</code>.
+     * @return true if the pattern contains only simple argument placeholders
+     */
+    public boolean isSimple() {
+        return literalText != null;
+    }
+
+    /**
+     * Formats the {@code args} by this template in the same way as <code>MessageFormat#format(Object)</code>.
+     * @param args arguments
+     * @return formatted message
+     */
+    public String format(final Object [] args) {
+        if (!isSimple()) {
+            final MessageFormat messageFormat = getMessageFormat();
+
+            synchronized (messageFormat) {
+                return messageFormat.format(args);
+            }
+        }
+
+        if (slots.length == 0) {
+            return literalText;
+        }
+
+        final StringBuilder sb = new StringBuilder(literalText.length() + 8 * slots.length);
+        int start = 0;
+
+        for (int i = 0; i < slots.length; i += 2) {
+            sb.append(literalText, start, slots[i]);
+            appendArgument(sb, slots[i + 1], args);
+            start = slots[i];
+        }
+
+        sb.append(literalText, start, literalText.length());
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the <code>MessageFormat</code> of the pattern, created lazily once.
+     * The returned <code>MessageFormat</code> is not thread-safe, so the caller should synchronize on it when formatting.
+     * @return the <code>MessageFormat</code> of the pattern
+     */
+    public MessageFormat getMessageFormat() {
+        MessageFormat result = messageFormat;
+
+        if (result == null) {
+            synchronized (this) {
+                result = messageFormat;
+
+                if (result == null) {
+                    result = new MessageFormat(pattern, locale);
+                    messageFormat = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private void appendArgument(final StringBuilder sb, final int argumentIndex, final Object [] args) {
+        if (args == null || argumentIndex >= args.length) {
+            sb.append('{').append(argumentIndex).append('}');
+            return;
+        }
+
+        final Object arg = args[argumentIndex];
+
+        if (arg == null) {
+            sb.append("null");
+        } else if (arg instanceof String) {
+            sb.append((String) arg);
+        } else if (arg instanceof Number) {
+            // NumberFormat#getInstance returns a new instance, so no need to synchronize on it.
+            sb.append(NumberFormat.getInstance(getFormatLocale()).format(arg));
+        } else if (arg instanceof Date) {
+            sb.append(DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, getFormatLocale()).format(arg));
+        } else {
+            final String str = arg.toString();
+            sb.append(str != null ? str : "null");
+        }
+    }
+
+    private Locale getFormatLocale() {
+        return (locale != null) ? locale : Locale.getDefault(Locale.Category.FORMAT);
+    }
+
+    /**
+     * Parses the simple argument index between {@code begin} and {@code end}.
+     * @return the argument index or -1 if it is not a simple argument index
+     */
+    private static int parseArgumentIndex(final String pattern, final int begin, final int end) {
+        if (begin == end || end - begin > MAX_ARGUMENT_INDEX_DIGITS) {
+            return -1;
+        }
+
+        int index = 0;
+
+        for (int i = begin; i < end; i++) {
+            final char ch = pattern.charAt(i);
+
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+
+            index = index * 10 + (ch - '0');
+        }
+
+        return index;
+    }
+}
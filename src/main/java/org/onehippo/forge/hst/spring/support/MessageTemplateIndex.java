@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable index of all the messages of a resource bundle compiled into {@link MessageTemplate}s,
+ * used by {@link SnapshotRepositoryResourceBundleMessageFormatProvider}.
+ * <p>
+ * The message codes and templates are kept in two parallel arrays as an open addressing hash table,
+ * so a lookup is a plain array probe without any lock, allocation or write to shared state.
+ * The <code>MessageFormat</code>s of the messages which are not simple are created while building the index
+ * as well, so nothing is parsed lazily on lookups.
+ * </p>
+ */
+class MessageTemplateIndex {
+
+    private static Logger log = LoggerFactory.getLogger(MessageTemplateIndex.class);
+
+    private final String basename;
+
+    private final Locale locale;
+
+    private final ResourceBundle bundle;
+
+    private final String [] codes;
+
+    private final MessageTemplate [] templates;
+
+    private final int size;
+
+    private MessageTemplateIndex(final String basename, final Locale locale, final ResourceBundle bundle,
+            final String [] codes, final MessageTemplate [] templates, final int size) {
+        this.basename = basename;
+        this.locale = locale;
+        this.bundle = bundle;
+        this.codes = codes;
+        this.templates = templates;
+        this.size = size;
+    }
+
+    /**
+     * Compiles all the messages of the {@code bundle} for the {@code locale} into an index.
+     * Messages which are not strings or not valid message patterns are left out of the index.
+     * @param basename basename by which the bundle is registered
+     * @param locale locale by which the bundle is registered
+     * @param bundle resource bundle
+     * @param templatePool pool to intern the compiled templates
+     * @return the index of the compiled messages of the {@code bundle}
+     */
+    static MessageTemplateIndex build(final String basename, final Locale locale, final ResourceBundle bundle,
+            final MessageTemplatePool templatePool) {
+        final Set<String> keys = bundle.keySet();
+        int capacity = 2;
+
+        // Keep the load factor at or under 0.5, so a probe sequence is short.
+        while (capacity < keys.size() * 2) {
+            capacity <<= 1;
+        }
+
+        final String [] codes = new String[capacity];
+        final MessageTemplate [] templates = new MessageTemplate[capacity];
+        final int mask = capacity - 1;
+        int size = 0;
+
+        for (String code : keys) {
+            final MessageTemplate template = compile(basename, bundle, code, locale, templatePool);
+
+            if (template == null) {
+                continue;
+            }
+
+            int index = spread(code.hashCode()) & mask;
+
+            while (codes[index] != null) {
+                index = (index + 1) & mask;
+            }
+
+            codes[index] = code;
+            templates[index] = template;
+            ++size;
+        }
+
+        return new MessageTemplateIndex(basename, locale, bundle, codes, templates, size);
+    }
+
+    /**
+     * Returns the compiled template of the message {@code code}, or null if the bundle has no such message.
+     * @param code message code
+     * @return the compiled template of the message {@code code}, or null if the bundle has no such message
+     */
+    MessageTemplate get(final String code) {
+        final int mask = codes.length - 1;
+        int index = spread(code.hashCode()) & mask;
+        String indexedCode;
+
+        while ((indexedCode = codes[index]) != null) {
+            if (indexedCode.equals(code)) {
+                return templates[index];
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    String getBasename() {
+        return basename;
+    }
+
+    Locale getLocale() {
+        return locale;
+    }
+
+    ResourceBundle getBundle() {
+        return bundle;
+    }
+
+    /**
+     * Returns the number of the compiled messages.
+     * @return the number of the compiled messages
+     */
+    int size() {
+        return size;
+    }
+
+    private static MessageTemplate compile(final String basename, final ResourceBundle bundle, final String code,
+            final Locale locale, final MessageTemplatePool templatePool) {
+        final Object msg;
+
+        try {
+            msg = bundle.getObject(code);
+        } catch (MissingResourceException e) {
+            return null;
+        }
+
+        if (!(msg instanceof String)) {
+            return null;
+        }
+
+        final MessageTemplate template = templatePool.intern((String) msg, locale);
+
+        if (!template.isSimple()) {
+            try {
+                template.getMessageFormat();
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid message pattern of '{}' in the resource bundle, '{}' ({}). {}", code, basename,
+                        locale, e.toString());
+                return null;
+            }
+        }
+
+        return template;
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hippoecm.hst.util.DefaultKeyValue;
+import org.hippoecm.hst.util.KeyValue;
+
+/**
+ * Pool of {@link MessageTemplate}s compiled by pattern and locale, shared by the live and preview caches
+ * of {@link ConcurrentCachingRepositoryResourceBundleMessageFormatProvider}.
+ * <p>
+ * The same message pattern in the live and preview bundles, or in the bundles of multiple basenames,
+ * is compiled only once and the caches refer to the same {@link MessageTemplate}.
+ * The pool holds the templates by weak references, so a template is released once no cache refers to it any more,
+ * e.g. after its bundle was replaced, and the mapping is removed through a {@link ReferenceQueue}.
+ * </p>
+ * <p>
+ * The pool is used only when compiling a message on a cache miss, so it doesn't cost anything on a cache hit.
+ * </p>
+ */
+class MessageTemplatePool {
+
+    private final ConcurrentMap<KeyValue<String, Locale>, TemplateReference> templates =
+            new ConcurrentHashMap<KeyValue<String, Locale>, TemplateReference>();
+
+    private final ReferenceQueue<MessageTemplate> queue = new ReferenceQueue<MessageTemplate>();
+
+    /**
+     * Returns the pooled {@link MessageTemplate} of the {@code pattern} and {@code locale},
+     * or compiles and pools it if not pooled yet.
+     * @param pattern message pattern
+     * @param locale locale
+     * @return the pooled {@link MessageTemplate}
+     */
+    MessageTemplate intern(final String pattern, final Locale locale) {
+        expungeStaleEntries();
+
+        final KeyValue<String, Locale> key = new DefaultKeyValue<String, Locale>(pattern, locale);
+        MessageTemplate compiled = null;
+
+        while (true) {
+            final TemplateReference ref = templates.get(key);
+            final MessageTemplate pooled = (ref != null) ? ref.get() : null;
+
+            if (pooled != null) {
+                return pooled;
+            }
+
+            if (compiled == null) {
+                compiled = MessageTemplate.compile(pattern, locale);
+            }
+
+            final TemplateReference newRef = new TemplateReference(key, compiled, queue);
+
+            if ((ref == null) ? templates.putIfAbsent(key, newRef) == null : templates.replace(key, ref, newRef)) {
+                return compiled;
+            }
+
+            // Another thread has pooled it in the meantime, so retry with that one.
+        }
+    }
+
+    /**
+     * Returns the number of the pooled templates, including the ones cleared but not removed yet.
+     * @return the number of the pooled templates
+     */
+    int size() {
+        expungeStaleEntries();
+        return templates.size();
+    }
+
+    private void expungeStaleEntries() {
+        TemplateReference ref;
+
+        while ((ref = (TemplateReference) queue.poll()) != null) {
+            templates.remove(ref.key, ref);
+        }
+    }
+
+    private static class TemplateReference extends WeakReference<MessageTemplate> {
+
+        private final KeyValue<String, Locale> key;
+
+        private TemplateReference(final KeyValue<String, Locale> key, final MessageTemplate template,
+                final ReferenceQueue<MessageTemplate> queue) {
+            super(template, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+/**
+ * Listener to be notified of the changes of repository resource bundles by a {@link RepositoryResourceBundleChangeNotifier}.
+ * <p>
+ * A {@link RepositoryResourceBundleMessageFormatProvider} implementing this interface removes the outdated bundles
+ * and their cached <code>MessageFormat</code>s as soon as it is notified, instead of waiting until a refreshed bundle
+ * is registered by the same basename and locale, which might never happen for a locale nobody requests any more.
+ * </p>
+ */
+public interface RepositoryResourceBundleChangeListener {
+
+    /**
+     * Invoked when the live or preview resource bundles of the {@code basename} have changed in the repository.
+     * <p>
+     * Note: The bundles of all the locales registered by the {@code basename}, both live and preview,
+     *       should be regarded as outdated, and the refreshed bundles will be registered again when requested.
+     * </p>
+     * @param basename resource bundle basename
+     */
+    public void onResourceBundleChanged(String basename);
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+/**
+ * Source of repository resource bundle change events, notifying {@link RepositoryResourceBundleChangeListener}s.
+ * <p>
+ * HST-2 doesn't expose the changes of the resource bundles in its <code>ResourceBundleRegistry</code>,
+ * so an implementation is expected to be driven by the application, for example by a JCR event listener
+ * on the resource bundle documents. See {@link DefaultRepositoryResourceBundleChangeNotifier}.
+ * </p>
+ */
+public interface RepositoryResourceBundleChangeNotifier {
+
+    /**
+     * Adds the {@code listener} to be notified of the resource bundle changes.
+     * @param listener resource bundle change listener
+     */
+    public void addListener(RepositoryResourceBundleChangeListener listener);
+
+    /**
+     * Removes the {@code listener} not to be notified any more.
+     * @param listener resource bundle change listener
+     */
+    public void removeListener(RepositoryResourceBundleChangeListener listener);
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.List;
+
+/**
+ * Access counts per message code of a {@link RepositoryResourceBundleMessageFormatProvider} counting the accesses.
+ * <p>
+ * This is optional for a provider, so check whether the provider implements this interface before asking
+ * for the hot message codes.
+ * </p>
+ */
+public interface RepositoryResourceBundleMessageCodeAccessStatistics {
+
+    /**
+     * Return the {@code limit} most frequently accessed message codes of the live bundles, most frequent first.
+     * <p>
+     * The accesses are counted per basename, locale and message code, so the counts survive bundle refreshes.
+     * </p>
+     * @param limit the maximum number of the message codes to return
+     * @return the most frequently accessed message codes of the live bundles
+     */
+    public List<MessageCodeAccessCount> getHotMessageCodes(int limit);
+
+    /**
+     * Return the {@code limit} most frequently accessed message codes of the preview bundles, most frequent first.
+     * <p>
+     * The accesses are counted per basename, locale and message code, so the counts survive bundle refreshes.
+     * </p>
+     * @param limit the maximum number of the message codes to return
+     * @return the most frequently accessed message codes of the preview bundles
+     */
+    public List<MessageCodeAccessCount> getHotPreviewMessageCodes(int limit);
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.Map;
+
+import javax.management.MXBean;
+
+/**
+ * Statistics of the <code>MessageFormat</code> cache of a {@link RepositoryResourceBundleMessageFormatProvider}.
+ * <p>
+ * This is an MXBean interface, so a provider implementing it can be registered in an <code>MBeanServer</code>
+ * as it is, for example by Spring Framework's <code>MBeanExporter</code>.
+ * </p>
+ */
+@MXBean
+public interface RepositoryResourceBundleMessageFormatStatistics {
+
+    /**
+     * Returns the number of the lookups served from the cache, including message codes cached as missing.
+     * @return the number of the lookups served from the cache
+     */
+    long getHitCount();
+
+    /**
+     * Returns the number of the lookups which had to look up the resource bundle.
+     * @return the number of the lookups which had to look up the resource bundle
+     */
+    long getMissCount();
+
+    /**
+     * Returns the ratio of the hits to all the lookups, or zero if nothing has been looked up.
+     * @return the ratio of the hits to all the lookups
+     */
+    double getHitRatio();
+
+    /**
+     * Returns the ratio of the misses to all the lookups, or zero if nothing has been looked up.
+     * @return the ratio of the misses to all the lookups
+     */
+    double getMissRatio();
+
+    /**
+     * Returns the number of the registered live resource bundles.
+     * @return the number of the registered live resource bundles
+     */
+    int getLiveBundleCount();
+
+    /**
+     * Returns the number of the registered preview resource bundles.
+     * @return the number of the registered preview resource bundles
+     */
+    int getPreviewBundleCount();
+
+    /**
+     * Returns the number of the cached live entries, including message codes cached as missing.
+     * @return the number of the cached live entries
+     */
+    int getLiveEntryCount();
+
+    /**
+     * Returns the number of the cached preview entries, including message codes cached as missing.
+     * @return the number of the cached preview entries
+     */
+    int getPreviewEntryCount();
+
+    /**
+     * Returns the number of the cached live entries per resource bundle, keyed by <code>basename:locale</code>.
+     * The basename of the default resource bundle of the <code>LocalizationContext</code> is empty.
+     * @return the number of the cached live entries per resource bundle
+     */
+    Map<String, Integer> getLiveEntryCountsPerBundle();
+
+    /**
+     * Returns the number of the cached preview entries per resource bundle, keyed by <code>basename:locale</code>.
+     * The basename of the default resource bundle of the <code>LocalizationContext</code> is empty.
+     * @return the number of the cached preview entries per resource bundle
+     */
+    Map<String, Integer> getPreviewEntryCountsPerBundle();
+
+    /**
+     * Returns the number of the bundle registrations which actually registered a new or refreshed bundle.
+     * @return the number of the bundle registrations which actually registered a new or refreshed bundle
+     */
+    long getBundleRegistrationCount();
+
+    /**
+     * Returns the number of the bundle registrations skipped as the same bundle had already been registered.
+     * @return the number of the bundle registrations skipped as the same bundle had already been registered
+     */
+    long getSkippedBundleRegistrationCount();
+
+    /**
+     * Returns the number of the outdated bundles replaced by refreshed bundles.
+     * @return the number of the outdated bundles replaced by refreshed bundles
+     */
+    long getBundleReplacementCount();
+
+    /**
+     * Returns the number of the bundles unregistered on resource bundle change notifications.
+     * @return the number of the bundles unregistered on resource bundle change notifications
+     */
+    long getBundleInvalidationCount();
+
+    /**
+     * Returns the number of the entries evicted as the cache was full.
+     * @return the number of the entries evicted as the cache was full
+     */
+    long getEvictionCount();
+
+    /**
+     * Returns the total time in nanoseconds which threads have spent waiting for the cache locks.
+     * @return the total time in nanoseconds which threads have spent waiting for the cache locks
+     */
+    long getLockWaitTimeNanos();
+
+    /**
+     * Resets all the counters to zero. The cached entries are not affected.
+     */
+    void resetStatistics();
+
+}
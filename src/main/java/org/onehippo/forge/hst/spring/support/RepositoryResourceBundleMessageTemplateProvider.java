@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+/**
+ * {@link RepositoryResourceBundleMessageFormatProvider} which provides precompiled {@link MessageTemplate}s as well.
+ * <p>
+ * If the provider set to {@link HstRepositoryResourceBundleMessageSource} implements this interface,
+ * the message source formats messages by {@link MessageTemplate}s without synchronizing on <code>MessageFormat</code>s.
+ * </p>
+ */
+public interface RepositoryResourceBundleMessageTemplateProvider extends RepositoryResourceBundleMessageFormatProvider {
+
+    /**
+     * Return a MessageTemplate for the given bundle and code,
+     * fetching already compiled MessageTemplates from the cache.
+     * @param bundle the ResourceBundle to work on
+     * @param code the message code to retrieve
+     * @param locale the Locale to use to build the MessageTemplate
+     * @return the resulting MessageTemplate, or {@code null} if no message
+     * defined for the given code or the bundle was not registered
+     */
+    public MessageTemplate getMessageTemplate(ResourceBundle bundle, String code, Locale locale);
+
+}
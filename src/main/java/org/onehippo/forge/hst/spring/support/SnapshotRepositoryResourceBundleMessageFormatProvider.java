@@ -0,0 +1,467 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import org.hippoecm.hst.container.RequestContextProvider;
+import org.hippoecm.hst.core.request.HstRequestContext;
+import org.hippoecm.hst.util.KeyValue;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * {@link RepositoryResourceBundleMessageFormatProvider} implementation compiling all the messages of a bundle
+ * into an immutable {@link MessageTemplateIndex} as soon as the bundle is registered.
+ * Also, it maintain the indexes separately based on preview/live request context.
+ * <p>
+ * The indexes of all the registered bundles are held in an immutable snapshot. Registering a new or refreshed bundle
+ * builds its index, copies the snapshot with the new index and publishes it by a single volatile write.
+ * Looking up a message is a volatile read of the snapshot followed by plain lookups in immutable structures,
+ * without any lock, lazy parsing or write to shared state, so it scales with the number of threads.
+ * </p>
+ * <p>
+ * The same bundle may be registered by more than one basename and locale, e.g. when the
+ * <code>ResourceBundleRegistry</code> falls back to the same bundle for several locales. An index is compiled
+ * per bundle and locale, and shared by all the basenames registering the bundle for the locale.
+ * </p>
+ * <p>
+ * This provider suits the sites where the resource bundles change rarely, as each bundle registration compiles
+ * the whole bundle and copies the snapshot. As lookups don't write anything, the hit and miss counts
+ * and the message code access counts are not recorded by this provider.
+ * </p>
+ * <p>
+ * The cache statistics are available through {@link RepositoryResourceBundleMessageFormatStatistics},
+ * which this provider implements as an MXBean.
+ * </p>
+ */
+public class SnapshotRepositoryResourceBundleMessageFormatProvider
+        implements RepositoryResourceBundleMessageTemplateProvider, RepositoryResourceBundleChangeListener,
+        RepositoryResourceBundleMessageFormatStatistics {
+
+    /**
+     * Counters shared by the live and preview snapshots.
+     */
+    private final MessageFormatCacheCounters counters = new MessageFormatCacheCounters();
+
+    /**
+     * Pool of the compiled templates shared by the live and preview snapshots.
+     */
+    private final MessageTemplatePool templatePool = new MessageTemplatePool();
+
+    /**
+     * Indexes of the live bundles.
+     */
+    private final SnapshotHolder liveSnapshotHolder = new SnapshotHolder();
+
+    /**
+     * Indexes of the preview bundles.
+     */
+    private final SnapshotHolder previewSnapshotHolder = new SnapshotHolder();
+
+    private static final ThreadLocal<BasenameLocaleKey> lookupKeys = new ThreadLocal<BasenameLocaleKey>() {
+        @Override
+        protected BasenameLocaleKey initialValue() {
+            return new BasenameLocaleKey();
+        }
+    };
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Lookups are not counted by this provider, not to write shared state on every lookup.
+     * </p>
+     */
+    @Override
+    public long getHitCount() {
+        return counters.getHitCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Lookups are not counted by this provider, not to write shared state on every lookup.
+     * </p>
+     */
+    @Override
+    public long getMissCount() {
+        return counters.getMissCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getHitRatio() {
+        return counters.getHitRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMissRatio() {
+        return counters.getMissRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLiveBundleCount() {
+        return liveSnapshotHolder.snapshot.bundleIndexes.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPreviewBundleCount() {
+        return previewSnapshotHolder.snapshot.bundleIndexes.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Missing message codes are not counted as the indexes hold only the existing messages.
+     * </p>
+     */
+    @Override
+    public int getLiveEntryCount() {
+        return getEntryCount(liveSnapshotHolder.snapshot);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Missing message codes are not counted as the indexes hold only the existing messages.
+     * </p>
+     */
+    @Override
+    public int getPreviewEntryCount() {
+        return getEntryCount(previewSnapshotHolder.snapshot);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getLiveEntryCountsPerBundle() {
+        return getEntryCountsPerBundle(liveSnapshotHolder.snapshot);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getPreviewEntryCountsPerBundle() {
+        return getEntryCountsPerBundle(previewSnapshotHolder.snapshot);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Live and preview bundle registrations are counted together.
+     * </p>
+     */
+    @Override
+    public long getBundleRegistrationCount() {
+        return counters.getBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Such registrations are skipped without any lock or allocation.
+     * </p>
+     */
+    @Override
+    public long getSkippedBundleRegistrationCount() {
+        return counters.getSkippedBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleReplacementCount() {
+        return counters.getBundleReplacementCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleInvalidationCount() {
+        return counters.getBundleInvalidationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Nothing is evicted by this provider.
+     * </p>
+     */
+    @Override
+    public long getEvictionCount() {
+        return counters.getEvictionCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only publishing a new snapshot takes a lock in this provider.
+     * </p>
+     */
+    @Override
+    public long getLockWaitTimeNanos() {
+        return counters.getLockWaitTimeNanos();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetStatistics() {
+        counters.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerBundle(String basename, Locale locale, ResourceBundle bundle) {
+        registerBundle(liveSnapshotHolder, basename, locale, bundle);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerPreviewBundle(String basename, Locale locale, ResourceBundle bundle) {
+        registerBundle(previewSnapshotHolder, basename, locale, bundle);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageFormat getMessageFormat(final ResourceBundle bundle, final String code, final Locale locale) {
+        final MessageTemplate messageTemplate = getMessageTemplate(bundle, code, locale);
+        return (messageTemplate != null) ? messageTemplate.getMessageFormat() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageTemplate getMessageTemplate(final ResourceBundle bundle, final String code, final Locale locale) {
+        final HstRequestContext requestContext = RequestContextProvider.get();
+        final boolean preview = requestContext != null && requestContext.isPreview();
+        final Snapshot snapshot = (preview) ? previewSnapshotHolder.snapshot : liveSnapshotHolder.snapshot;
+
+        // An index is compiled for each locale by which the bundle is registered, which is the requested one in practice.
+        final MessageTemplateIndex index = snapshot.getIndex(bundle, locale);
+        return (index != null) ? index.get(code) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onResourceBundleChanged(final String basename) {
+        unregisterBundles(liveSnapshotHolder, basename);
+        unregisterBundles(previewSnapshotHolder, basename);
+    }
+
+    /**
+     * Test purpose getter.
+     * @param preview whether to return the index of a preview bundle
+     * @param bundle resource bundle
+     * @param locale locale
+     * @return the index of the {@code bundle} registered for the {@code locale}, or null if not registered
+     */
+    MessageTemplateIndex getMessageTemplateIndex(final boolean preview, final ResourceBundle bundle, final Locale locale) {
+        return ((preview) ? previewSnapshotHolder : liveSnapshotHolder).snapshot.getIndex(bundle, locale);
+    }
+
+    private void registerBundle(final SnapshotHolder holder, final String basename, final Locale locale,
+            final ResourceBundle bundle) {
+        // Lock-free and allocation-free check for the most common case where the bundle has not been changed,
+        // which holds even if the same bundle is registered by more than one basename and locale.
+        final Snapshot currentSnapshot = holder.snapshot;
+        final BasenameLocaleKey lookupKey = lookupKeys.get().set(basename, locale);
+        final MessageTemplateIndex registeredIndex;
+
+        try {
+            registeredIndex = currentSnapshot.basenameLocaleIndexes.get(lookupKey);
+        } finally {
+            lookupKey.clear();
+        }
+
+        if (registeredIndex != null && registeredIndex.getBundle() == bundle) {
+            counters.recordSkippedBundleRegistration();
+            return;
+        }
+
+        // Reuse the index of the bundle if already registered by another basename for the locale.
+        // Otherwise, compile the bundle before taking the lock, not to block the other registrations meanwhile.
+        MessageTemplateIndex index = currentSnapshot.getIndex(bundle, locale);
+
+        if (index == null) {
+            index = MessageTemplateIndex.build(basename, locale, bundle, templatePool);
+        }
+
+        final KeyValue<String, Locale> pair = new BasenameLocaleKey(basename, locale);
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (holder) {
+            counters.recordLockWait(lockStartNanos);
+
+            final Snapshot snapshot = holder.snapshot;
+            final MessageTemplateIndex oldIndex = snapshot.basenameLocaleIndexes.get(pair);
+
+            if (oldIndex != null && oldIndex.getBundle() == bundle) {
+                counters.recordSkippedBundleRegistration();
+                return;
+            }
+
+            // The outdated bundle is left out of the new snapshot unless still registered by another basename or locale.
+            final Map<KeyValue<String, Locale>, MessageTemplateIndex> basenameLocaleIndexes =
+                    new HashMap<KeyValue<String, Locale>, MessageTemplateIndex>(snapshot.basenameLocaleIndexes);
+            basenameLocaleIndexes.put(pair, index);
+            holder.snapshot = new Snapshot(basenameLocaleIndexes);
+
+            counters.recordBundleRegistration(oldIndex != null);
+        }
+    }
+
+    private void unregisterBundles(final SnapshotHolder holder, final String basename) {
+        int count = 0;
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (holder) {
+            counters.recordLockWait(lockStartNanos);
+
+            final Snapshot snapshot = holder.snapshot;
+            final Map<KeyValue<String, Locale>, MessageTemplateIndex> basenameLocaleIndexes =
+                    new HashMap<KeyValue<String, Locale>, MessageTemplateIndex>();
+
+            for (Map.Entry<KeyValue<String, Locale>, MessageTemplateIndex> entry : snapshot.basenameLocaleIndexes.entrySet()) {
+                if (ObjectUtils.nullSafeEquals(entry.getKey().getKey(), basename)) {
+                    ++count;
+                } else {
+                    basenameLocaleIndexes.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            if (count > 0) {
+                holder.snapshot = new Snapshot(basenameLocaleIndexes);
+            }
+        }
+
+        counters.recordBundleInvalidations(count);
+    }
+
+    private static int getEntryCount(final Snapshot snapshot) {
+        int count = 0;
+
+        for (MessageTemplateIndex [] indexes : snapshot.bundleIndexes.values()) {
+            for (MessageTemplateIndex index : indexes) {
+                count += index.size();
+            }
+        }
+
+        return count;
+    }
+
+    private static Map<String, Integer> getEntryCountsPerBundle(final Snapshot snapshot) {
+        final Map<String, Integer> entryCounts = new HashMap<String, Integer>();
+
+        for (Map.Entry<KeyValue<String, Locale>, MessageTemplateIndex> entry : snapshot.basenameLocaleIndexes.entrySet()) {
+            entryCounts.put(entry.getKey().getKey() + ":" + entry.getKey().getValue(), entry.getValue().size());
+        }
+
+        return entryCounts;
+    }
+
+    /**
+     * Holder of the current snapshot of either the live or preview bundles, which is also the lock
+     * serializing the publications of new snapshots.
+     */
+    private static class SnapshotHolder {
+
+        private volatile Snapshot snapshot =
+                new Snapshot(Collections.<KeyValue<String, Locale>, MessageTemplateIndex>emptyMap());
+    }
+
+    /**
+     * Immutable snapshot of the indexes of the registered bundles. The maps are never modified once published.
+     */
+    private static class Snapshot {
+
+        /**
+         * Indexes per bundle, one for each distinct locale by which the bundle is registered.
+         */
+        private final Map<ResourceBundle, MessageTemplateIndex []> bundleIndexes;
+
+        /**
+         * Indexes per basename and locale, keyed by {@link BasenameLocaleKey}s only.
+         */
+        private final Map<KeyValue<String, Locale>, MessageTemplateIndex> basenameLocaleIndexes;
+
+        private Snapshot(final Map<KeyValue<String, Locale>, MessageTemplateIndex> basenameLocaleIndexes) {
+            this.basenameLocaleIndexes = basenameLocaleIndexes;
+            this.bundleIndexes = new IdentityHashMap<ResourceBundle, MessageTemplateIndex []>();
+
+            for (MessageTemplateIndex index : basenameLocaleIndexes.values()) {
+                final MessageTemplateIndex [] indexes = bundleIndexes.get(index.getBundle());
+
+                if (indexes == null) {
+                    bundleIndexes.put(index.getBundle(), new MessageTemplateIndex [] { index });
+                } else if (getIndex(indexes, index.getLocale()) == null) {
+                    final MessageTemplateIndex [] newIndexes = Arrays.copyOf(indexes, indexes.length + 1);
+                    newIndexes[indexes.length] = index;
+                    bundleIndexes.put(index.getBundle(), newIndexes);
+                }
+            }
+        }
+
+        /**
+         * Returns the index of the {@code bundle} for the {@code locale} without allocating anything.
+         */
+        private MessageTemplateIndex getIndex(final ResourceBundle bundle, final Locale locale) {
+            final MessageTemplateIndex [] indexes = bundleIndexes.get(bundle);
+            return (indexes != null) ? getIndex(indexes, locale) : null;
+        }
+
+        private static MessageTemplateIndex getIndex(final MessageTemplateIndex [] indexes, final Locale locale) {
+            for (MessageTemplateIndex index : indexes) {
+                if (ObjectUtils.nullSafeEquals(index.getLocale(), locale)) {
+                    return index;
+                }
+            }
+
+            return null;
+        }
+    }
+}
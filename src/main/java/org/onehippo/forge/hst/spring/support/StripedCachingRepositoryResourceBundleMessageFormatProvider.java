@@ -0,0 +1,549 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hippoecm.hst.container.RequestContextProvider;
+import org.hippoecm.hst.core.request.HstRequestContext;
+import org.hippoecm.hst.util.DefaultKeyValue;
+import org.hippoecm.hst.util.KeyValue;
+import org.springframework.context.support.MessageSourceSupport;
+import org.springframework.util.ObjectUtils;
+
+/**
+ * {@link RepositoryResourceBundleMessageFormatProvider} implementation caching <code>MessageFormat</code>s
+ * in the same nested maps as {@link CachingRepositoryResourceBundleMessageFormatProvider}, but guarded by
+ * striped locks instead of a single lock for all the live bundles and another for all the preview bundles.
+ * <p>
+ * Each bundle belongs to a stripe by the hash of the basename and locale by which it is registered,
+ * so that the requests looking up messages in bundles of different basenames or locales rarely contend
+ * with each other, while the lookups of the same bundle are still serialized.
+ * The number of stripes is rounded up to a power of two, and is 16 by default.
+ * </p>
+ * <p>
+ * Use this provider instead of {@link CachingRepositoryResourceBundleMessageFormatProvider} if you need
+ * the <code>MessageFormat</code> based caching but the single lock is contended.
+ * {@link ConcurrentCachingRepositoryResourceBundleMessageFormatProvider} doesn't take any lock on cache hits at all.
+ * </p>
+ * <p>
+ * The cache statistics are available through {@link RepositoryResourceBundleMessageFormatStatistics},
+ * which this provider implements as an MXBean.
+ * </p>
+ */
+public class StripedCachingRepositoryResourceBundleMessageFormatProvider extends MessageSourceSupport
+        implements RepositoryResourceBundleMessageFormatProvider, RepositoryResourceBundleChangeListener,
+        RepositoryResourceBundleMessageFormatStatistics, RepositoryResourceBundleMessageCodeAccessStatistics {
+
+    /**
+     * The default number of the lock stripes.
+     */
+    public static final int DEFAULT_LOCK_STRIPES = 16;
+
+    private static final int MAX_LOCK_STRIPES = 1 << 16;
+
+    /**
+     * Counters shared by the live and preview caches.
+     */
+    private final MessageFormatCacheCounters counters = new MessageFormatCacheCounters();
+
+    /**
+     * Striped cache of the live bundles.
+     */
+    private final StripedCache liveCache;
+
+    /**
+     * Striped cache of the preview bundles.
+     */
+    private final StripedCache previewCache;
+
+    /**
+     * Constructs a provider with {@link #DEFAULT_LOCK_STRIPES} lock stripes.
+     */
+    public StripedCachingRepositoryResourceBundleMessageFormatProvider() {
+        this(DEFAULT_LOCK_STRIPES);
+    }
+
+    /**
+     * Constructs a provider with {@code lockStripes} lock stripes, rounded up to a power of two.
+     * @param lockStripes the number of the lock stripes for each of the live and preview caches
+     * @throws IllegalArgumentException if {@code lockStripes} is not positive
+     */
+    public StripedCachingRepositoryResourceBundleMessageFormatProvider(int lockStripes) {
+        if (lockStripes <= 0) {
+            throw new IllegalArgumentException("The number of lock stripes must be positive: " + lockStripes);
+        }
+
+        int stripes = 1;
+
+        while (stripes < lockStripes && stripes < MAX_LOCK_STRIPES) {
+            stripes <<= 1;
+        }
+
+        liveCache = new StripedCache(stripes);
+        previewCache = new StripedCache(stripes);
+    }
+
+    /**
+     * Returns the number of the lock stripes for each of the live and preview caches.
+     * @return the number of the lock stripes for each of the live and preview caches
+     */
+    public int getLockStripes() {
+        return liveCache.stripes.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerBundle(String basename, Locale locale, ResourceBundle bundle) {
+        registerBundle(liveCache, basename, locale, bundle);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void registerPreviewBundle(String basename, Locale locale, ResourceBundle bundle) {
+        registerBundle(previewCache, basename, locale, bundle);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MessageFormat getMessageFormat(ResourceBundle bundle, String code, Locale locale) {
+        final HstRequestContext requestContext = RequestContextProvider.get();
+        final boolean preview = requestContext != null && requestContext.isPreview();
+        final StripedCache cache = (preview) ? previewCache : liveCache;
+
+        final KeyValue<String, Locale> basenameLocale = cache.bundleBasenameLocales.get(bundle);
+
+        if (basenameLocale == null) {
+            counters.recordMiss();
+            return null;
+        }
+
+        cache.accessCounters.record(basenameLocale, code);
+
+        final Stripe stripe = cache.stripeFor(basenameLocale);
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (stripe) {
+            counters.recordLockWait(lockStartNanos);
+
+            Map<String, Map<Locale, MessageFormat>> codeMap = stripe.cachedBundleMessageFormats.get(bundle);
+
+            if (codeMap == null) {
+                // The bundle has been replaced in the meantime.
+                counters.recordMiss();
+                return null;
+            }
+
+            Map<Locale, MessageFormat> localeMap = codeMap.get(code);
+
+            if (localeMap != null) {
+                MessageFormat result = localeMap.get(locale);
+
+                if (result != null) {
+                    counters.recordHit();
+                    return result;
+                }
+            }
+
+            Set<String> missingCodes = stripe.missingBundleCodes.get(bundle);
+
+            if (missingCodes.contains(code)) {
+                counters.recordHit();
+                return null;
+            }
+
+            counters.recordMiss();
+
+            String msg = getStringOrNull(bundle, code);
+
+            if (msg != null) {
+                if (localeMap == null) {
+                    localeMap = new HashMap<Locale, MessageFormat>();
+                    codeMap.put(code, localeMap);
+                }
+
+                MessageFormat result = createMessageFormat(msg, locale);
+                localeMap.put(locale, result);
+
+                return result;
+            }
+
+            missingCodes.add(code);
+
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<MessageCodeAccessCount> getHotMessageCodes(int limit) {
+        return liveCache.accessCounters.getTopAccessCounts(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<MessageCodeAccessCount> getHotPreviewMessageCodes(int limit) {
+        return previewCache.accessCounters.getTopAccessCounts(limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onResourceBundleChanged(String basename) {
+        unregisterBundles(liveCache, basename);
+        unregisterBundles(previewCache, basename);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHitCount() {
+        return counters.getHitCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMissCount() {
+        return counters.getMissCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getHitRatio() {
+        return counters.getHitRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMissRatio() {
+        return counters.getMissRatio();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLiveBundleCount() {
+        return liveCache.bundleBasenameLocales.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPreviewBundleCount() {
+        return previewCache.bundleBasenameLocales.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLiveEntryCount() {
+        return getEntryCount(liveCache);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPreviewEntryCount() {
+        return getEntryCount(previewCache);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getLiveEntryCountsPerBundle() {
+        return getEntryCountsPerBundle(liveCache);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Integer> getPreviewEntryCountsPerBundle() {
+        return getEntryCountsPerBundle(previewCache);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Live and preview bundle registrations are counted together.
+     * </p>
+     */
+    @Override
+    public long getBundleRegistrationCount() {
+        return counters.getBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSkippedBundleRegistrationCount() {
+        return counters.getSkippedBundleRegistrationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleReplacementCount() {
+        return counters.getBundleReplacementCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBundleInvalidationCount() {
+        return counters.getBundleInvalidationCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This provider never evicts entries, so it is always zero.
+     * </p>
+     */
+    @Override
+    public long getEvictionCount() {
+        return counters.getEvictionCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every lookup takes the lock of the stripe of the bundle in this provider.
+     * </p>
+     */
+    @Override
+    public long getLockWaitTimeNanos() {
+        return counters.getLockWaitTimeNanos();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetStatistics() {
+        counters.reset();
+    }
+
+    /**
+     * Test purpose getter.
+     * @param preview flag whether or not the preview cache is requested
+     * @return bundle basename locales of either the live or preview cache
+     */
+    Map<ResourceBundle, KeyValue<String, Locale>> getBundleBasenameLocales(boolean preview) {
+        return (preview) ? previewCache.bundleBasenameLocales : liveCache.bundleBasenameLocales;
+    }
+
+    private void registerBundle(StripedCache cache, String basename, Locale locale, ResourceBundle bundle) {
+        // Lock-free and allocation-free check for the most common case where the bundle has not been changed.
+        // An outdated bundle is always removed from bundleBasenameLocales, so a bundle found there is current.
+        KeyValue<String, Locale> registeredPair = cache.bundleBasenameLocales.get(bundle);
+
+        if (registeredPair != null && ObjectUtils.nullSafeEquals(registeredPair.getKey(), basename)
+                && ObjectUtils.nullSafeEquals(registeredPair.getValue(), locale)) {
+            counters.recordSkippedBundleRegistration();
+            return;
+        }
+
+        KeyValue<String, Locale> pair = new DefaultKeyValue<String, Locale>(basename, locale);
+        Stripe stripe = cache.stripeFor(pair);
+        final long lockStartNanos = System.nanoTime();
+
+        synchronized (stripe) {
+            counters.recordLockWait(lockStartNanos);
+
+            ResourceBundle oldBundle = stripe.basenameLocaleBundles.get(pair);
+
+            if (oldBundle != bundle) {
+                // Make the new bundle available first, and drop the outdated bundle afterward.
+                stripe.cachedBundleMessageFormats.put(bundle, new HashMap<String, Map<Locale, MessageFormat>>());
+                stripe.missingBundleCodes.put(bundle, new HashSet<String>());
+                stripe.basenameLocaleBundles.put(pair, bundle);
+                cache.bundleBasenameLocales.put(bundle, pair);
+
+                if (oldBundle != null) {
+                    stripe.cachedBundleMessageFormats.remove(oldBundle);
+                    stripe.missingBundleCodes.remove(oldBundle);
+                    cache.bundleBasenameLocales.remove(oldBundle);
+                }
+
+                counters.recordBundleRegistration(oldBundle != null);
+            } else {
+                counters.recordSkippedBundleRegistration();
+            }
+        }
+    }
+
+    private void unregisterBundles(StripedCache cache, String basename) {
+        int count = 0;
+
+        // The bundles of a basename are spread over the stripes by locale.
+        for (Stripe stripe : cache.stripes) {
+            final long lockStartNanos = System.nanoTime();
+
+            synchronized (stripe) {
+                counters.recordLockWait(lockStartNanos);
+
+                for (Iterator<Map.Entry<KeyValue<String, Locale>, ResourceBundle>> it = stripe.basenameLocaleBundles.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<KeyValue<String, Locale>, ResourceBundle> entry = it.next();
+
+                    if (ObjectUtils.nullSafeEquals(entry.getKey().getKey(), basename)) {
+                        it.remove();
+                        stripe.cachedBundleMessageFormats.remove(entry.getValue());
+                        stripe.missingBundleCodes.remove(entry.getValue());
+                        cache.bundleBasenameLocales.remove(entry.getValue());
+                        ++count;
+                    }
+                }
+            }
+        }
+
+        counters.recordBundleInvalidations(count);
+    }
+
+    private int getEntryCount(StripedCache cache) {
+        int count = 0;
+
+        for (Integer bundleCount : getEntryCountsPerBundle(cache).values()) {
+            count += bundleCount;
+        }
+
+        return count;
+    }
+
+    private static Map<String, Integer> getEntryCountsPerBundle(StripedCache cache) {
+        Map<String, Integer> entryCounts = new HashMap<String, Integer>();
+
+        for (Stripe stripe : cache.stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<KeyValue<String, Locale>, ResourceBundle> entry : stripe.basenameLocaleBundles.entrySet()) {
+                    int count = 0;
+                    Map<String, Map<Locale, MessageFormat>> codeMap = stripe.cachedBundleMessageFormats.get(entry.getValue());
+
+                    if (codeMap != null) {
+                        for (Map<Locale, MessageFormat> localeMap : codeMap.values()) {
+                            count += localeMap.size();
+                        }
+                    }
+
+                    Set<String> missingCodes = stripe.missingBundleCodes.get(entry.getValue());
+
+                    if (missingCodes != null) {
+                        count += missingCodes.size();
+                    }
+
+                    entryCounts.put(entry.getKey().getKey() + ":" + entry.getKey().getValue(), count);
+                }
+            }
+        }
+
+        return entryCounts;
+    }
+
+    private String getStringOrNull(ResourceBundle bundle, String key) {
+        // Check the key first not to pay for a MissingResourceException on every miss.
+        if (bundle.containsKey(key)) {
+            try {
+                return bundle.getString(key);
+            } catch (MissingResourceException ex) {
+                // Fall through.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Either live or preview cache, consisting of the lock stripes.
+     */
+    private static class StripedCache {
+
+        /**
+         * Basename and locale per registered bundle, to find the stripe of a bundle without any lock.
+         * It is updated only while holding the lock of the stripe of the bundle.
+         */
+        private final ConcurrentMap<ResourceBundle, KeyValue<String, Locale>> bundleBasenameLocales =
+                new ConcurrentHashMap<ResourceBundle, KeyValue<String, Locale>>();
+
+        private final MessageCodeAccessCounters accessCounters = new MessageCodeAccessCounters();
+
+        private final Stripe [] stripes;
+
+        private StripedCache(final int stripeCount) {
+            stripes = new Stripe[stripeCount];
+
+            for (int i = 0; i < stripeCount; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        private Stripe stripeFor(final KeyValue<String, Locale> basenameLocale) {
+            final int hash = basenameLocale.hashCode();
+            return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+        }
+    }
+
+    /**
+     * Lock stripe holding the cached <code>MessageFormat</code>s of the bundles belonging to it,
+     * which is also the lock guarding them.
+     */
+    private static class Stripe {
+
+        private final Map<ResourceBundle, Map<String, Map<Locale, MessageFormat>>> cachedBundleMessageFormats =
+                new HashMap<ResourceBundle, Map<String, Map<Locale, MessageFormat>>>();
+
+        private final Map<ResourceBundle, Set<String>> missingBundleCodes = new HashMap<ResourceBundle, Set<String>>();
+
+        private final Map<KeyValue<String, Locale>, ResourceBundle> basenameLocaleBundles =
+                new HashMap<KeyValue<String, Locale>, ResourceBundle>();
+    }
+}
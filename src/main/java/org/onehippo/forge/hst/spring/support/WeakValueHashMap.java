@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Hash map holding its values by weak references, used by {@link CachingRepositoryResourceBundleMessageFormatProvider}
+ * not to retain resource bundles in the reverse index from basename and locale to bundle.
+ * <p>
+ * The mappings of the values cleared by the garbage collector are removed through a {@link ReferenceQueue}
+ * whenever the map is accessed. Like <code>HashMap</code>, this is not thread-safe.
+ * </p>
+ */
+class WeakValueHashMap<K, V> extends AbstractMap<K, V> {
+
+    private final Map<K, ValueReference<K, V>> map = new HashMap<K, ValueReference<K, V>>();
+
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+    @Override
+    public V get(Object key) {
+        expungeStaleEntries();
+        final ValueReference<K, V> ref = map.get(key);
+        return (ref != null) ? ref.get() : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        expungeStaleEntries();
+        final ValueReference<K, V> oldRef = map.put(key, new ValueReference<K, V>(key, value, queue));
+        return (oldRef != null) ? oldRef.get() : null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        expungeStaleEntries();
+        final ValueReference<K, V> oldRef = map.remove(key);
+        return (oldRef != null) ? oldRef.get() : null;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+
+        while (queue.poll() != null) {
+            // Drain the queue as all the mappings are gone.
+        }
+    }
+
+    @Override
+    public int size() {
+        expungeStaleEntries();
+        return map.size();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        expungeStaleEntries();
+
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private void expungeStaleEntries() {
+        ValueReference<K, V> ref;
+
+        while ((ref = (ValueReference<K, V>) queue.poll()) != null) {
+            // Remove it only if the key has not been mapped to another value in the meantime.
+            if (map.get(ref.key) == ref) {
+                map.remove(ref.key);
+            }
+        }
+    }
+
+    private static class ValueReference<K, V> extends WeakReference<V> {
+
+        private final K key;
+
+        private ValueReference(final K key, final V value, final ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Iterator skipping the values cleared while iterating, holding the next value strongly until it is returned.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Iterator<Map.Entry<K, ValueReference<K, V>>> it = map.entrySet().iterator();
+
+        private Map.Entry<K, V> next;
+
+        private boolean removable;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && it.hasNext()) {
+                final Map.Entry<K, ValueReference<K, V>> entry = it.next();
+                removable = false;
+                final V value = entry.getValue().get();
+
+                if (value != null) {
+                    next = new SimpleImmutableEntry<K, V>(entry.getKey(), value);
+                }
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final Map.Entry<K, V> entry = next;
+            next = null;
+            removable = true;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (!removable) {
+                // hasNext() might have moved the underlying iterator beyond the last returned entry.
+                throw new IllegalStateException("remove() must be called right after next()");
+            }
+
+            it.remove();
+            removable = false;
+        }
+    }
+}
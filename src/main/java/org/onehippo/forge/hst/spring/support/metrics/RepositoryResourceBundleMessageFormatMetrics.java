@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.metrics;
+
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import org.onehippo.forge.hst.spring.support.HstRepositoryResourceBundleMessageSource;
+import org.onehippo.forge.hst.spring.support.RepositoryResourceBundleMessageFormatStatistics;
+
+/**
+ * Micrometer {@link MeterBinder} of the {@link RepositoryResourceBundleMessageFormatStatistics}
+ * of a <code>MessageFormat</code> provider.
+ * <p>
+ * Micrometer is an optional dependency, required only when this binder is used. For example,
+ * </p>
+ * <pre>
+ * new RepositoryResourceBundleMessageFormatMetrics(messageSource, Tags.of("name", "messageSource"))
+ *         .bindTo(meterRegistry);
+ * </pre>
+ * <p>
+ * The following meters are bound with the given tags:
+ * </p>
+ * <ul>
+ * <li><code>hst.messageformat.cache.gets</code>: function counter of the lookups tagged by <code>result</code>,
+ *     either <code>hit</code> or <code>miss</code>.</li>
+ * <li><code>hst.messageformat.cache.size</code>: gauge of the cached entries tagged by <code>context</code>,
+ *     either <code>live</code> or <code>preview</code>.</li>
+ * <li><code>hst.messageformat.cache.bundles</code>: gauge of the registered bundles tagged by <code>context</code>.</li>
+ * <li><code>hst.messageformat.cache.bundle.registrations</code>: function counter of the bundle registrations
+ *     tagged by <code>result</code>, either <code>registered</code> or <code>skipped</code>.</li>
+ * <li><code>hst.messageformat.cache.bundle.replacements</code>: function counter of the replaced outdated bundles.</li>
+ * <li><code>hst.messageformat.cache.bundle.invalidations</code>: function counter of the bundles unregistered
+ *     on resource bundle change notifications.</li>
+ * <li><code>hst.messageformat.cache.evictions</code>: function counter of the evicted entries.</li>
+ * <li><code>hst.messageformat.cache.lock.wait.seconds</code>: function counter of the time spent waiting for locks.</li>
+ * </ul>
+ * <p>
+ * The meters are registered through the instance methods of {@link MeterRegistry}, not through the builders
+ * which are static interface methods, as this module is still compiled for Java 7.
+ * The numbers of the cached entries per bundle are not bound as meters not to create a time series
+ * per bundle and locale. Those are available through JMX instead.
+ * </p>
+ */
+public class RepositoryResourceBundleMessageFormatMetrics implements MeterBinder {
+
+    private static final String METRIC_NAME_PREFIX = "hst.messageformat.cache.";
+
+    private final RepositoryResourceBundleMessageFormatStatistics statistics;
+
+    private final Iterable<Tag> tags;
+
+    /**
+     * Constructs a binder of the statistics of the <code>MessageFormat</code> provider of the {@code messageSource}.
+     * @param messageSource message source
+     * @param tags tags to add to all the meters
+     * @throws IllegalArgumentException if the provider of the {@code messageSource} doesn't support statistics
+     */
+    public RepositoryResourceBundleMessageFormatMetrics(final HstRepositoryResourceBundleMessageSource messageSource,
+            final Iterable<Tag> tags) {
+        this(messageSource.getStatistics(), tags);
+    }
+
+    /**
+     * Constructs a binder of the {@code statistics}.
+     * @param statistics statistics of a <code>MessageFormat</code> provider
+     * @param tags tags to add to all the meters
+     * @throws IllegalArgumentException if {@code statistics} is null
+     */
+    public RepositoryResourceBundleMessageFormatMetrics(final RepositoryResourceBundleMessageFormatStatistics statistics,
+            final Iterable<Tag> tags) {
+        if (statistics == null) {
+            throw new IllegalArgumentException("The MessageFormat provider statistics are not available.");
+        }
+
+        this.statistics = statistics;
+        this.tags = (tags != null) ? tags : Tags.empty();
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        bindCounter(registry, "gets", Tags.concat(tags, "result", "hit"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getHitCount();
+                    }
+                });
+        bindCounter(registry, "gets", Tags.concat(tags, "result", "miss"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getMissCount();
+                    }
+                });
+
+        bindGauge(registry, "size", Tags.concat(tags, "context", "live"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getLiveEntryCount();
+                    }
+                });
+        bindGauge(registry, "size", Tags.concat(tags, "context", "preview"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getPreviewEntryCount();
+                    }
+                });
+        bindGauge(registry, "bundles", Tags.concat(tags, "context", "live"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getLiveBundleCount();
+                    }
+                });
+        bindGauge(registry, "bundles", Tags.concat(tags, "context", "preview"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getPreviewBundleCount();
+                    }
+                });
+
+        bindCounter(registry, "bundle.registrations", Tags.concat(tags, "result", "registered"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getBundleRegistrationCount();
+                    }
+                });
+        bindCounter(registry, "bundle.registrations", Tags.concat(tags, "result", "skipped"),
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getSkippedBundleRegistrationCount();
+                    }
+                });
+        bindCounter(registry, "bundle.replacements", tags,
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getBundleReplacementCount();
+                    }
+                });
+        bindCounter(registry, "bundle.invalidations", tags,
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getBundleInvalidationCount();
+                    }
+                });
+        bindCounter(registry, "evictions", tags,
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getEvictionCount();
+                    }
+                });
+
+        bindCounter(registry, "lock.wait.seconds", tags,
+                new ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics>() {
+                    @Override
+                    public double applyAsDouble(RepositoryResourceBundleMessageFormatStatistics stats) {
+                        return stats.getLockWaitTimeNanos() / 1.0e9;
+                    }
+                });
+    }
+
+    private void bindCounter(final MeterRegistry registry, final String name, final Iterable<Tag> meterTags,
+            final ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics> function) {
+        registry.more().counter(METRIC_NAME_PREFIX + name, meterTags, statistics, function);
+    }
+
+    private void bindGauge(final MeterRegistry registry, final String name, final Iterable<Tag> meterTags,
+            final ToDoubleFunction<RepositoryResourceBundleMessageFormatStatistics> function) {
+        registry.gauge(METRIC_NAME_PREFIX + name, meterTags, statistics, function);
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.session.MapSession;
+import org.springframework.session.MapSessionRepository;
+import org.springframework.session.Session;
+
+/**
+ * {@link MapSessionRepository} backed by a {@link ConcurrentHashMap}, purging expired sessions and optionally
+ * bounding the number of the sessions.
+ * <p>
+ * {@link MapSessionRepository} removes an expired session only when it is looked up again, so the sessions
+ * of the users who never come back stay in memory. {@link #cleanUpExpiredSessions()} removes those,
+ * at most {@link #getCleanUpBatchSize()} sessions at a time not to hold a thread too long,
+ * and is supposed to be invoked periodically, for example by {@link MapHttpSessionConfiguration}.
+ * </p>
+ * <p>
+ * If {@link #setMaxSessions(int)} is set to a positive number, whenever saving a session makes the repository
+ * grow over the limit, the expired sessions are removed first and then the least recently accessed sessions
+ * are evicted in a batch down to 90% of the limit by a single thread, without blocking the others.
+ * </p>
+ * <p>
+ * If a {@link MappedFileSessionJournal} is set by {@link #setJournal(MappedFileSessionJournal)}, the sessions
+ * are restored from it, and every save and removal is appended to it afterward, so the sessions survive a restart.
+ * A change is appended while updating the map of the sessions under the same lock of the session, so the records
+ * of the concurrent changes of a session are appended in the same order as the changes are made. The record
+ * is created before taking the lock, so the session is not serialized while the other sessions sharing the lock wait.
+ * {@link #compactJournal()} rewrites it only with the current sessions, and is supposed to be invoked periodically.
+ * </p>
+ * <p>
+ * Each session is kept in a {@link SessionEntry} created by {@link #createEntry(MapSession)}, holding a copy
+ * of the session by default. Subclasses may store the sessions elsewhere by overriding {@link #createEntry(MapSession)},
+ * {@link #loadSession(String)} and {@link #sessionRemoved(SessionEntry)} together.
+ * </p>
+ * <p>
+ * It overrides all the operations of {@link MapSessionRepository} to keep the sessions in its own map of the entries,
+ * so the map of the superclass is never used.
+ * </p>
+ */
+public class ExpiringMapSessionRepository extends MapSessionRepository {
+
+    private static Logger log = LoggerFactory.getLogger(ExpiringMapSessionRepository.class);
+
+    /**
+     * The default maximum number of the expired sessions to remove by an invocation of {@link #cleanUpExpiredSessions()}.
+     */
+    public static final int DEFAULT_CLEAN_UP_BATCH_SIZE = 10000;
+
+    private static final Comparator<SessionEntry> MOST_RECENTLY_ACCESSED_FIRST = new Comparator<SessionEntry>() {
+        @Override
+        public int compare(SessionEntry entry1, SessionEntry entry2) {
+            return Long.compare(entry2.lastAccessedTime, entry1.lastAccessedTime);
+        }
+    };
+
+    private final ConcurrentMap<String, SessionEntry> sessions = new ConcurrentHashMap<String, SessionEntry>();
+
+    private final Lock evictionLock = new ReentrantLock();
+
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+
+    private volatile int maxSessions;
+
+    private volatile int cleanUpBatchSize = DEFAULT_CLEAN_UP_BATCH_SIZE;
+
+    private volatile MappedFileSessionJournal journal;
+
+    private volatile Integer defaultMaxInactiveInterval;
+
+    /**
+     * Constructs an unbounded repository.
+     */
+    public ExpiringMapSessionRepository() {
+        // The map of the superclass is left empty, and fails if ever written.
+        super(Collections.<String, Session> emptyMap());
+    }
+
+    /**
+     * Sets the maximum inactive interval in seconds of a new session.
+     * If not set, {@link MapSession#DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS} is used.
+     * @param defaultMaxInactiveInterval the maximum inactive interval in seconds of a new session
+     */
+    @Override
+    public void setDefaultMaxInactiveInterval(int defaultMaxInactiveInterval) {
+        this.defaultMaxInactiveInterval = Integer.valueOf(defaultMaxInactiveInterval);
+    }
+
+    /**
+     * Returns the maximum number of the sessions. Zero or negative for no limit.
+     * @return the maximum number of the sessions
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Sets the maximum number of the sessions. Zero or negative for no limit.
+     * @param maxSessions the maximum number of the sessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Returns the maximum number of the expired sessions to remove by an invocation of {@link #cleanUpExpiredSessions()}.
+     * @return the maximum number of the expired sessions to remove by an invocation of {@link #cleanUpExpiredSessions()}
+     */
+    public int getCleanUpBatchSize() {
+        return cleanUpBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of the expired sessions to remove by an invocation of {@link #cleanUpExpiredSessions()}.
+     * Zero or negative for no limit.
+     * @param cleanUpBatchSize the maximum number of the expired sessions to remove by an invocation
+     */
+    public void setCleanUpBatchSize(int cleanUpBatchSize) {
+        this.cleanUpBatchSize = cleanUpBatchSize;
+    }
+
+    /**
+     * Returns the number of the sessions in this repository, including the expired ones not removed yet.
+     * @return the number of the sessions in this repository
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the journal of the sessions, or null if not journaling.
+     * @return the journal of the sessions, or null if not journaling
+     */
+    public MappedFileSessionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Restores the sessions from the {@code journal}, compacts it, and appends every save and removal to it afterward.
+     * @param journal the journal of the sessions
+     */
+    public void setJournal(MappedFileSessionJournal journal) {
+        final List<MapSession> journaledSessions = journal.replay();
+
+        for (MapSession session : journaledSessions) {
+            save(session);
+        }
+
+        log.info("Restored {} sessions from the session journal, {}.", journaledSessions.size(), journal.getFile());
+        this.journal = journal;
+        compactJournal();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MapSession createSession() {
+        final MapSession session = new MapSession();
+        final Integer maxInactiveInterval = defaultMaxInactiveInterval;
+
+        if (maxInactiveInterval != null) {
+            session.setMaxInactiveInterval(Duration.ofSeconds(maxInactiveInterval));
+        }
+
+        return session;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save(final MapSession session) {
+        final SessionEntry entry = createEntry(session);
+
+        if (!session.getId().equals(session.getOriginalId())) {
+            deleteById(session.getOriginalId());
+        }
+
+        final MappedFileSessionJournal currentJournal = journal;
+        final byte [] record = (currentJournal != null) ? currentJournal.createSavedRecord(session) : null;
+        final SessionEntry [] replaced = { null };
+        lockJournal(currentJournal);
+
+        try {
+            sessions.compute(session.getId(), new BiFunction<String, SessionEntry, SessionEntry>() {
+                @Override
+                public SessionEntry apply(String id, SessionEntry current) {
+                    if (currentJournal != null) {
+                        currentJournal.append(record);
+                    }
+
+                    replaced[0] = current;
+                    return entry;
+                }
+            });
+        } finally {
+            unlockJournal(currentJournal);
+        }
+
+        if (replaced[0] != null) {
+            sessionRemoved(replaced[0]);
+        }
+
+        evictSessionsIfOverLimit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MapSession findById(String id) {
+        final SessionEntry entry = sessions.get(id);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired(System.currentTimeMillis())) {
+            removeSession(entry);
+            return null;
+        }
+
+        return loadSession(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deleteById(String id) {
+        final MappedFileSessionJournal currentJournal = journal;
+        final byte [] record = (currentJournal != null) ? currentJournal.createDeletedRecord(id) : null;
+        final SessionEntry [] removed = { null };
+        lockJournal(currentJournal);
+
+        try {
+            sessions.computeIfPresent(id, new BiFunction<String, SessionEntry, SessionEntry>() {
+                @Override
+                public SessionEntry apply(String id, SessionEntry current) {
+                    if (currentJournal != null) {
+                        currentJournal.append(record);
+                    }
+
+                    removed[0] = current;
+                    return null;
+                }
+            });
+        } finally {
+            unlockJournal(currentJournal);
+        }
+
+        if (removed[0] != null) {
+            sessionRemoved(removed[0]);
+        }
+    }
+
+    /**
+     * Removes the expired sessions, at most {@link #getCleanUpBatchSize()} sessions.
+     * The rest, if any, are left to the next invocation.
+     * @return the number of the removed sessions
+     */
+    public int cleanUpExpiredSessions() {
+        final int batchSize = cleanUpBatchSize;
+        final long now = System.currentTimeMillis();
+        int count = 0;
+
+        for (SessionEntry entry : sessions.values()) {
+            if (entry.isExpired(now) && removeSession(entry)) {
+                if (++count == batchSize) {
+                    break;
+                }
+            }
+        }
+
+        if (count > 0) {
+            log.debug("Removed {} expired sessions.", count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Rewrites the journal, if any, only with the current sessions not expired. Saves and removals wait meanwhile.
+     */
+    public void compactJournal() {
+        final MappedFileSessionJournal currentJournal = journal;
+
+        if (currentJournal == null) {
+            return;
+        }
+
+        final Instant now = Instant.now();
+
+        // Collect the sessions while no change is being made, so that the changes made after collecting
+        // are appended to the rewritten journal.
+        final Lock lock = compactionLock.writeLock();
+        lock.lock();
+
+        try {
+            final List<MapSession> currentSessions = new ArrayList<MapSession>(sessions.size());
+
+            for (String id : sessions.keySet()) {
+                final MapSession session = loadSession(id);
+
+                if (session != null && !isExpired(session, now)) {
+                    currentSessions.add(session);
+                }
+            }
+
+            try {
+                currentJournal.rewrite(currentSessions);
+                log.debug("Compacted the session journal with {} sessions.", currentSessions.size());
+            } catch (IOException e) {
+                log.warn("Failed to compact the session journal, {}: {}", currentJournal.getFile(), e.toString());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the entry of the session by the {@code id}, whether expired or not.
+     * @param id session ID
+     * @return the entry of the session, or null if not found
+     */
+    protected final SessionEntry getSessionEntry(final String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Creates the entry to keep the {@code session} in this repository, before it is put into this repository.
+     * By default, the entry holds a copy of the {@code session}.
+     * @param session the session being saved
+     * @return the entry to keep the {@code session} in this repository
+     */
+    protected SessionEntry createEntry(final MapSession session) {
+        return new HeapSessionEntry(new MapSession(session));
+    }
+
+    /**
+     * Returns a copy of the session by the {@code id}, whether expired or not, without updating this repository.
+     * @param id session ID
+     * @return a copy of the session, or null if not found
+     */
+    protected MapSession loadSession(final String id) {
+        final SessionEntry entry = sessions.get(id);
+        return (entry != null) ? new MapSession(((HeapSessionEntry) entry).session) : null;
+    }
+
+    /**
+     * Invoked after the entry of a session has been removed from this repository, either deleted,
+     * replaced by a new copy, expired or evicted. Does nothing by default.
+     * @param entry the removed entry
+     */
+    protected void sessionRemoved(SessionEntry entry) {
+    }
+
+    /**
+     * Removes the expired sessions, and evicts the least recently accessed sessions down to 90% of
+     * {@link #getMaxSessions()} once over the limit, even if removing the expired sessions was enough,
+     * so that the sessions are not scanned again on every save. Only a single thread evicts at a time,
+     * and the others simply skip it.
+     */
+    protected void evictSessionsIfOverLimit() {
+        final int max = maxSessions;
+
+        if (max <= 0 || sessions.size() <= max || !evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            final long now = System.currentTimeMillis();
+
+            for (SessionEntry entry : sessions.values()) {
+                if (entry.isExpired(now)) {
+                    removeSession(entry);
+                }
+            }
+
+            final int count = evictLeastRecentlyAccessedSessions(sessions.size() - (int) (max * 0.9));
+
+            if (count > 0) {
+                log.info("Evicted {} least recently accessed sessions as the number of sessions exceeded {}.",
+                        count, max);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the {@code count} least recently accessed sessions.
+     * @param count the number of the sessions to evict
+     * @return the number of the evicted sessions
+     */
+    protected int evictLeastRecentlyAccessedSessions(final int count) {
+        if (count <= 0) {
+            return 0;
+        }
+
+        evictionLock.lock();
+
+        try {
+            // Keep the least recently accessed sessions on the heap, the most recent one on top.
+            final PriorityQueue<SessionEntry> leastRecentlyAccessed =
+                    new PriorityQueue<SessionEntry>(count, MOST_RECENTLY_ACCESSED_FIRST);
+
+            for (SessionEntry entry : sessions.values()) {
+                if (leastRecentlyAccessed.size() < count) {
+                    leastRecentlyAccessed.add(entry);
+                } else if (MOST_RECENTLY_ACCESSED_FIRST.compare(entry, leastRecentlyAccessed.peek()) > 0) {
+                    leastRecentlyAccessed.poll();
+                    leastRecentlyAccessed.add(entry);
+                }
+            }
+
+            int evicted = 0;
+
+            for (SessionEntry entry : leastRecentlyAccessed) {
+                if (removeSession(entry)) {
+                    ++evicted;
+                }
+            }
+
+            return evicted;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the {@code entry} unless it has been replaced in the meantime, e.g. by a new copy saved again.
+     * @param entry the entry to remove
+     * @return true if removed
+     */
+    private boolean removeSession(final SessionEntry entry) {
+        final MappedFileSessionJournal currentJournal = journal;
+        final byte [] record = (currentJournal != null) ? currentJournal.createDeletedRecord(entry.id) : null;
+        final boolean [] removed = { false };
+        lockJournal(currentJournal);
+
+        try {
+            sessions.computeIfPresent(entry.id, new BiFunction<String, SessionEntry, SessionEntry>() {
+                @Override
+                public SessionEntry apply(String id, SessionEntry current) {
+                    if (current != entry) {
+                        return current;
+                    }
+
+                    if (currentJournal != null) {
+                        currentJournal.append(record);
+                    }
+
+                    removed[0] = true;
+                    return null;
+                }
+            });
+        } finally {
+            unlockJournal(currentJournal);
+        }
+
+        if (removed[0]) {
+            sessionRemoved(entry);
+        }
+
+        return removed[0];
+    }
+
+    /**
+     * Prevents the journal from being compacted while a change is being made and appended to the journal.
+     * The changes of the different sessions are made concurrently.
+     */
+    private void lockJournal(final MappedFileSessionJournal currentJournal) {
+        if (currentJournal != null) {
+            compactionLock.readLock().lock();
+        }
+    }
+
+    private void unlockJournal(final MappedFileSessionJournal currentJournal) {
+        if (currentJournal != null) {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true if the {@code session} has expired at {@code now}, in the same way as <code>MapSession#isExpired()</code>.
+     * @param session session
+     * @param now the current time
+     * @return true if the {@code session} has expired at {@code now}
+     */
+    protected static boolean isExpired(final Session session, final Instant now) {
+        final Duration maxInactiveInterval = session.getMaxInactiveInterval();
+
+        if (maxInactiveInterval.isNegative()) {
+            return false;
+        }
+
+        return !now.minus(maxInactiveInterval).isBefore(session.getLastAccessedTime());
+    }
+
+    /**
+     * Entry of a session kept in this repository, with the metadata to expire and evict the session
+     * without loading it.
+     */
+    protected static class SessionEntry {
+
+        private final String id;
+        private final long lastAccessedTime;
+        private final long maxInactiveInterval;
+
+        /**
+         * Constructs an entry with the metadata of the {@code session}.
+         * @param session the session being saved
+         */
+        protected SessionEntry(final Session session) {
+            id = session.getId();
+            lastAccessedTime = session.getLastAccessedTime().toEpochMilli();
+            maxInactiveInterval = session.getMaxInactiveInterval().toMillis();
+        }
+
+        /**
+         * Returns the ID of the session.
+         * @return the ID of the session
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Returns the last accessed time of the session.
+         * @return the last accessed time of the session
+         */
+        public Instant getLastAccessedTime() {
+            return Instant.ofEpochMilli(lastAccessedTime);
+        }
+
+        /**
+         * Returns the maximum inactive interval of the session.
+         * @return the maximum inactive interval of the session
+         */
+        public Duration getMaxInactiveInterval() {
+            return Duration.ofMillis(maxInactiveInterval);
+        }
+
+        /**
+         * Returns true if the session has expired at {@code now}, in the same way as
+         * {@link ExpiringMapSessionRepository#isExpired(Session, Instant)}.
+         * @param now the current time in milliseconds
+         * @return true if the session has expired at {@code now}
+         */
+        public boolean isExpired(final long now) {
+            return maxInactiveInterval >= 0 && now - maxInactiveInterval >= lastAccessedTime;
+        }
+    }
+
+    private static class HeapSessionEntry extends SessionEntry {
+
+        private final MapSession session;
+
+        private HeapSessionEntry(final MapSession session) {
+            super(session);
+            this.session = session;
+        }
+    }
+}
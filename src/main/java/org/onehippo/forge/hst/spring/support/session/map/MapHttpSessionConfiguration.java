@@ -15,27 +15,286 @@
  */
 package org.onehippo.forge.hst.spring.support.session.map;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.session.MapSession;
 import org.springframework.session.MapSessionRepository;
-import org.springframework.session.Session;
 import org.springframework.session.config.annotation.web.http.EnableSpringHttpSession;
 import org.springframework.session.config.annotation.web.http.SpringHttpSessionConfiguration;
 
 /**
- * Configures the basics for setting up Spring Session in a web environment by using {@link MapSessionRepository}.
+ * Configures the basics for setting up Spring Session in a web environment with a {@link MapSessionRepository}.
+ * <p>
+ * The sessions are kept in an {@link ExpiringMapSessionRepository}, a {@link MapSessionRepository} from which the expired sessions are removed
+ * every {@link #getCleanUpIntervalSeconds()} seconds. The number of the sessions can be bounded
+ * by {@link #setMaxSessions(int)}, and the session attributes can be kept outside of the heap
+ * in an {@link OffHeapMapSessionRepository} by {@link #setOffHeapMaxMemory(long)}.
+ * </p>
+ * <p>
+ * If {@link #setJournalFile(String)} is set, the sessions are journaled in a {@link MappedFileSessionJournal}
+ * to be restored after a restart, and the journal is compacted every {@link #getJournalCompactionIntervalSeconds()}
+ * seconds.
+ * </p>
+ * <p>
+ * The periodic tasks run on a single daemon thread owned by this configuration, which is shut down on
+ * {@link #destroy()}, so no scheduling is enabled for the rest of the application context.
+ * </p>
  */
 @Configuration
 @EnableSpringHttpSession
-public class MapHttpSessionConfiguration extends SpringHttpSessionConfiguration {
+public class MapHttpSessionConfiguration extends SpringHttpSessionConfiguration implements DisposableBean {
+
+    private static Logger log = LoggerFactory.getLogger(MapHttpSessionConfiguration.class);
+
+    /**
+     * The default interval in seconds to remove the expired sessions.
+     */
+    public static final int DEFAULT_CLEAN_UP_INTERVAL_SECONDS = 60;
+
+    /**
+     * The default interval in seconds to compact the session journal.
+     */
+    public static final int DEFAULT_JOURNAL_COMPACTION_INTERVAL_SECONDS = 600;
+
+    private int maxInactiveIntervalInSeconds = MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS;
+
+    private int maxSessions;
+
+    private int cleanUpIntervalSeconds = DEFAULT_CLEAN_UP_INTERVAL_SECONDS;
+
+    private int cleanUpBatchSize = ExpiringMapSessionRepository.DEFAULT_CLEAN_UP_BATCH_SIZE;
+
+    private long offHeapMaxMemory;
+
+    private String journalFile;
+
+    private int journalCapacity = MappedFileSessionJournal.DEFAULT_CAPACITY;
+
+    private int journalCompactionIntervalSeconds = DEFAULT_JOURNAL_COMPACTION_INTERVAL_SECONDS;
+
+    private MappedFileSessionJournal journal;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Returns the maximum inactive interval in seconds of a new session.
+     * @return the maximum inactive interval in seconds of a new session
+     */
+    public int getMaxInactiveIntervalInSeconds() {
+        return maxInactiveIntervalInSeconds;
+    }
+
+    /**
+     * Sets the maximum inactive interval in seconds of a new session. 1800 seconds by default.
+     * @param maxInactiveIntervalInSeconds the maximum inactive interval in seconds of a new session
+     */
+    public void setMaxInactiveIntervalInSeconds(int maxInactiveIntervalInSeconds) {
+        this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
+    }
+
+    /**
+     * Returns the maximum number of the sessions. Zero or negative for no limit.
+     * @return the maximum number of the sessions
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Sets the maximum number of the sessions. Zero or negative for no limit, which is the default.
+     * @param maxSessions the maximum number of the sessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Returns the interval in seconds to remove the expired sessions.
+     * @return the interval in seconds to remove the expired sessions
+     */
+    public int getCleanUpIntervalSeconds() {
+        return cleanUpIntervalSeconds;
+    }
+
+    /**
+     * Sets the interval in seconds to remove the expired sessions. Zero or negative not to remove those periodically.
+     * @param cleanUpIntervalSeconds the interval in seconds to remove the expired sessions
+     */
+    public void setCleanUpIntervalSeconds(int cleanUpIntervalSeconds) {
+        this.cleanUpIntervalSeconds = cleanUpIntervalSeconds;
+    }
+
+    /**
+     * Returns the maximum number of the expired sessions to remove at a time.
+     * @return the maximum number of the expired sessions to remove at a time
+     */
+    public int getCleanUpBatchSize() {
+        return cleanUpBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of the expired sessions to remove at a time.
+     * @param cleanUpBatchSize the maximum number of the expired sessions to remove at a time
+     */
+    public void setCleanUpBatchSize(int cleanUpBatchSize) {
+        this.cleanUpBatchSize = cleanUpBatchSize;
+    }
+
+    /**
+     * Returns the maximum number of the bytes to allocate outside of the heap for the session attributes.
+     * Zero or negative to keep the sessions on the heap.
+     * @return the maximum number of the bytes to allocate outside of the heap for the session attributes
+     */
+    public long getOffHeapMaxMemory() {
+        return offHeapMaxMemory;
+    }
+
+    /**
+     * Sets the maximum number of the bytes to allocate outside of the heap for the session attributes,
+     * to use an {@link OffHeapMapSessionRepository}. Zero or negative to keep the sessions on the heap,
+     * which is the default.
+     * @param offHeapMaxMemory the maximum number of the bytes to allocate outside of the heap
+     */
+    public void setOffHeapMaxMemory(long offHeapMaxMemory) {
+        this.offHeapMaxMemory = offHeapMaxMemory;
+    }
+
+    /**
+     * Returns the path of the session journal file, or null if not journaling.
+     * @return the path of the session journal file
+     */
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Sets the path of the session journal file, to restore the sessions after a restart.
+     * Null or empty not to journal the sessions, which is the default.
+     * @param journalFile the path of the session journal file
+     */
+    public void setJournalFile(String journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Returns the initial size in bytes of the session journal file.
+     * @return the initial size in bytes of the session journal file
+     */
+    public int getJournalCapacity() {
+        return journalCapacity;
+    }
+
+    /**
+     * Sets the initial size in bytes of the session journal file, grown when full. 64MB by default.
+     * @param journalCapacity the initial size in bytes of the session journal file
+     */
+    public void setJournalCapacity(int journalCapacity) {
+        this.journalCapacity = journalCapacity;
+    }
+
+    /**
+     * Returns the interval in seconds to compact the session journal.
+     * @return the interval in seconds to compact the session journal
+     */
+    public int getJournalCompactionIntervalSeconds() {
+        return journalCompactionIntervalSeconds;
+    }
+
+    /**
+     * Sets the interval in seconds to compact the session journal. Zero or negative not to compact it periodically.
+     * @param journalCompactionIntervalSeconds the interval in seconds to compact the session journal
+     */
+    public void setJournalCompactionIntervalSeconds(int journalCompactionIntervalSeconds) {
+        this.journalCompactionIntervalSeconds = journalCompactionIntervalSeconds;
+    }
 
     @Bean
-    public MapSessionRepository sessionRepository() {
-        final Map<String, Session> sessions = new HashMap<>();
-        return new MapSessionRepository(sessions);
+    public ExpiringMapSessionRepository sessionRepository() {
+        final ExpiringMapSessionRepository sessionRepository = (offHeapMaxMemory > 0)
+                ? new OffHeapMapSessionRepository(offHeapMaxMemory) : new ExpiringMapSessionRepository();
+        sessionRepository.setDefaultMaxInactiveInterval(maxInactiveIntervalInSeconds);
+        sessionRepository.setMaxSessions(maxSessions);
+        sessionRepository.setCleanUpBatchSize(cleanUpBatchSize);
+
+        if (journalFile != null && !journalFile.isEmpty()) {
+            try {
+                journal = new MappedFileSessionJournal(new File(journalFile), journalCapacity);
+                sessionRepository.setJournal(journal);
+            } catch (IOException e) {
+                log.warn("Failed to open the session journal, {}. The sessions will not be journaled: {}",
+                        journalFile, e.toString());
+            }
+        }
+
+        scheduleTasks(sessionRepository);
+
+        return sessionRepository;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void scheduleTasks(final ExpiringMapSessionRepository sessionRepository) {
+        final boolean cleanUp = cleanUpIntervalSeconds > 0;
+        final boolean compaction = journalCompactionIntervalSeconds > 0 && journal != null;
+
+        if (!cleanUp && !compaction) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "MapSessionRepository-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (cleanUp) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sessionRepository.cleanUpExpiredSessions();
+                    } catch (RuntimeException e) {
+                        log.warn("Failed to clean up the expired sessions: {}", e.toString());
+                    }
+                }
+            }, cleanUpIntervalSeconds, cleanUpIntervalSeconds, TimeUnit.SECONDS);
+        }
+
+        if (compaction) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sessionRepository.compactJournal();
+                    } catch (RuntimeException e) {
+                        log.warn("Failed to compact the session journal: {}", e.toString());
+                    }
+                }
+            }, journalCompactionIntervalSeconds, journalCompactionIntervalSeconds, TimeUnit.SECONDS);
+        }
     }
 
 }
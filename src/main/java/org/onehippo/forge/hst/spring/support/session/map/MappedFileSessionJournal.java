@@ -0,0 +1,441 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.serializer.support.DeserializingConverter;
+import org.springframework.core.serializer.support.SerializingConverter;
+import org.springframework.session.MapSession;
+
+/**
+ * Append-only journal of the saved and deleted sessions in a memory-mapped file, to restore the sessions
+ * of an {@link ExpiringMapSessionRepository} after a restart.
+ * <p>
+ * Each record is written as its length, its CRC32 checksum and its body, and the end of the journal is marked
+ * by a zero length as the mapped file is zero-filled. Replaying stops at the first record which is incomplete
+ * or corrupted. The records are written into the page cache through the mapping, so those survive a restart
+ * of the process, but not necessarily a crash of the operating system unless {@link #close()} has forced them
+ * onto the disk.
+ * </p>
+ * <p>
+ * The file is grown by remapping when it is full, and rewritten only with the current sessions
+ * by {@link #rewrite(Collection)} to compact it. All the session attributes must be <code>Serializable</code>.
+ * A session which cannot be serialized is journaled as deleted with a warning, not to restore its previous state,
+ * and a session which cannot be deserialized is skipped with a warning.
+ * </p>
+ * <p>
+ * A record can be created by {@link #createSavedRecord(MapSession)} or {@link #createDeletedRecord(String)}
+ * and appended later by {@link #append(byte[])}, so that a caller can serialize a session before taking its lock
+ * and only append the record while holding it.
+ * </p>
+ */
+public class MappedFileSessionJournal implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(MappedFileSessionJournal.class);
+
+    /**
+     * The default initial size in bytes of the journal file.
+     */
+    public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte SAVED = 1;
+
+    private static final byte DELETED = 2;
+
+    private final File file;
+
+    private final int capacity;
+
+    private final SerializingConverter serializer = new SerializingConverter();
+
+    private final DeserializingConverter deserializer = new DeserializingConverter();
+
+    /**
+     * File channel of the journal file, guarded by this.
+     */
+    private FileChannel channel;
+
+    /**
+     * Mapping of the journal file, guarded by this.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Constructs a journal in the {@code file} of {@link #DEFAULT_CAPACITY} bytes initially,
+     * creating the file if not existing.
+     * @param file journal file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedFileSessionJournal(final File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a journal in the {@code file} of {@code capacity} bytes initially, creating the file if not existing.
+     * @param file journal file
+     * @param capacity initial size in bytes of the journal file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedFileSessionJournal(final File file, final int capacity) throws IOException {
+        if (capacity <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid journal capacity: " + capacity);
+        }
+
+        this.file = file;
+        this.capacity = capacity;
+        open(capacity);
+        buffer.position(scan(null));
+    }
+
+    /**
+     * Returns the journal file.
+     * @return the journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of the bytes written in the journal file.
+     * @return the number of the bytes written in the journal file
+     */
+    public synchronized int getSize() {
+        return buffer.position();
+    }
+
+    /**
+     * Replays the journal from the beginning.
+     * @return the sessions saved and not deleted afterward, in the order of the last saves, excluding the expired ones
+     */
+    public synchronized List<MapSession> replay() {
+        final Map<String, MapSession> sessions = new LinkedHashMap<String, MapSession>();
+        scan(sessions);
+
+        final Instant now = Instant.now();
+        final List<MapSession> liveSessions = new ArrayList<MapSession>(sessions.size());
+
+        for (MapSession session : sessions.values()) {
+            if (!ExpiringMapSessionRepository.isExpired(session, now)) {
+                liveSessions.add(session);
+            }
+        }
+
+        return liveSessions;
+    }
+
+    /**
+     * Appends a record of the saved {@code session}, or of the deleted session if it cannot be serialized.
+     * @param session saved session
+     */
+    public void appendSaved(final MapSession session) {
+        append(createSavedRecord(session));
+    }
+
+    /**
+     * Appends a record of the deleted session.
+     * @param id the ID of the deleted session
+     */
+    public void appendDeleted(final String id) {
+        append(createDeletedRecord(id));
+    }
+
+    /**
+     * Creates a record of the saved {@code session} to append by {@link #append(byte[])}.
+     * If the {@code session} cannot be serialized, a record of the deleted session is created instead,
+     * so that the previous state of the session is not restored from the journal.
+     * @param session saved session
+     * @return the record of the saved session, or of the deleted session if it cannot be serialized
+     */
+    public byte [] createSavedRecord(final MapSession session) {
+        final byte [] record = serializeSession(session);
+
+        if (record == null) {
+            log.warn("Journaling the session which cannot be serialized as deleted, {}.", session.getId());
+            return createDeletedRecord(session.getId());
+        }
+
+        return record;
+    }
+
+    /**
+     * Creates a record of the deleted session to append by {@link #append(byte[])}.
+     * @param id the ID of the deleted session
+     * @return the record of the deleted session
+     */
+    public byte [] createDeletedRecord(final String id) {
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+            final DataOutputStream out = new DataOutputStream(baos);
+            out.writeByte(DELETED);
+            out.writeUTF(id);
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            // Never happens on a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends a {@code record} created by {@link #createSavedRecord(MapSession)} or {@link #createDeletedRecord(String)},
+     * growing the journal file if full. Does nothing once closed.
+     * @param record the record to append
+     */
+    public synchronized void append(final byte [] record) {
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        try {
+            if (buffer.remaining() < RECORD_HEADER_SIZE + record.length + RECORD_HEADER_SIZE) {
+                grow(RECORD_HEADER_SIZE + record.length + RECORD_HEADER_SIZE);
+            }
+
+            writeRecord(buffer, record);
+        } catch (IOException e) {
+            log.warn("Failed to append a session record to the journal, {}: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * Rewrites the journal file with the records of the {@code sessions} only, through a temporary file
+     * moved over the journal file, and forces it onto the disk.
+     * <p>
+     * To lose no record appended meanwhile, the {@code sessions} should be collected while no change can be
+     * appended, e.g. holding the lock of this journal, so that the changes made after collecting are appended
+     * after rewriting.
+     * </p>
+     * @param sessions the current sessions
+     * @throws IOException if the file cannot be rewritten
+     */
+    public synchronized void rewrite(final Collection<MapSession> sessions) throws IOException {
+        final List<byte []> records = new ArrayList<byte []>(sessions.size());
+        long size = 0;
+
+        for (MapSession session : sessions) {
+            final byte [] record = serializeSession(session);
+
+            if (record != null) {
+                records.add(record);
+                size += RECORD_HEADER_SIZE + record.length;
+            }
+        }
+
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final int newCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max(capacity, size * 2));
+        final RandomAccessFile tempRaf = new RandomAccessFile(tempFile, "rw");
+
+        try {
+            tempRaf.setLength(0);
+            final MappedByteBuffer tempBuffer = tempRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+
+            for (byte [] record : records) {
+                writeRecord(tempBuffer, record);
+            }
+
+            tempBuffer.force();
+        } finally {
+            tempRaf.close();
+        }
+
+        final int oldPosition = buffer.position();
+        boolean moved = false;
+        channel.close();
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            // Keep appending to the old file if it could not be replaced.
+            open(moved ? newCapacity : capacity);
+            buffer.position(moved ? (int) size : oldPosition);
+        }
+    }
+
+    /**
+     * Forces the records onto the disk and closes the journal file.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    private void grow(final int minRemaining) throws IOException {
+        final int position = buffer.position();
+        final long newCapacity = Math.max((long) buffer.capacity() * 2, (long) position + minRemaining);
+
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IOException("The journal cannot grow over " + Integer.MAX_VALUE + " bytes.");
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        buffer.position(position);
+        log.info("Grew the session journal, {}, to {} bytes.", file, newCapacity);
+    }
+
+    private void open(final int minCapacity) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(minCapacity, channel.size()));
+    }
+
+    /**
+     * Reads the valid records from the beginning, putting the saved sessions into {@code sessions} if not null,
+     * and removing the deleted ones.
+     * @param sessions the sessions to update by the records, or null only to find the end
+     * @return the position of the end of the valid records
+     */
+    private int scan(final Map<String, MapSession> sessions) {
+        final ByteBuffer readBuffer = buffer.duplicate();
+        readBuffer.position(0);
+        final CRC32 crc = new CRC32();
+
+        while (readBuffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = readBuffer.position();
+            final int length = readBuffer.getInt();
+            final int checksum = readBuffer.getInt();
+
+            if (length <= 0 || length > readBuffer.remaining()) {
+                return start;
+            }
+
+            final byte [] record = new byte[length];
+            readBuffer.get(record);
+            crc.reset();
+            crc.update(record, 0, length);
+
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Stopped replaying the session journal, {}, at a corrupted record at {}.", file, start);
+                return start;
+            }
+
+            if (sessions != null) {
+                applyRecord(sessions, record);
+            }
+        }
+
+        return readBuffer.position();
+    }
+
+    private void applyRecord(final Map<String, MapSession> sessions, final byte [] record) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            final byte type = in.readByte();
+            final String id = in.readUTF();
+
+            // Remove first to keep the order of the last saves.
+            sessions.remove(id);
+
+            if (type != SAVED) {
+                return;
+            }
+
+            final MapSession session = new MapSession(id);
+            session.setCreationTime(Instant.ofEpochMilli(in.readLong()));
+            session.setLastAccessedTime(Instant.ofEpochMilli(in.readLong()));
+            session.setMaxInactiveInterval(Duration.ofSeconds(in.readLong()));
+            final byte [] attributes = new byte[in.readInt()];
+            in.readFully(attributes);
+
+            for (Map.Entry<String, Object> entry : deserializeAttributes(attributes).entrySet()) {
+                session.setAttribute(entry.getKey(), entry.getValue());
+            }
+
+            sessions.put(id, session);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Skipped a session record which cannot be read from the journal, {}: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * Serializes the {@code session} into a record of the saved session.
+     * @param session session
+     * @return the record of the saved session, or null if it cannot be serialized
+     */
+    private byte [] serializeSession(final MapSession session) {
+        try {
+            final HashMap<String, Object> attributes = new HashMap<String, Object>();
+
+            for (String name : session.getAttributeNames()) {
+                attributes.put(name, session.getAttribute(name));
+            }
+
+            final byte [] serializedAttributes = serializer.convert(attributes);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(serializedAttributes.length + 64);
+            final DataOutputStream out = new DataOutputStream(baos);
+            out.writeByte(SAVED);
+            out.writeUTF(session.getId());
+            out.writeLong(session.getCreationTime().toEpochMilli());
+            out.writeLong(session.getLastAccessedTime().toEpochMilli());
+            out.writeLong(session.getMaxInactiveInterval().getSeconds());
+            out.writeInt(serializedAttributes.length);
+            out.write(serializedAttributes);
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to serialize the session, {}: {}", session.getId(), e.toString());
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> deserializeAttributes(final byte [] data) {
+        return (Map<String, Object>) deserializer.convert(data);
+    }
+
+    private static void writeRecord(final ByteBuffer target, final byte [] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        final int start = target.position();
+
+        // Write the body before the length, so a partially written record is never taken as complete.
+        target.position(start + RECORD_HEADER_SIZE);
+        target.put(record);
+        final int end = target.position();
+        target.putInt(start + 4, (int) crc.getValue());
+        target.putInt(start, record.length);
+        target.position(end);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Store of byte arrays in fixed size blocks of direct <code>ByteBuffer</code> segments outside of the Java heap,
+ * used by {@link OffHeapMapSessionRepository}.
+ * <p>
+ * The segments are allocated on demand up to the maximum memory, and never released. A byte array is written
+ * into as many free blocks as it needs, so the memory is never fragmented, at the cost of the unused space
+ * in the last block of each array. The block numbers of each array are kept by the caller on the heap.
+ * </p>
+ * <p>
+ * Allocating and freeing blocks are synchronized, but reading and writing the blocks are not. The caller is
+ * responsible for not freeing the blocks being read, or for discarding what has been read from the blocks
+ * freed in the meantime.
+ * </p>
+ */
+class OffHeapBlockStore {
+
+    private static final int [] NO_BLOCKS = new int[0];
+
+    private final int blockSize;
+
+    private final int blocksPerSegment;
+
+    private final int maxSegments;
+
+    private volatile ByteBuffer [] segments = new ByteBuffer[0];
+
+    /**
+     * Stack of the free block numbers, guarded by this.
+     */
+    private int [] freeBlocks = NO_BLOCKS;
+
+    private int freeBlockCount;
+
+    /**
+     * Constructs a store.
+     * @param maxMemory the maximum number of bytes to allocate
+     * @param blockSize block size in bytes
+     * @param segmentSize segment size in bytes, rounded down to a multiple of the block size
+     * @throws IllegalArgumentException if any argument is not positive or the segment is smaller than a block
+     */
+    OffHeapBlockStore(final long maxMemory, final int blockSize, final int segmentSize) {
+        if (maxMemory <= 0 || blockSize <= 0 || segmentSize < blockSize) {
+            throw new IllegalArgumentException("Invalid off-heap store size: maxMemory=" + maxMemory + ", blockSize="
+                    + blockSize + ", segmentSize=" + segmentSize);
+        }
+
+        this.blockSize = blockSize;
+        blocksPerSegment = segmentSize / blockSize;
+        maxSegments = (int) Math.max(1L, Math.min(Integer.MAX_VALUE / blocksPerSegment,
+                maxMemory / ((long) blocksPerSegment * blockSize)));
+    }
+
+    /**
+     * Writes the {@code data} into free blocks.
+     * @param data data
+     * @return the block numbers in order, or null if not enough blocks are free
+     */
+    int [] write(final byte [] data) {
+        final int [] blocks = allocate((data.length + blockSize - 1) / blockSize);
+
+        if (blocks == null) {
+            return null;
+        }
+
+        final ByteBuffer [] currentSegments = segments;
+
+        for (int i = 0; i < blocks.length; i++) {
+            final int offset = i * blockSize;
+            final ByteBuffer buffer = currentSegments[blocks[i] / blocksPerSegment].duplicate();
+            buffer.position((blocks[i] % blocksPerSegment) * blockSize);
+            buffer.put(data, offset, Math.min(blockSize, data.length - offset));
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Reads {@code length} bytes from the {@code blocks}.
+     * @param blocks block numbers returned by {@link #write(byte[])}
+     * @param length the number of the bytes written
+     * @return the bytes read
+     */
+    byte [] read(final int [] blocks, final int length) {
+        final byte [] data = new byte[length];
+        final ByteBuffer [] currentSegments = segments;
+
+        for (int i = 0; i < blocks.length; i++) {
+            final int offset = i * blockSize;
+            final ByteBuffer buffer = currentSegments[blocks[i] / blocksPerSegment].duplicate();
+            buffer.position((blocks[i] % blocksPerSegment) * blockSize);
+            buffer.get(data, offset, Math.min(blockSize, length - offset));
+        }
+
+        return data;
+    }
+
+    /**
+     * Frees the {@code blocks} to be reused.
+     * @param blocks block numbers returned by {@link #write(byte[])}
+     */
+    synchronized void free(final int [] blocks) {
+        System.arraycopy(blocks, 0, freeBlocks, freeBlockCount, blocks.length);
+        freeBlockCount += blocks.length;
+    }
+
+    /**
+     * Returns the number of the bytes allocated outside of the heap.
+     * @return the number of the bytes allocated outside of the heap
+     */
+    long getAllocatedMemory() {
+        return (long) segments.length * blocksPerSegment * blockSize;
+    }
+
+    /**
+     * Returns the number of the bytes in the blocks in use.
+     * @return the number of the bytes in the blocks in use
+     */
+    synchronized long getUsedMemory() {
+        return ((long) segments.length * blocksPerSegment - freeBlockCount) * blockSize;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    private synchronized int [] allocate(final int count) {
+        if (count == 0) {
+            return NO_BLOCKS;
+        }
+
+        while (freeBlockCount < count && segments.length < maxSegments) {
+            addSegment();
+        }
+
+        if (freeBlockCount < count) {
+            return null;
+        }
+
+        freeBlockCount -= count;
+        return Arrays.copyOfRange(freeBlocks, freeBlockCount, freeBlockCount + count);
+    }
+
+    private void addSegment() {
+        final ByteBuffer [] currentSegments = segments;
+        final int segmentIndex = currentSegments.length;
+        final ByteBuffer segment = ByteBuffer.allocateDirect(blocksPerSegment * blockSize);
+
+        freeBlocks = Arrays.copyOf(freeBlocks, (segmentIndex + 1) * blocksPerSegment);
+
+        // Push the blocks in reverse order, so the blocks are allocated from the beginning of the segment.
+        for (int i = blocksPerSegment - 1; i >= 0; i--) {
+            freeBlocks[freeBlockCount++] = segmentIndex * blocksPerSegment + i;
+        }
+
+        final ByteBuffer [] newSegments = Arrays.copyOf(currentSegments, segmentIndex + 1);
+        newSegments[segmentIndex] = segment;
+        segments = newSegments;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.serializer.support.DeserializingConverter;
+import org.springframework.core.serializer.support.SerializingConverter;
+import org.springframework.session.MapSession;
+
+/**
+ * {@link ExpiringMapSessionRepository} keeping the session attributes serialized outside of the Java heap,
+ * in direct <code>ByteBuffer</code>s, and only a small index entry per session on the heap, which is never
+ * handed out of the repository as a session.
+ * <p>
+ * This reduces the heap usage and the GC pressure of many or big sessions, at the cost of serializing
+ * the attributes on every save and deserializing them on every lookup, like an external session store does
+ * but without a network round trip. So all the session attributes must be <code>Serializable</code>.
+ * </p>
+ * <p>
+ * The off-heap memory is allocated on demand up to the maximum memory given to the constructor.
+ * When it is full, the expired sessions are removed first and then the least recently accessed sessions
+ * are evicted to make room for the session being saved. A session larger than the maximum memory
+ * cannot be saved, throwing an <code>IllegalStateException</code>.
+ * </p>
+ */
+public class OffHeapMapSessionRepository extends ExpiringMapSessionRepository {
+
+    private static Logger log = LoggerFactory.getLogger(OffHeapMapSessionRepository.class);
+
+    /**
+     * The default maximum number of the bytes to allocate outside of the heap.
+     */
+    public static final long DEFAULT_MAX_MEMORY = 256L * 1024L * 1024L;
+
+    /**
+     * The default size of the blocks the serialized session attributes are stored in.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final OffHeapBlockStore store;
+
+    private final SerializingConverter serializer = new SerializingConverter();
+
+    private final DeserializingConverter deserializer = new DeserializingConverter();
+
+    /**
+     * Constructs a repository allocating up to {@link #DEFAULT_MAX_MEMORY} bytes outside of the heap.
+     */
+    public OffHeapMapSessionRepository() {
+        this(DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Constructs a repository allocating up to {@code maxMemory} bytes outside of the heap.
+     * @param maxMemory the maximum number of the bytes to allocate outside of the heap
+     */
+    public OffHeapMapSessionRepository(final long maxMemory) {
+        this(maxMemory, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructs a repository allocating up to {@code maxMemory} bytes outside of the heap,
+     * in blocks of {@code blockSize} bytes.
+     * @param maxMemory the maximum number of the bytes to allocate outside of the heap
+     * @param blockSize the size of the blocks the serialized session attributes are stored in
+     */
+    public OffHeapMapSessionRepository(final long maxMemory, final int blockSize) {
+        super();
+        store = new OffHeapBlockStore(maxMemory, blockSize, (int) Math.max(blockSize, Math.min(SEGMENT_SIZE, maxMemory)));
+    }
+
+    /**
+     * Returns the number of the bytes allocated outside of the heap.
+     * @return the number of the bytes allocated outside of the heap
+     */
+    public long getAllocatedMemory() {
+        return store.getAllocatedMemory();
+    }
+
+    /**
+     * Returns the number of the bytes in use by the sessions outside of the heap.
+     * @return the number of the bytes in use by the sessions outside of the heap
+     */
+    public long getUsedMemory() {
+        return store.getUsedMemory();
+    }
+
+    /**
+     * Writes the serialized attributes of the {@code session} outside of the heap, removing the expired sessions
+     * and evicting the least recently accessed sessions if full.
+     * @throws IllegalStateException if there's no room for the session even after evicting the other sessions
+     */
+    @Override
+    protected SessionEntry createEntry(final MapSession session) {
+        final byte [] data = serializeAttributes(session);
+        int [] blocks = store.write(data);
+
+        if (blocks == null) {
+            cleanUpExpiredSessions();
+            blocks = store.write(data);
+        }
+
+        while (blocks == null && evictLeastRecentlyAccessedSessions(Math.max(1, getSessionCount() / 10)) > 0) {
+            log.info("Evicted least recently accessed sessions as the off-heap session store is full.");
+            blocks = store.write(data);
+        }
+
+        if (blocks == null) {
+            throw new IllegalStateException("No room for the session of " + data.length
+                    + " bytes in the off-heap session store.");
+        }
+
+        return new OffHeapSessionEntry(session, blocks, data.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected MapSession loadSession(final String id) {
+        OffHeapSessionEntry entry = (OffHeapSessionEntry) getSessionEntry(id);
+        byte [] data = null;
+
+        while (entry != null) {
+            data = store.read(entry.blocks, entry.length);
+
+            // The blocks may have been freed and reused while being read, unless the session is still there.
+            final OffHeapSessionEntry current = (OffHeapSessionEntry) getSessionEntry(id);
+
+            if (current == entry) {
+                break;
+            }
+
+            entry = current;
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        final MapSession session = new MapSession(id);
+        session.setCreationTime(Instant.ofEpochMilli(entry.creationTime));
+        session.setLastAccessedTime(entry.getLastAccessedTime());
+        session.setMaxInactiveInterval(entry.getMaxInactiveInterval());
+
+        for (Map.Entry<String, Object> attribute : deserializeAttributes(data).entrySet()) {
+            session.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+
+        return session;
+    }
+
+    /**
+     * Frees the off-heap blocks of the removed session.
+     * @param entry the removed entry
+     */
+    @Override
+    protected void sessionRemoved(SessionEntry entry) {
+        store.free(((OffHeapSessionEntry) entry).blocks);
+    }
+
+    private byte [] serializeAttributes(final MapSession session) {
+        final HashMap<String, Object> attributes = new HashMap<String, Object>();
+
+        for (String name : session.getAttributeNames()) {
+            attributes.put(name, session.getAttribute(name));
+        }
+
+        return serializer.convert(attributes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> deserializeAttributes(final byte [] data) {
+        return (Map<String, Object>) deserializer.convert(data);
+    }
+
+    /**
+     * Index entry of a session kept on the heap, with the off-heap blocks of the serialized attributes.
+     */
+    private static class OffHeapSessionEntry extends SessionEntry {
+
+        private final long creationTime;
+        private final int [] blocks;
+        private final int length;
+
+        private OffHeapSessionEntry(final MapSession session, final int [] blocks, final int length) {
+            super(session);
+            creationTime = session.getCreationTime().toEpochMilli();
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+}
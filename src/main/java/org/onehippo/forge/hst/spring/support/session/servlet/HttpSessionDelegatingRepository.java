@@ -22,6 +22,10 @@ import org.springframework.session.SessionRepository;
 
 /**
  * {@link SessionRepository} implementation simply by delegating call to the underlying servlet container's {@link HttpSession}.
+ * <p>
+ * A new {@link HttpSessionDelegatingSession} is returned by each lookup, and saving it pushes only the attributes
+ * changed through it to the {@link HttpSession}.
+ * </p>
  */
 public class HttpSessionDelegatingRepository implements SessionRepository<HttpSessionDelegatingSession> {
 
@@ -34,15 +38,20 @@ public class HttpSessionDelegatingRepository implements SessionRepository<HttpSe
         }
 
         final HttpSession httpSession = request.getSession(true);
-        final HttpSessionDelegatingSession session = new HttpSessionDelegatingSession(httpSession);
-        httpSession.setAttribute(HttpSessionDelegatingSession.NAME, session);
+        // Mark the container's session as managed by Spring Session.
+        final HttpSessionDelegatingSession.InvalidationListener invalidationListener =
+                HttpSessionDelegatingSession.bindInvalidationListener(httpSession,
+                        httpSession.getAttribute(HttpSessionDelegatingSession.NAME));
 
-        return session;
+        return new HttpSessionDelegatingSession(httpSession, invalidationListener);
     }
 
     @Override
     public void save(HttpSessionDelegatingSession session) {
-        // Nothing to do as container's session management does care of it.
+        // Container's session management takes care of the rest, replicating the changed attributes if clustered.
+        if (session.hasChanges()) {
+            session.saveChanges();
+        }
     }
 
     @Override
@@ -54,18 +63,26 @@ public class HttpSessionDelegatingRepository implements SessionRepository<HttpSe
             return null;
         }
 
-        HttpSessionDelegatingSession session = (HttpSessionDelegatingSession) httpSession.getAttribute(HttpSessionDelegatingSession.NAME);
+        final Object marker;
+
+        // Check the validity only once here, as the session is notified of the invalidation afterward.
+        try {
+            marker = httpSession.getAttribute(HttpSessionDelegatingSession.NAME);
+        } catch (IllegalStateException e) {
+            return null;
+        }
 
-        if (session != null) {
-            // If previous JSESSIONID cookie in browser's in-memory session remains while tomcat gets restarted,
-            // then we need to recreate Session again.
-            if (!httpSession.getId().equals(id)) {
-                session = new HttpSessionDelegatingSession(httpSession);
-                httpSession.setAttribute(HttpSessionDelegatingSession.NAME, session);
-            }
+        // The marker may still be a session instance or a flag stored by an older version.
+        if (marker == null) {
+            return null;
         }
 
-        return session;
+        // Always wrap the current container's session, even if the previous JSESSIONID cookie in browser's
+        // in-memory session remains while tomcat gets restarted.
+        final HttpSessionDelegatingSession.InvalidationListener invalidationListener =
+                HttpSessionDelegatingSession.bindInvalidationListener(httpSession, marker);
+        HttpSessionDelegatingSession.migrateAttributesMap(httpSession);
+        return new HttpSessionDelegatingSession(httpSession, invalidationListener);
     }
 
     @Override
@@ -77,12 +94,8 @@ public class HttpSessionDelegatingRepository implements SessionRepository<HttpSe
             return;
         }
 
-        HttpSessionDelegatingSession session = (HttpSessionDelegatingSession) httpSession.getAttribute(HttpSessionDelegatingSession.NAME);
-
-        if (session != null) {
-            if (session.getId().equals(id)) {
-                httpSession.invalidate();
-            }
+        if (httpSession.getAttribute(HttpSessionDelegatingSession.NAME) != null && httpSession.getId().equals(id)) {
+            httpSession.invalidate();
         }
     }
 }
@@ -15,22 +15,46 @@
  */
 package org.onehippo.forge.hst.spring.support.session.servlet;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 
 import org.springframework.session.Session;
 
 /**
  * {@link Session} implementation simply by delegating call to the underlying container's {@link HttpSession}.
+ * <p>
+ * Each session attribute is stored as a separate attribute of the {@link HttpSession}, prefixed by
+ * {@link #ATTRIBUTE_NAME_PREFIX}. The attributes set or removed are tracked in this session,
+ * and pushed to the {@link HttpSession} only when saved by {@link HttpSessionDelegatingRepository#save(HttpSessionDelegatingSession)},
+ * so that a clustered servlet container replicates only the changed attributes.
+ * As in the other Spring Session repositories, an attribute value modified in place must be set again to be saved.
+ * </p>
+ * <p>
+ * As a new instance wraps the {@link HttpSession} per request, the attributes read from the {@link HttpSession}
+ * and the attribute names are cached in this session, not to look those up in the {@link HttpSession} again
+ * on every call. So the changes saved by the other concurrent requests of the same session are not seen
+ * through this session once read. However, once the {@link HttpSession} is invalidated, e.g. directly by other code
+ * in the middle of the request, the cached attributes are dropped and an <code>IllegalStateException</code> is thrown
+ * as by the {@link HttpSession}. The invalidation is notified to an {@link InvalidationListener} bound to
+ * the {@link HttpSession} once as the marker of the session managed by Spring Session, so reading an attribute
+ * never calls the {@link HttpSession} only to check its validity.
+ * </p>
  */
 public class HttpSessionDelegatingSession implements Session, Serializable {
 
@@ -38,13 +62,95 @@ public class HttpSessionDelegatingSession implements Session, Serializable {
 
     static final String NAME = HttpSessionDelegatingSession.class.getName();
 
+    /**
+     * The prefix of the names of the {@link HttpSession} attributes storing the session attributes.
+     */
+    static final String ATTRIBUTE_NAME_PREFIX = HttpSessionDelegatingSession.class.getName() + ".attr.";
+
+    /**
+     * The name of the {@link HttpSession} attribute in which all the session attributes used to be stored as a map.
+     */
     private static final String SESSION_ATTRS_MAP_KEY = HttpSessionDelegatingSession.class.getName() + ".sessionAttrsMap";
 
+    /**
+     * Marker of a removed attribute in the changes or a missing attribute in the cached attributes,
+     * as a concurrent map cannot have a null value.
+     */
+    private static final Object REMOVED = new Object();
+
     private transient HttpSession httpSession;
     private Instant lastAccessedTime;
 
-    HttpSessionDelegatingSession(final HttpSession httpSession) {
+    /**
+     * The listener notified of the invalidation of the {@link HttpSession}, or null if deserialized.
+     */
+    private transient volatile InvalidationListener invalidationListener;
+
+    /**
+     * The attribute values set or {@link #REMOVED} since the last save, by attribute names.
+     */
+    private transient ConcurrentMap<String, Object> changes;
+
+    /**
+     * The attribute values or {@link #REMOVED} read from the {@link HttpSession} or saved to it, by attribute names.
+     */
+    private transient ConcurrentMap<String, Object> cachedAttributes;
+
+    /**
+     * The attribute names in the {@link HttpSession}, or null if not read yet or outdated by a save.
+     */
+    private transient volatile Set<String> cachedAttributeNames;
+
+    HttpSessionDelegatingSession(final HttpSession httpSession, final InvalidationListener invalidationListener) {
         this.httpSession = httpSession;
+        this.invalidationListener = invalidationListener;
+        changes = new ConcurrentHashMap<>();
+        cachedAttributes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts with no changes and no cached attributes after deserialized, as those are not serialized.
+     */
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        changes = new ConcurrentHashMap<>();
+        cachedAttributes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the {@link InvalidationListener} bound to the {@code httpSession} as the marker of the session managed
+     * by Spring Session, binding a new one only if not bound yet, e.g. in place of a marker stored by an older version.
+     * @param httpSession the underlying container's session
+     * @param marker the current value of the marker attribute in the {@code httpSession}, or null if not marked
+     * @return the {@link InvalidationListener} bound to the {@code httpSession}
+     */
+    static InvalidationListener bindInvalidationListener(final HttpSession httpSession, final Object marker) {
+        if (marker instanceof InvalidationListener && !((InvalidationListener) marker).isInvalidated()) {
+            return (InvalidationListener) marker;
+        }
+
+        final InvalidationListener invalidationListener = new InvalidationListener();
+        httpSession.setAttribute(NAME, invalidationListener);
+        return invalidationListener;
+    }
+
+    /**
+     * Moves the session attributes stored as a map in the {@code httpSession} by an older version, if any,
+     * to separate attributes.
+     * @param httpSession the underlying container's session
+     */
+    static void migrateAttributesMap(final HttpSession httpSession) {
+        final Map<String, Object> sessionAttrs = (Map<String, Object>) httpSession.getAttribute(SESSION_ATTRS_MAP_KEY);
+
+        if (sessionAttrs == null) {
+            return;
+        }
+
+        for (Map.Entry<String, Object> entry : sessionAttrs.entrySet()) {
+            httpSession.setAttribute(ATTRIBUTE_NAME_PREFIX + entry.getKey(), entry.getValue());
+        }
+
+        httpSession.removeAttribute(SESSION_ATTRS_MAP_KEY);
     }
 
     @Override
@@ -54,22 +160,66 @@ public class HttpSessionDelegatingSession implements Session, Serializable {
 
     @Override
     public <T> T getAttribute(String attributeName) {
-        final Map<String, Object> sessionAttrs = (Map<String, Object>) httpSession.getAttribute(SESSION_ATTRS_MAP_KEY);
-        return (sessionAttrs != null) ? (T) sessionAttrs.get(attributeName) : null;
+        checkValid();
+
+        final Object changedValue = changes.get(attributeName);
+
+        if (changedValue != null) {
+            return (changedValue != REMOVED) ? (T) changedValue : null;
+        }
+
+        Object value = cachedAttributes.get(attributeName);
+
+        if (value == null) {
+            value = httpSession.getAttribute(ATTRIBUTE_NAME_PREFIX + attributeName);
+
+            if (value == null) {
+                value = REMOVED;
+            }
+
+            // Don't overwrite the value saved meanwhile.
+            final Object existingValue = cachedAttributes.putIfAbsent(attributeName, value);
+
+            if (existingValue != null) {
+                value = existingValue;
+            }
+        }
+
+        return (value != REMOVED) ? (T) value : null;
     }
 
     @Override
     public Set<String> getAttributeNames() {
-        final Map<String, Object> sessionAttrs = (Map<String, Object>) httpSession.getAttribute(SESSION_ATTRS_MAP_KEY);
+        checkValid();
 
-        if (sessionAttrs == null) {
-            return Collections.emptySet();
+        Set<String> containerAttrNames = cachedAttributeNames;
+
+        if (containerAttrNames == null) {
+            containerAttrNames = new HashSet<>();
+
+            for (Enumeration<String> names = httpSession.getAttributeNames(); names.hasMoreElements(); ) {
+                final String name = names.nextElement();
+
+                if (name.startsWith(ATTRIBUTE_NAME_PREFIX)) {
+                    containerAttrNames.add(name.substring(ATTRIBUTE_NAME_PREFIX.length()));
+                }
+            }
+
+            cachedAttributeNames = containerAttrNames;
         }
 
-        Set<String> attrNames;
+        if (changes.isEmpty()) {
+            return Collections.unmodifiableSet(containerAttrNames);
+        }
 
-        synchronized (sessionAttrs) {
-            attrNames = new HashSet<>(sessionAttrs.keySet());
+        final Set<String> attrNames = new HashSet<>(containerAttrNames);
+
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            if (entry.getValue() != REMOVED) {
+                attrNames.add(entry.getKey());
+            } else {
+                attrNames.remove(entry.getKey());
+            }
         }
 
         return Collections.unmodifiableSet(attrNames);
@@ -77,22 +227,65 @@ public class HttpSessionDelegatingSession implements Session, Serializable {
 
     @Override
     public void setAttribute(String attributeName, Object attributeValue) {
-        Map<String, Object> sessionAttrs = (Map<String, Object>) httpSession.getAttribute(SESSION_ATTRS_MAP_KEY);
-
-        if (sessionAttrs == null) {
-            sessionAttrs = new ConcurrentHashMap<>();
-            httpSession.setAttribute(SESSION_ATTRS_MAP_KEY, sessionAttrs);
+        if (attributeValue == null) {
+            removeAttribute(attributeName);
+            return;
         }
 
-        sessionAttrs.put(attributeName, attributeValue);
+        changes.put(attributeName, attributeValue);
     }
 
     @Override
     public void removeAttribute(String attributeName) {
-        final Map<String, Object> sessionAttrs = (Map<String, Object>) httpSession.getAttribute(SESSION_ATTRS_MAP_KEY);
+        changes.put(attributeName, REMOVED);
+    }
+
+    /**
+     * Throws an <code>IllegalStateException</code> if the container's session has been invalidated, dropping
+     * the cached attributes, not to serve those of the invalidated session. Only the flag of the
+     * {@link InvalidationListener} is read, without calling the container's session.
+     * @throws IllegalStateException if the container's session has been invalidated
+     */
+    private void checkValid() {
+        final InvalidationListener listener = invalidationListener;
+
+        if (listener != null && listener.isInvalidated()) {
+            cachedAttributes.clear();
+            cachedAttributeNames = null;
+            throw new IllegalStateException("The session has been invalidated.");
+        }
+    }
 
-        if (sessionAttrs != null) {
-            sessionAttrs.remove(attributeName);
+    /**
+     * Returns true if any attribute has been set or removed since the last save.
+     * @return true if any attribute has been set or removed since the last save
+     */
+    boolean hasChanges() {
+        return !changes.isEmpty();
+    }
+
+    /**
+     * Pushes only the attributes set or removed since the last save to the underlying container's session.
+     */
+    void saveChanges() {
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            final String attributeName = entry.getKey();
+            final Object value = entry.getValue();
+
+            // Cache it before removing the change, as the change takes precedence as long as it remains.
+            cachedAttributes.put(attributeName, value);
+            cachedAttributeNames = null;
+
+            // Keep the change made by another thread meanwhile to be pushed by the next save.
+            if (!changes.remove(attributeName, value)) {
+                continue;
+            }
+
+            if (value != REMOVED) {
+                httpSession.setAttribute(ATTRIBUTE_NAME_PREFIX + attributeName, value);
+            } else {
+                httpSession.removeAttribute(ATTRIBUTE_NAME_PREFIX + attributeName);
+            }
         }
     }
 
@@ -137,12 +330,69 @@ public class HttpSessionDelegatingSession implements Session, Serializable {
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * As servlet 3.0 cannot change the ID of a container's session, the container's session is invalidated
+     * and a new one is created with the attributes copied over. The unsaved changes are kept to be saved later.
+     * </p>
+     */
     @Override
     public String changeSessionId() {
         final HttpServletRequest request = HttpSessionDelegatingContext.getCurrentServletRequest();
+        final Map<String, Object> attributes = new HashMap<>();
+
+        for (Enumeration<String> names = httpSession.getAttributeNames(); names.hasMoreElements(); ) {
+            final String name = names.nextElement();
+
+            // The listener is notified of the invalidation below, so a new one is bound to the new session.
+            if (!NAME.equals(name)) {
+                attributes.put(name, httpSession.getAttribute(name));
+            }
+        }
+
         httpSession.invalidate();
         httpSession = request.getSession(true);
+
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            httpSession.setAttribute(entry.getKey(), entry.getValue());
+        }
+
+        invalidationListener = bindInvalidationListener(httpSession, httpSession.getAttribute(NAME));
+
+        // Read the attributes again from the new container's session, which may have been changed by listeners.
+        cachedAttributes.clear();
+        cachedAttributeNames = null;
+
         return httpSession.getId();
     }
 
+    /**
+     * Marker of the {@link HttpSession} managed by Spring Session, notified when unbound from the {@link HttpSession},
+     * e.g. on the invalidation or the expiration, to stop serving the attributes cached in the sessions
+     * wrapping it.
+     */
+    static final class InvalidationListener implements HttpSessionBindingListener, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient volatile boolean invalidated;
+
+        /**
+         * Returns true if unbound from the {@link HttpSession}.
+         * @return true if unbound from the {@link HttpSession}
+         */
+        boolean isInvalidated() {
+            return invalidated;
+        }
+
+        @Override
+        public void valueBound(HttpSessionBindingEvent event) {
+        }
+
+        @Override
+        public void valueUnbound(HttpSessionBindingEvent event) {
+            invalidated = true;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.util;
+
+/**
+ * Settings of the default resource bundle caches of {@link HstLocalizationUtils} shared across requests,
+ * passed down by the caller, e.g. <code>HstRepositoryResourceBundleMessageSource</code>, so that those can be
+ * configured per application as bean properties.
+ */
+public class DefaultResourceBundleCacheSettings {
+
+    /**
+     * Maximum number of the cached resolved default resource bundles, and of the merged ones.
+     */
+    private volatile int maxCachedResourceBundles = HstLocalizationUtils.DEFAULT_MAX_CACHED_RESOURCE_BUNDLES;
+
+    /**
+     * Time in milliseconds to remember a resource bundle ID not found for a locale.
+     */
+    private volatile long missingResourceBundleTtlMillis = HstLocalizationUtils.DEFAULT_MISSING_RESOURCE_BUNDLE_TTL_MILLIS;
+
+    /**
+     * Returns the maximum number of the cached resolved default resource bundles, and of the merged ones.
+     * Zero or negative for no limit.
+     * @return the maximum number of the cached resolved default resource bundles, and of the merged ones
+     */
+    public int getMaxCachedResourceBundles() {
+        return maxCachedResourceBundles;
+    }
+
+    /**
+     * Sets the maximum number of the cached resolved default resource bundles, and of the merged ones.
+     * Zero or negative for no limit. {@link HstLocalizationUtils#DEFAULT_MAX_CACHED_RESOURCE_BUNDLES} by default.
+     * <p>
+     * The caches are keyed by the preferred locale among others, which may be resolved from the request,
+     * e.g. from the <code>Accept-Language</code> header. So, when a cache grows over the limit,
+     * arbitrary entries are evicted down to 90% of the limit, to be resolved again when requested.
+     * </p>
+     * @param maxCachedResourceBundles the maximum number of the cached resolved default resource bundles,
+     *        and of the merged ones
+     */
+    public void setMaxCachedResourceBundles(int maxCachedResourceBundles) {
+        this.maxCachedResourceBundles = maxCachedResourceBundles;
+    }
+
+    /**
+     * Returns the time in milliseconds to remember a resource bundle ID not found for a locale.
+     * Zero or negative if not remembered.
+     * @return the time in milliseconds to remember a resource bundle ID not found for a locale
+     */
+    public long getMissingResourceBundleTtlMillis() {
+        return missingResourceBundleTtlMillis;
+    }
+
+    /**
+     * Sets the time in milliseconds to remember a resource bundle ID not found for a locale, during which it is
+     * regarded as missing without looking it up again. Zero or negative not to remember it at all.
+     * {@link HstLocalizationUtils#DEFAULT_MISSING_RESOURCE_BUNDLE_TTL_MILLIS} by default.
+     * It is applied to the resource bundle IDs found missing afterward.
+     * @param missingResourceBundleTtlMillis the time in milliseconds to remember a resource bundle ID not found
+     */
+    public void setMissingResourceBundleTtlMillis(long missingResourceBundleTtlMillis) {
+        this.missingResourceBundleTtlMillis = missingResourceBundleTtlMillis;
+    }
+
+}
@@ -16,17 +16,29 @@
 package org.onehippo.forge.hst.spring.support.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListResourceBundle;
 import java.util.Locale;
+import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.hippoecm.hst.configuration.hosting.Mount;
+import org.hippoecm.hst.configuration.sitemap.HstSiteMapItem;
 import org.hippoecm.hst.container.RequestContextProvider;
 import org.hippoecm.hst.core.request.HstRequestContext;
-import org.hippoecm.hst.resourcebundle.CompositeResourceBundle;
+import org.hippoecm.hst.core.request.ResolvedMount;
+import org.hippoecm.hst.core.request.ResolvedSiteMapItem;
 import org.hippoecm.hst.resourcebundle.ResourceBundleRegistry;
 import org.hippoecm.hst.site.HstServices;
+import org.hippoecm.hst.util.DefaultKeyValue;
+import org.hippoecm.hst.util.KeyValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +60,52 @@ public class HstLocalizationUtils {
         }
     };
 
+    /**
+     * The default maximum number of the cached resolved default resource bundles, and of the merged ones.
+     */
+    public static final int DEFAULT_MAX_CACHED_RESOURCE_BUNDLES = 1000;
+
+    /**
+     * The cache settings used when no settings are given by the caller.
+     */
+    private static final DefaultResourceBundleCacheSettings DEFAULT_CACHE_SETTINGS = new DefaultResourceBundleCacheSettings();
+
+    /**
+     * Lock to let only one thread evict cached resource bundles at a time.
+     */
+    private static final Lock EVICTION_LOCK = new ReentrantLock();
+
+    /**
+     * Merged default resource bundles by bundle IDs, locale and preview, each of which is reused across requests
+     * as long as it has been merged from the current bundle instances.
+     */
+    private static final ConcurrentMap<MergedResourceBundleKey, MergedResourceBundle> MERGED_RESOURCE_BUNDLES =
+            new ConcurrentHashMap<MergedResourceBundleKey, MergedResourceBundle>();
+
+    /**
+     * Resolved default resource bundles by mount, sitemap item, locale and preview, each of which is reused
+     * across requests as long as the registry returns the same bundle instances.
+     */
+    private static final ConcurrentMap<DefaultResourceBundleKey, DefaultResourceBundleEntry> DEFAULT_RESOURCE_BUNDLES =
+            new ConcurrentHashMap<DefaultResourceBundleKey, DefaultResourceBundleEntry>();
+
+    /**
+     * The default time in milliseconds to remember a resource bundle ID not found for a locale.
+     */
+    public static final long DEFAULT_MISSING_RESOURCE_BUNDLE_TTL_MILLIS = 60000L;
+
+    /**
+     * Expiration times of the live resource bundle IDs not found, keyed by bundle ID and locale.
+     */
+    private static final ConcurrentMap<KeyValue<String, Locale>, Long> MISSING_RESOURCE_BUNDLES =
+            new ConcurrentHashMap<KeyValue<String, Locale>, Long>();
+
+    /**
+     * Expiration times of the preview resource bundle IDs not found, keyed by bundle ID and locale.
+     */
+    private static final ConcurrentMap<KeyValue<String, Locale>, Long> MISSING_PREVIEW_RESOURCE_BUNDLES =
+            new ConcurrentHashMap<KeyValue<String, Locale>, Long>();
+
     private HstLocalizationUtils() {
     }
 
@@ -69,10 +127,28 @@ public class HstLocalizationUtils {
      * For performance reason, the resolved default resource bundle is stored in HstRequestContext attribute
      * not to resolve again in the same request processing cycle.
      * </p>
+     * <p>
+     * The resolved default resource bundle is also cached per mount, sitemap item, locale and preview across requests,
+     * and reused as long as the registry returns the same bundles. If multiple resource bundles are configured,
+     * those are merged into a single resource bundle, which is reused across requests until any of the bundles is refreshed.
+     * </p>
      * @param defaultBundleWhenNotFound default resource bundle to use when no bundle found.
      * @return current default resource bundle
      */
     public static ResourceBundle getCurrentDefaultResourceBundle(final ResourceBundle defaultBundleWhenNotFound) {
+        return getCurrentDefaultResourceBundle(defaultBundleWhenNotFound, DEFAULT_CACHE_SETTINGS);
+    }
+
+    /**
+     * Resolve and return the default resource bundle(s) configured in HST-2 configurations,
+     * caching those across requests by the {@code cacheSettings}.
+     * @param defaultBundleWhenNotFound default resource bundle to use when no bundle found.
+     * @param cacheSettings the settings of the caches shared across requests
+     * @return current default resource bundle
+     * @see #getCurrentDefaultResourceBundle(ResourceBundle)
+     */
+    public static ResourceBundle getCurrentDefaultResourceBundle(final ResourceBundle defaultBundleWhenNotFound,
+            final DefaultResourceBundleCacheSettings cacheSettings) {
         HstRequestContext requestContext = RequestContextProvider.get();
 
         if (requestContext == null) {
@@ -85,64 +161,251 @@ public class HstLocalizationUtils {
             return defaultResourceBundle;
         }
 
-        List<ResourceBundle> bundles = new ArrayList<ResourceBundle>();
+        defaultResourceBundle = resolveDefaultResourceBundle(requestContext, cacheSettings);
+
+        if (defaultResourceBundle == null) {
+            defaultResourceBundle = defaultBundleWhenNotFound != null ? defaultBundleWhenNotFound : EMPTY_RESOURCE_BUNDLE;
+        }
 
-        if (requestContext.getResolvedMount() != null) {
-            String[] bundleIds = null;
+        requestContext.setAttribute(DEFAULT_RESOURCE_BUNDLE_ATTR, defaultResourceBundle);
 
-            if (requestContext.getResolvedSiteMapItem() != null) {
-                bundleIds = requestContext.getResolvedSiteMapItem().getHstSiteMapItem().getResourceBundleIds();
-            } else {
-                bundleIds = requestContext.getResolvedMount().getMount().getDefaultResourceBundleIds();
-            }
+        return defaultResourceBundle;
+    }
 
-            Locale locale = requestContext.getPreferredLocale();
-            ResourceBundleRegistry resourceBundleRegistry = getResourceBundleRegistry();
-            ResourceBundle bundle = null;
-
-            for (String bundleId : bundleIds) {
-                try {
-                    if (resourceBundleRegistry != null) {
-                        if (locale == null) {
-                            bundle = (requestContext.isPreview() ? resourceBundleRegistry.getBundleForPreview(bundleId)
-                                    : resourceBundleRegistry.getBundle(bundleId));
-                        } else {
-                            bundle = (requestContext.isPreview()
-                                    ? resourceBundleRegistry.getBundleForPreview(bundleId, locale)
-                                    : resourceBundleRegistry.getBundle(bundleId, locale));
-                        }
-                    } else {
-                        if (locale == null) {
-                            bundle = ResourceBundle.getBundle(bundleId, Locale.getDefault(),
-                                    Thread.currentThread().getContextClassLoader());
-                        } else {
-                            bundle = ResourceBundle.getBundle(bundleId, locale,
-                                    Thread.currentThread().getContextClassLoader());
-                        }
-                    }
-
-                    if (bundle != null) {
-                        bundles.add(bundle);
-                    }
-                } catch (MissingResourceException e) {
-                    log.warn("Resource bundle not found by the basename, '{}'. {}", bundleId, e);
-                }
+    /**
+     * Resolves the default resource bundle of the resolved sitemap item, or of the resolved mount if no sitemap item
+     * is resolved, from the cache shared across requests if it is still current, or null if no bundle is found.
+     * <p>
+     * A cached default resource bundle is current if the same bundle IDs are configured and the registry
+     * still returns the same bundle instances by those. So only the registry is looked up by each bundle ID
+     * without any allocation for a current one.
+     * </p>
+     * @param requestContext request context
+     * @param cacheSettings the settings of the caches shared across requests
+     * @return the default resource bundle, or null if no bundle is found
+     */
+    private static ResourceBundle resolveDefaultResourceBundle(final HstRequestContext requestContext,
+            final DefaultResourceBundleCacheSettings cacheSettings) {
+        final ResolvedMount resolvedMount = requestContext.getResolvedMount();
+
+        if (resolvedMount == null) {
+            return null;
+        }
+
+        final Mount mount = resolvedMount.getMount();
+        final ResolvedSiteMapItem resolvedSiteMapItem = requestContext.getResolvedSiteMapItem();
+        final HstSiteMapItem siteMapItem = (resolvedSiteMapItem != null) ? resolvedSiteMapItem.getHstSiteMapItem() : null;
+        final String[] bundleIds = (siteMapItem != null) ? siteMapItem.getResourceBundleIds()
+                : mount.getDefaultResourceBundleIds();
+        final Locale locale = requestContext.getPreferredLocale();
+        final boolean preview = requestContext.isPreview();
+        final ResourceBundleRegistry resourceBundleRegistry = getResourceBundleRegistry();
+
+        final DefaultResourceBundleKey key = new DefaultResourceBundleKey(mount.getIdentifier(),
+                (siteMapItem != null) ? siteMapItem.getId() : null, locale, preview);
+        DefaultResourceBundleEntry entry = DEFAULT_RESOURCE_BUNDLES.get(key);
+
+        if (entry != null && entry.isCurrent(bundleIds, resourceBundleRegistry, locale, preview, cacheSettings)) {
+            return entry.defaultResourceBundle;
+        }
+
+        final List<ResourceBundle> bundles = new ArrayList<ResourceBundle>();
+        final ResourceBundle[] resolvedBundles = new ResourceBundle[(bundleIds != null) ? bundleIds.length : 0];
+
+        for (int i = 0; i < resolvedBundles.length; i++) {
+            resolvedBundles[i] = resolveBundle(resourceBundleRegistry, bundleIds[i], locale, preview,
+                    cacheSettings);
+
+            if (resolvedBundles[i] != null) {
+                bundles.add(resolvedBundles[i]);
             }
         }
 
-        if (bundles.isEmpty()) {
-            defaultResourceBundle = defaultBundleWhenNotFound != null ? defaultBundleWhenNotFound : EMPTY_RESOURCE_BUNDLE;
-        } else if (bundles.size() == 1) {
+        ResourceBundle defaultResourceBundle = null;
+
+        if (bundles.size() == 1) {
             defaultResourceBundle = bundles.get(0);
-        } else {
-            defaultResourceBundle = new CompositeResourceBundle(bundles.toArray(new ResourceBundle[bundles.size()]));
+        } else if (bundles.size() > 1) {
+            defaultResourceBundle = getMergedResourceBundle(bundleIds, locale, preview, bundles, cacheSettings);
         }
 
-        requestContext.setAttribute(DEFAULT_RESOURCE_BUNDLE_ATTR, defaultResourceBundle);
+        entry = new DefaultResourceBundleEntry(bundleIds, resolvedBundles, defaultResourceBundle);
+        putBounded(DEFAULT_RESOURCE_BUNDLES, key, entry, cacheSettings.getMaxCachedResourceBundles());
 
         return defaultResourceBundle;
     }
 
+    /**
+     * Resolves the resource bundle by the {@code bundleId} from the registry,
+     * or from the class path if the registry is not available.
+     * <p>
+     * A bundle ID not found is remembered for {@link DefaultResourceBundleCacheSettings#getMissingResourceBundleTtlMillis()}
+     * per locale and preview,
+     * during which it is regarded as missing without looking it up again. So a warning is logged only once
+     * in the period, instead of an exception thrown and logged on every request for a misconfigured bundle ID.
+     * </p>
+     * @param resourceBundleRegistry resource bundle registry, or null if not available
+     * @param bundleId resource bundle ID
+     * @param locale locale, or null for the default locale
+     * @param preview whether to resolve the preview bundle
+     * @param cacheSettings the settings of the caches shared across requests
+     * @return resolved resource bundle, or null if not found
+     */
+    private static ResourceBundle resolveBundle(final ResourceBundleRegistry resourceBundleRegistry,
+            final String bundleId, final Locale locale, final boolean preview,
+            final DefaultResourceBundleCacheSettings cacheSettings) {
+        final ConcurrentMap<KeyValue<String, Locale>, Long> missingBundles =
+                (preview) ? MISSING_PREVIEW_RESOURCE_BUNDLES : MISSING_RESOURCE_BUNDLES;
+
+        // Skip allocating the key in the common case where no bundle is missing.
+        if (!missingBundles.isEmpty()) {
+            final KeyValue<String, Locale> missingBundleKey = new DefaultKeyValue<String, Locale>(bundleId, locale);
+            final Long expiresAt = missingBundles.get(missingBundleKey);
+
+            if (expiresAt != null) {
+                if (System.currentTimeMillis() < expiresAt) {
+                    return null;
+                }
+
+                missingBundles.remove(missingBundleKey, expiresAt);
+            }
+        }
+
+        try {
+            if (resourceBundleRegistry != null) {
+                if (locale == null) {
+                    return (preview ? resourceBundleRegistry.getBundleForPreview(bundleId)
+                            : resourceBundleRegistry.getBundle(bundleId));
+                } else {
+                    return (preview ? resourceBundleRegistry.getBundleForPreview(bundleId, locale)
+                            : resourceBundleRegistry.getBundle(bundleId, locale));
+                }
+            } else {
+                if (locale == null) {
+                    return ResourceBundle.getBundle(bundleId, Locale.getDefault(),
+                            Thread.currentThread().getContextClassLoader());
+                } else {
+                    return ResourceBundle.getBundle(bundleId, locale, Thread.currentThread().getContextClassLoader());
+                }
+            }
+        } catch (MissingResourceException e) {
+            final long ttlMillis = cacheSettings.getMissingResourceBundleTtlMillis();
+
+            if (ttlMillis > 0) {
+                final long now = System.currentTimeMillis();
+                purgeExpiredMissingBundles(missingBundles, now);
+                missingBundles.put(new DefaultKeyValue<String, Locale>(bundleId, locale), now + ttlMillis);
+                log.warn("Resource bundle not found by the basename, '{}' ({}). Not looking it up again for {}ms. {}",
+                        bundleId, locale, ttlMillis, e.toString());
+            } else {
+                log.warn("Resource bundle not found by the basename, '{}' ({}). {}", bundleId, locale, e.toString());
+            }
+
+            log.debug("Resource bundle not found by the basename, '{}' ({}).", bundleId, locale, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the expired entries of the {@code missingBundles}, which is invoked whenever a missing bundle is put,
+     * so that the entries of the bundle IDs and locales not requested again don't stay forever.
+     * As missing bundles are put at most once per bundle ID, locale and TTL, scanning them all is fine.
+     */
+    private static void purgeExpiredMissingBundles(final ConcurrentMap<KeyValue<String, Locale>, Long> missingBundles,
+            final long now) {
+        for (Map.Entry<KeyValue<String, Locale>, Long> entry : missingBundles.entrySet()) {
+            if (now >= entry.getValue()) {
+                missingBundles.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the merged resource bundle of the {@code bundles} resolved by the {@code bundleIds}, reusing the one
+     * merged in an earlier request if it has been merged from the same bundle instances.
+     * Otherwise, e.g. if any of the bundles has been refreshed, it merges the {@code bundles} again
+     * and replaces the outdated one.
+     * @param bundleIds resource bundle IDs
+     * @param locale locale by which the bundles are resolved
+     * @param preview whether the bundles are preview bundles
+     * @param bundles resource bundles resolved by the {@code bundleIds}
+     * @param cacheSettings the settings of the caches shared across requests
+     * @return merged resource bundle of the {@code bundles}
+     */
+    static ResourceBundle getMergedResourceBundle(final String[] bundleIds, final Locale locale, final boolean preview,
+            final List<ResourceBundle> bundles, final DefaultResourceBundleCacheSettings cacheSettings) {
+        final MergedResourceBundleKey key = new MergedResourceBundleKey(bundleIds, locale, preview);
+        MergedResourceBundle mergedBundle = MERGED_RESOURCE_BUNDLES.get(key);
+
+        if (mergedBundle == null || !mergedBundle.isMergedFrom(bundles)) {
+            mergedBundle = new MergedResourceBundle(bundles);
+            putBounded(MERGED_RESOURCE_BUNDLES, key, mergedBundle, cacheSettings.getMaxCachedResourceBundles());
+        }
+
+        return mergedBundle;
+    }
+
+    /**
+     * Clears all the caches shared across requests.
+     */
+    static void clearCaches() {
+        MERGED_RESOURCE_BUNDLES.clear();
+        DEFAULT_RESOURCE_BUNDLES.clear();
+        MISSING_RESOURCE_BUNDLES.clear();
+        MISSING_PREVIEW_RESOURCE_BUNDLES.clear();
+    }
+
+    /**
+     * Test purpose getter.
+     * @return the number of the cached resolved default resource bundles
+     */
+    static int getDefaultResourceBundleCacheSize() {
+        return DEFAULT_RESOURCE_BUNDLES.size();
+    }
+
+    /**
+     * Test purpose getter.
+     * @param preview whether to return the number of the missing preview resource bundles
+     * @return the number of the remembered missing resource bundles
+     */
+    static int getMissingResourceBundleCount(final boolean preview) {
+        return ((preview) ? MISSING_PREVIEW_RESOURCE_BUNDLES : MISSING_RESOURCE_BUNDLES).size();
+    }
+
+    /**
+     * Test purpose getter.
+     * @return the number of the cached merged resource bundles
+     */
+    static int getMergedResourceBundleCacheSize() {
+        return MERGED_RESOURCE_BUNDLES.size();
+    }
+
+    /**
+     * Puts the {@code value} into the {@code cache}, evicting arbitrary entries other than the {@code key}
+     * down to 90% of the {@code max} if the cache has grown over the limit, zero or negative for no limit.
+     * If another thread is already evicting, this returns without evicting.
+     */
+    private static <K, V> void putBounded(final ConcurrentMap<K, V> cache, final K key, final V value, final int max) {
+        cache.put(key, value);
+
+        if (max <= 0 || cache.size() <= max || !EVICTION_LOCK.tryLock()) {
+            return;
+        }
+
+        try {
+            final int target = max - max / 10;
+
+            for (Iterator<K> it = cache.keySet().iterator(); it.hasNext() && cache.size() > target; ) {
+                if (!key.equals(it.next())) {
+                    it.remove();
+                }
+            }
+        } finally {
+            EVICTION_LOCK.unlock();
+        }
+    }
+
     private static ResourceBundleRegistry getResourceBundleRegistry() {
         if (HstServices.getComponentManager() != null) {
             return HstServices.getComponentManager().getComponent(ResourceBundleRegistry.class.getName());
@@ -151,4 +414,130 @@ public class HstLocalizationUtils {
         return null;
     }
 
+    /**
+     * Key of a merged resource bundle, composed of the bundle IDs, locale and preview.
+     */
+    private static class MergedResourceBundleKey {
+
+        private final String[] bundleIds;
+
+        private final Locale locale;
+
+        private final boolean preview;
+
+        private final int hash;
+
+        private MergedResourceBundleKey(final String[] bundleIds, final Locale locale, final boolean preview) {
+            this.bundleIds = bundleIds;
+            this.locale = locale;
+            this.preview = preview;
+            hash = 31 * (31 * Arrays.hashCode(bundleIds) + (locale != null ? locale.hashCode() : 0)) + (preview ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof MergedResourceBundleKey)) {
+                return false;
+            }
+
+            final MergedResourceBundleKey other = (MergedResourceBundleKey) o;
+            return preview == other.preview && Arrays.equals(bundleIds, other.bundleIds)
+                    && (locale != null ? locale.equals(other.locale) : other.locale == null);
+        }
+    }
+
+    /**
+     * Key of a resolved default resource bundle, composed of the mount identifier, sitemap item ID, locale and preview.
+     */
+    private static class DefaultResourceBundleKey {
+
+        private final String mountIdentifier;
+
+        private final String siteMapItemId;
+
+        private final Locale locale;
+
+        private final boolean preview;
+
+        private final int hash;
+
+        private DefaultResourceBundleKey(final String mountIdentifier, final String siteMapItemId, final Locale locale,
+                final boolean preview) {
+            this.mountIdentifier = mountIdentifier;
+            this.siteMapItemId = siteMapItemId;
+            this.locale = locale;
+            this.preview = preview;
+            hash = 31 * (31 * (31 * (mountIdentifier != null ? mountIdentifier.hashCode() : 0)
+                    + (siteMapItemId != null ? siteMapItemId.hashCode() : 0))
+                    + (locale != null ? locale.hashCode() : 0)) + (preview ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof DefaultResourceBundleKey)) {
+                return false;
+            }
+
+            final DefaultResourceBundleKey other = (DefaultResourceBundleKey) o;
+            return preview == other.preview
+                    && (mountIdentifier != null ? mountIdentifier.equals(other.mountIdentifier) : other.mountIdentifier == null)
+                    && (siteMapItemId != null ? siteMapItemId.equals(other.siteMapItemId) : other.siteMapItemId == null)
+                    && (locale != null ? locale.equals(other.locale) : other.locale == null);
+        }
+    }
+
+    /**
+     * Resolved default resource bundle, with the bundle IDs and the bundles by which it has been resolved.
+     */
+    private static class DefaultResourceBundleEntry {
+
+        private final String[] bundleIds;
+
+        /**
+         * Bundles resolved by each of the bundle IDs, null for a bundle not found.
+         */
+        private final ResourceBundle[] bundles;
+
+        private final ResourceBundle defaultResourceBundle;
+
+        private DefaultResourceBundleEntry(final String[] bundleIds, final ResourceBundle[] bundles,
+                final ResourceBundle defaultResourceBundle) {
+            this.bundleIds = bundleIds;
+            this.bundles = bundles;
+            this.defaultResourceBundle = defaultResourceBundle;
+        }
+
+        private boolean isCurrent(final String[] currentBundleIds, final ResourceBundleRegistry resourceBundleRegistry,
+                final Locale locale, final boolean preview, final DefaultResourceBundleCacheSettings cacheSettings) {
+            if (!Arrays.equals(bundleIds, currentBundleIds)) {
+                return false;
+            }
+
+            for (int i = 0; i < bundles.length; i++) {
+                if (resolveBundle(resourceBundleRegistry, bundleIds[i], locale, preview, cacheSettings) != bundles[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
 }
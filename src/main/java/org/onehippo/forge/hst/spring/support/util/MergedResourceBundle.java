@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.util;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+/**
+ * Immutable resource bundle merging the contents of multiple resource bundles into a single map,
+ * where the bundle earlier in the list takes precedence as in <code>CompositeResourceBundle</code>.
+ * <p>
+ * Unlike <code>CompositeResourceBundle</code>, which looks up the bundles in turn on every lookup,
+ * a lookup in this bundle is a single hash lookup, and a missing key is known by the key set without
+ * trying the bundles one by one.
+ * </p>
+ */
+final class MergedResourceBundle extends ResourceBundle {
+
+    private final ResourceBundle [] bundles;
+
+    private final Map<String, Object> contents;
+
+    private final Set<String> keys;
+
+    MergedResourceBundle(final List<ResourceBundle> bundles) {
+        this.bundles = bundles.toArray(new ResourceBundle[bundles.size()]);
+
+        final Map<String, Object> merged = new HashMap<String, Object>();
+
+        for (ResourceBundle bundle : this.bundles) {
+            for (String key : bundle.keySet()) {
+                if (!merged.containsKey(key)) {
+                    try {
+                        merged.put(key, bundle.getObject(key));
+                    } catch (MissingResourceException e) {
+                        // Left to the next bundles.
+                    }
+                }
+            }
+        }
+
+        contents = merged;
+        keys = Collections.unmodifiableSet(merged.keySet());
+    }
+
+    /**
+     * Returns true if this bundle has been merged from the same bundle instances as {@code others} in the same order.
+     * @param others resource bundles
+     * @return true if this bundle has been merged from the same bundle instances as {@code others} in the same order
+     */
+    boolean isMergedFrom(final List<ResourceBundle> others) {
+        if (others.size() != bundles.length) {
+            return false;
+        }
+
+        for (int i = 0; i < bundles.length; i++) {
+            if (others.get(i) != bundles[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    protected Object handleGetObject(final String key) {
+        return contents.get(key);
+    }
+
+    @Override
+    protected Set<String> handleKeySet() {
+        return keys;
+    }
+
+    @Override
+    public Enumeration<String> getKeys() {
+        return Collections.enumeration(keys);
+    }
+}
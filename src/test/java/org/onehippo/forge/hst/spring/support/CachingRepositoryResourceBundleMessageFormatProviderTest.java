@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import org.hippoecm.hst.container.ModifiableRequestContextProvider;
+import org.hippoecm.hst.resourcebundle.SimpleListResourceBundle;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CachingRepositoryResourceBundleMessageFormatProviderTest
+ */
+public class CachingRepositoryResourceBundleMessageFormatProviderTest {
+
+    private static final String BUNDLE_ID = CachingRepositoryResourceBundleMessageFormatProviderTest.class.getPackage().getName();
+
+    @Before
+    public void before() throws Exception {
+        ModifiableRequestContextProvider.clear();
+    }
+
+    @Test
+    public void testAccessCountingDisabledByDefault() throws Exception {
+        CachingRepositoryResourceBundleMessageFormatProvider provider = new CachingRepositoryResourceBundleMessageFormatProvider();
+        assertFalse(provider.isAccessCountingEnabled());
+
+        registerBundleAndCacheMessageFormat(provider, Locale.ENGLISH);
+        assertTrue(provider.getHotMessageCodes(10).isEmpty());
+
+        provider.setAccessCountingEnabled(true);
+        registerBundleAndCacheMessageFormat(provider, Locale.ENGLISH);
+        assertEquals(2, provider.getHotMessageCodes(10).size());
+    }
+
+    @Test
+    public void testStrongBundleReferences() throws Exception {
+        CachingRepositoryResourceBundleMessageFormatProvider provider = new CachingRepositoryResourceBundleMessageFormatProvider();
+        assertFalse(provider.isWeakBundleReferences());
+
+        WeakReference<ResourceBundle> bundleRef = registerBundleAndCacheMessageFormat(provider, Locale.ENGLISH);
+        collectGarbage(bundleRef);
+
+        assertNotNull(bundleRef.get());
+        assertEquals(1, provider.getBundleBasenameLocales().size());
+        assertEquals(1, provider.getBasenameLocaleBundles().size());
+        assertEquals(1, provider.getCachedBundleMessageFormats().size());
+    }
+
+    @Test
+    public void testWeakBundleReferences() throws Exception {
+        CachingRepositoryResourceBundleMessageFormatProvider provider = new CachingRepositoryResourceBundleMessageFormatProvider(true);
+        assertTrue(provider.isWeakBundleReferences());
+
+        Map<String, String> frenchBundleContent = new HashMap<String, String>();
+        frenchBundleContent.put("greeting.hello", "Bonjour, le monde!");
+        ResourceBundle frenchBundle = new SimpleListResourceBundle(frenchBundleContent);
+        provider.registerBundle(BUNDLE_ID, Locale.FRENCH, frenchBundle);
+        assertNotNull(provider.getMessageFormat(frenchBundle, "greeting.hello", Locale.FRENCH));
+
+        WeakReference<ResourceBundle> bundleRef = registerBundleAndCacheMessageFormat(provider, Locale.ENGLISH);
+        assertEquals(2, provider.getBundleBasenameLocales().size());
+        assertEquals(2, provider.getCachedBundleMessageFormats().size());
+
+        collectGarbage(bundleRef);
+
+        // The bundle nobody references any more is gone together with its message formats.
+        assertNull(bundleRef.get());
+        assertEquals(1, provider.getBundleBasenameLocales().size());
+        assertEquals(1, provider.getBasenameLocaleBundles().size());
+        assertEquals(1, provider.getCachedBundleMessageFormats().size());
+        assertEquals(1, provider.getMissingBundleCodes().size());
+        assertEquals(1, provider.getLiveBundleCount());
+
+        // The bundle still referenced is kept.
+        assertEquals("Bonjour, le monde!", provider.getMessageFormat(frenchBundle, "greeting.hello", Locale.FRENCH).format(null));
+        assertEquals(frenchBundle, provider.getBasenameLocaleBundles().values().iterator().next());
+    }
+
+    private static WeakReference<ResourceBundle> registerBundleAndCacheMessageFormat(
+            CachingRepositoryResourceBundleMessageFormatProvider provider, Locale locale) {
+        Map<String, String> bundleContent = new HashMap<String, String>();
+        bundleContent.put("greeting.hello", "Hello, World!");
+        ResourceBundle bundle = new SimpleListResourceBundle(bundleContent);
+
+        provider.registerBundle(BUNDLE_ID, locale, bundle);
+        assertNotNull(provider.getMessageFormat(bundle, "greeting.hello", locale));
+        assertNull(provider.getMessageFormat(bundle, "greeting.nonexisting", locale));
+
+        return new WeakReference<ResourceBundle>(bundle);
+    }
+
+    private static void collectGarbage(WeakReference<?> ref) throws InterruptedException {
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,588 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.hippoecm.hst.container.ModifiableRequestContextProvider;
+import org.hippoecm.hst.mock.core.request.MockHstRequestContext;
+import org.hippoecm.hst.resourcebundle.SimpleListResourceBundle;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ConcurrentCachingRepositoryResourceBundleMessageFormatProviderTest
+ */
+public class ConcurrentCachingRepositoryResourceBundleMessageFormatProviderTest {
+
+    private static final String BUNDLE_ID = ConcurrentCachingRepositoryResourceBundleMessageFormatProviderTest.class.getPackage().getName();
+
+    private ConcurrentCachingRepositoryResourceBundleMessageFormatProvider provider;
+
+    private ResourceBundle liveBundle;
+    private ResourceBundle previewBundle;
+
+    private boolean previewMode;
+
+    @Before
+    public void before() throws Exception {
+        Map<String, String> liveBundleContent = new HashMap<String, String>();
+        liveBundleContent.put("greeting.hello", "Hello, World!");
+        liveBundleContent.put("greeting.hello.name", "Hello, {0}!");
+        liveBundle = new SimpleListResourceBundle(liveBundleContent);
+
+        Map<String, String> previewBundleContent = new HashMap<String, String>();
+        previewBundleContent.put("greeting.hello", "[Preview] Hello, World!");
+        previewBundleContent.put("greeting.hello.name", "[Preview] Hello, {0}!");
+        previewBundle = new SimpleListResourceBundle(previewBundleContent);
+
+        provider = new ConcurrentCachingRepositoryResourceBundleMessageFormatProvider();
+
+        MockHstRequestContext requestContext = new MockHstRequestContext() {
+            @Override
+            public boolean isPreview() {
+                return previewMode;
+            }
+        };
+        ModifiableRequestContextProvider.set(requestContext);
+    }
+
+    @Test
+    public void testDefaultProviderOfMessageSource() throws Exception {
+        assertTrue(new HstRepositoryResourceBundleMessageSource()
+                .getResourceBundleMessageFormatProvider() instanceof ConcurrentCachingRepositoryResourceBundleMessageFormatProvider);
+    }
+
+    @Test
+    public void testUnregisteredBundle() throws Exception {
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH));
+        assertEquals(0, provider.getMessageFormatCache().getCachedMessageFormats().size());
+    }
+
+    @Test
+    public void testCachedMessageFormats() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+
+        MessageFormat messageFormat = provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertEquals("Hello, John!", messageFormat.format(new Object [] { "John" }));
+        assertSame(messageFormat, provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.nonexisting", Locale.ENGLISH));
+
+        assertEquals(2, provider.getMessageFormatCache().getCachedMessageFormats().size());
+        assertEquals(1, provider.getMessageFormatCache().getMessageFormatCount(liveBundle));
+        assertEquals(1, provider.getMessageFormatCache().getMissingCount(liveBundle));
+        assertEquals(0, provider.getMessageFormatCacheForPreview().getCachedMessageFormats().size());
+
+        previewMode = true;
+
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.ENGLISH, previewBundle);
+        messageFormat = provider.getMessageFormat(previewBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertEquals("[Preview] Hello, John!", messageFormat.format(new Object [] { "John" }));
+
+        assertEquals(2, provider.getMessageFormatCache().getCachedMessageFormats().size());
+        assertEquals(1, provider.getMessageFormatCacheForPreview().getCachedMessageFormats().size());
+        assertEquals(1, provider.getMessageFormatCacheForPreview().getMessageFormatCount(previewBundle));
+    }
+
+    @Test
+    public void testBundleReplaced() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+
+        // Registering the same bundle again must not drop any cached message formats.
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals(1, provider.getMessageFormatCache().getMessageFormatCount(liveBundle));
+        assertEquals(1, provider.getBundleRegistrationCount());
+        assertEquals(1, provider.getSkippedBundleRegistrationCount());
+
+        Map<String, String> refreshedBundleContent = new HashMap<String, String>();
+        refreshedBundleContent.put("greeting.hello", "Hello, Wooooooorld!");
+        ResourceBundle refreshedBundle = new SimpleListResourceBundle(refreshedBundleContent);
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, refreshedBundle);
+
+        assertEquals(2, provider.getBundleRegistrationCount());
+        assertEquals(1, provider.getSkippedBundleRegistrationCount());
+        assertEquals(0, provider.getMessageFormatCache().getCachedMessageFormats().size());
+        assertEquals(1, provider.getMessageFormatCache().getBundleBasenameLocales().size());
+        assertSame(refreshedBundle, provider.getMessageFormatCache().getBasenameLocaleBundles().values().iterator().next().get());
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH));
+        assertEquals("Hello, Wooooooorld!",
+                provider.getMessageFormat(refreshedBundle, "greeting.hello", Locale.ENGLISH).format(null));
+    }
+
+    @Test
+    public void testBundleRegisteredByMultipleLocales() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.US, liveBundle);
+        provider.registerBundle(BUNDLE_ID, Locale.UK, liveBundle);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.US);
+
+        // Registering the same bundle again by either locale must be skipped.
+        for (int i = 0; i < 3; i++) {
+            provider.registerBundle(BUNDLE_ID, Locale.US, liveBundle);
+            provider.registerBundle(BUNDLE_ID, Locale.UK, liveBundle);
+        }
+
+        assertEquals(2, provider.getBundleRegistrationCount());
+        assertEquals(6, provider.getSkippedBundleRegistrationCount());
+
+        Map<String, String> refreshedBundleContent = new HashMap<String, String>();
+        refreshedBundleContent.put("greeting.hello", "Hello, Wooooooorld!");
+        ResourceBundle refreshedBundle = new SimpleListResourceBundle(refreshedBundleContent);
+
+        // The bundle is still registered by the other locale, so its message formats must be kept.
+        provider.registerBundle(BUNDLE_ID, Locale.US, refreshedBundle);
+
+        assertTrue(provider.getMessageFormatCache().isRegistered(liveBundle));
+        assertEquals(1, provider.getMessageFormatCache().getMessageFormatCount(liveBundle));
+        assertEquals("Hello, World!", provider.getMessageFormat(liveBundle, "greeting.hello", Locale.UK).format(null));
+
+        provider.registerBundle(BUNDLE_ID, Locale.UK, refreshedBundle);
+
+        assertEquals(4, provider.getBundleRegistrationCount());
+        assertEquals(6, provider.getSkippedBundleRegistrationCount());
+        assertEquals(1, provider.getMessageFormatCache().getBundleBasenameLocales().size());
+        assertEquals(0, provider.getMessageFormatCache().getMessageFormatCount(liveBundle));
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello", Locale.UK));
+    }
+
+    @Test
+    public void testStrongBundleReferences() throws Exception {
+        assertFalse(provider.isWeakBundleReferences());
+
+        WeakReference<ResourceBundle> bundleRef = registerBundleAndCacheMessageFormat(provider, Locale.ENGLISH);
+        collectGarbage(bundleRef);
+
+        assertNotNull(bundleRef.get());
+        assertEquals(1, provider.getLiveBundleCount());
+        assertEquals(2, provider.getLiveEntryCount());
+    }
+
+    @Test
+    public void testWeakBundleReferences() throws Exception {
+        provider = new ConcurrentCachingRepositoryResourceBundleMessageFormatProvider(true);
+        assertTrue(provider.isWeakBundleReferences());
+
+        Map<String, String> frenchBundleContent = new HashMap<String, String>();
+        frenchBundleContent.put("greeting.hello", "Bonjour, le monde!");
+        ResourceBundle frenchBundle = new SimpleListResourceBundle(frenchBundleContent);
+        provider.registerBundle(BUNDLE_ID, Locale.FRENCH, frenchBundle);
+        assertNotNull(provider.getMessageFormat(frenchBundle, "greeting.hello", Locale.FRENCH));
+
+        WeakReference<ResourceBundle> bundleRef = registerBundleAndCacheMessageFormat(provider, Locale.ENGLISH);
+        assertEquals(2, provider.getLiveBundleCount());
+        assertEquals(3, provider.getLiveEntryCount());
+
+        collectGarbage(bundleRef);
+
+        // The bundle nobody references any more is gone together with its message formats.
+        assertNull(bundleRef.get());
+        assertEquals(1, provider.getLiveBundleCount());
+        assertEquals(1, provider.getLiveEntryCount());
+        assertEquals(1, provider.getMessageFormatCache().getBasenameLocaleBundles().size());
+
+        // The bundle still referenced is kept.
+        provider.registerBundle(BUNDLE_ID, Locale.FRENCH, frenchBundle);
+        assertEquals(1, provider.getSkippedBundleRegistrationCount());
+        assertEquals("Bonjour, le monde!", provider.getMessageFormat(frenchBundle, "greeting.hello", Locale.FRENCH).format(null));
+        assertEquals(1, provider.getHitCount());
+    }
+
+    @Test
+    public void testMissingCodes() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        ResourceBundle countingBundle = new SimpleListResourceBundle(new HashMap<String, String>()) {
+            @Override
+            public boolean containsKey(String key) {
+                lookups.incrementAndGet();
+                return super.containsKey(key);
+            }
+        };
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, countingBundle);
+
+        assertNull(provider.getMessageFormat(countingBundle, "greeting.nonexisting", Locale.ENGLISH));
+        assertNull(provider.getMessageTemplate(countingBundle, "greeting.nonexisting", Locale.ENGLISH));
+        assertEquals(1, lookups.get());
+        assertEquals(0, provider.getMessageFormatCache().getMessageFormatCount(countingBundle));
+        assertEquals(1, provider.getMessageFormatCache().getMissingCount(countingBundle));
+
+        // The missing codes are forgotten once the bundle is replaced.
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals(0, provider.getMessageFormatCache().getCachedMessageFormats().size());
+        assertNull(provider.getMessageFormat(countingBundle, "greeting.nonexisting", Locale.ENGLISH));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testResourceBundleChanged() throws Exception {
+        ResourceBundle frenchBundle = new SimpleListResourceBundle(new HashMap<String, String>());
+        ResourceBundle otherBundle = new SimpleListResourceBundle(new HashMap<String, String>());
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.registerBundle(BUNDLE_ID, Locale.FRENCH, frenchBundle);
+        provider.registerBundle("other", Locale.ENGLISH, otherBundle);
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.ENGLISH, previewBundle);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+        provider.getMessageFormat(otherBundle, "greeting.hello", Locale.ENGLISH);
+
+        DefaultRepositoryResourceBundleChangeNotifier notifier = new DefaultRepositoryResourceBundleChangeNotifier();
+        notifier.addListener(provider);
+        notifier.fireResourceBundleChanged(BUNDLE_ID);
+
+        // All the locales of the basename are dropped, both live and preview, without waiting for the refreshed bundles.
+        assertEquals(1, provider.getLiveBundleCount());
+        assertTrue(provider.getMessageFormatCache().isRegistered(otherBundle));
+        assertEquals(1, provider.getMessageFormatCache().getMissingCount(otherBundle));
+        assertEquals(1, provider.getMessageFormatCache().getCachedMessageFormats().size());
+        assertEquals(0, provider.getPreviewBundleCount());
+        assertEquals(3, provider.getBundleInvalidationCount());
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH));
+
+        // The bundle can be registered again as a new bundle.
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals("Hello, World!", provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH).format(null));
+        assertEquals(0, provider.getBundleReplacementCount());
+    }
+
+    @Test
+    public void testAccessCountingDisabledByDefault() throws Exception {
+        assertFalse(provider.isAccessCountingEnabled());
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+
+        assertTrue(provider.getHotMessageCodes(10).isEmpty());
+    }
+
+    @Test
+    public void testHotMessageCodes() throws Exception {
+        provider.setAccessCountingEnabled(true);
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+
+        Map<String, String> refreshedBundleContent = new HashMap<String, String>();
+        refreshedBundleContent.put("greeting.hello", "Hello, Wooooooorld!");
+        refreshedBundleContent.put("greeting.hello.name", "Hello, {0}!!");
+        ResourceBundle refreshedBundle = new SimpleListResourceBundle(refreshedBundleContent);
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, refreshedBundle);
+        assertEquals(0, provider.getMessageFormatCache().getCachedMessageFormats().size());
+
+        // The access counts survive the bundle refresh.
+        provider.getMessageFormat(refreshedBundle, "greeting.hello", Locale.ENGLISH);
+        provider.getMessageFormat(refreshedBundle, "greeting.hello", Locale.ENGLISH);
+        provider.getMessageFormat(refreshedBundle, "greeting.hello", Locale.ENGLISH);
+
+        List<MessageCodeAccessCount> hotMessageCodes = provider.getHotMessageCodes(10);
+        assertEquals(2, hotMessageCodes.size());
+        assertEquals(BUNDLE_ID, hotMessageCodes.get(0).getBasename());
+        assertEquals(Locale.ENGLISH, hotMessageCodes.get(0).getLocale());
+        assertEquals("greeting.hello", hotMessageCodes.get(0).getCode());
+        assertEquals(4, hotMessageCodes.get(0).getCount());
+        assertEquals("greeting.hello.name", hotMessageCodes.get(1).getCode());
+        assertEquals(2, hotMessageCodes.get(1).getCount());
+
+        assertEquals(1, provider.getHotMessageCodes(1).size());
+        assertTrue(provider.getHotMessageCodes(0).isEmpty());
+        assertTrue(provider.getHotPreviewMessageCodes(10).isEmpty());
+
+        // Accesses to unregistered bundles are not counted.
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+        assertEquals(4, provider.getHotMessageCodes(1).get(0).getCount());
+    }
+
+    @Test
+    public void testWarmUpAllKeys() throws Exception {
+        provider.setWarmUpMode(ConcurrentCachingRepositoryResourceBundleMessageFormatProvider.WarmUpMode.ALL_KEYS);
+        provider.setWarmUpExecutor(new DirectExecutor());
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals(2, provider.getMessageFormatCache().getMessageFormatCount(liveBundle));
+        assertEquals(0, provider.getMissCount());
+
+        // Registering the same bundle again doesn't warm it up again.
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals(2, provider.getMessageFormatCache().getMessageFormatCount(liveBundle));
+
+        MessageTemplate messageTemplate = provider.getMessageTemplate(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertNotNull(messageTemplate);
+        assertEquals(1, provider.getHitCount());
+        assertEquals(0, provider.getMissCount());
+    }
+
+    @Test
+    public void testWarmUpHotKeys() throws Exception {
+        provider.setWarmUpMode(ConcurrentCachingRepositoryResourceBundleMessageFormatProvider.WarmUpMode.HOT_KEYS);
+        provider.setWarmUpExecutor(new DirectExecutor());
+
+        // Nothing to warm up for the first instance of the bundle.
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals(0, provider.getMessageFormatCache().getCachedMessageFormats().size());
+
+        provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        provider.getMessageFormat(liveBundle, "greeting.nonexisting", Locale.ENGLISH);
+
+        Map<String, String> refreshedBundleContent = new HashMap<String, String>();
+        refreshedBundleContent.put("greeting.hello", "Hello, Wooooooorld!");
+        refreshedBundleContent.put("greeting.hello.name", "Hello, {0}!!");
+        ResourceBundle refreshedBundle = new SimpleListResourceBundle(refreshedBundleContent);
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, refreshedBundle);
+
+        // Only the codes cached for the outdated bundle are warmed up, including the missing ones.
+        assertEquals(1, provider.getMessageFormatCache().getMessageFormatCount(refreshedBundle));
+        assertEquals(1, provider.getMessageFormatCache().getMissingCount(refreshedBundle));
+        assertEquals("Hello, John!!", provider.getMessageFormatCache()
+                .get(refreshedBundle, "greeting.hello.name", Locale.ENGLISH).format(new Object [] { "John" }));
+        assertSame(MessageFormatCache.MISSING,
+                provider.getMessageFormatCache().get(refreshedBundle, "greeting.nonexisting", Locale.ENGLISH));
+        assertNull(provider.getMessageFormatCache().get(refreshedBundle, "greeting.hello", Locale.ENGLISH));
+    }
+
+    @Test
+    public void testTemplatesSharedBetweenLiveAndPreview() throws Exception {
+        Map<String, String> sharedBundleContent = new HashMap<String, String>();
+        sharedBundleContent.put("greeting.hello", "Hello, World!");
+        sharedBundleContent.put("greeting.hello.name", "Hello, {0}!");
+        ResourceBundle sharedPreviewBundle = new SimpleListResourceBundle(new HashMap<String, String>(sharedBundleContent));
+        ResourceBundle otherBasenameBundle = new SimpleListResourceBundle(new HashMap<String, String>(sharedBundleContent));
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.registerBundle("other", Locale.ENGLISH, otherBasenameBundle);
+        MessageTemplate liveTemplate = provider.getMessageTemplate(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertSame(liveTemplate, provider.getMessageTemplate(otherBasenameBundle, "greeting.hello.name", Locale.ENGLISH));
+
+        previewMode = true;
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.ENGLISH, sharedPreviewBundle);
+        assertSame(liveTemplate, provider.getMessageTemplate(sharedPreviewBundle, "greeting.hello.name", Locale.ENGLISH));
+
+        // A different pattern or locale is compiled separately.
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.GERMAN, previewBundle);
+        MessageTemplate previewTemplate = provider.getMessageTemplate(previewBundle, "greeting.hello.name", Locale.GERMAN);
+        assertEquals("[Preview] Hello, {0}!", previewTemplate.getPattern());
+        assertNotSame(liveTemplate, provider.getMessageTemplate(sharedPreviewBundle, "greeting.hello", Locale.ENGLISH));
+        assertEquals(3, provider.getTemplatePool().size());
+
+        // A template no cache refers to any more is released from the pool.
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.GERMAN, new SimpleListResourceBundle(new HashMap<String, String>()));
+        previewTemplate = null;
+
+        for (int i = 0; i < 50 && provider.getTemplatePool().size() > 2; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, provider.getTemplatePool().size());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+        provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH);
+        provider.getMessageFormat(liveBundle, "greeting.nonexisting", Locale.ENGLISH);
+
+        previewMode = true;
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.ENGLISH, previewBundle);
+        provider.getMessageFormat(previewBundle, "greeting.hello", Locale.ENGLISH);
+
+        assertEquals(2, provider.getHitCount());
+        assertEquals(3, provider.getMissCount());
+        assertEquals(0.4, provider.getHitRatio(), 0.0001);
+        assertEquals(0.6, provider.getMissRatio(), 0.0001);
+        assertEquals(1, provider.getLiveBundleCount());
+        assertEquals(1, provider.getPreviewBundleCount());
+        assertEquals(2, provider.getLiveEntryCount());
+        assertEquals(1, provider.getPreviewEntryCount());
+        assertEquals(Integer.valueOf(2), provider.getLiveEntryCountsPerBundle().get(BUNDLE_ID + ":" + Locale.ENGLISH));
+        assertEquals(Integer.valueOf(1), provider.getPreviewEntryCountsPerBundle().get(BUNDLE_ID + ":" + Locale.ENGLISH));
+        assertEquals(2, provider.getBundleRegistrationCount());
+        assertEquals(0, provider.getBundleReplacementCount());
+
+        previewMode = false;
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, new SimpleListResourceBundle(new HashMap<String, String>()));
+        assertEquals(1, provider.getBundleReplacementCount());
+        assertEquals(0, provider.getLiveEntryCount());
+
+        // The provider can be registered as an MXBean as it is.
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName = new ObjectName("org.onehippo.forge.hst.spring.support:type=MessageFormatProviderTest");
+        mbeanServer.registerMBean(provider, objectName);
+
+        try {
+            assertEquals(2L, mbeanServer.getAttribute(objectName, "HitCount"));
+            mbeanServer.invoke(objectName, "resetStatistics", null, null);
+            assertEquals(0L, mbeanServer.getAttribute(objectName, "HitCount"));
+            assertEquals(0, provider.getMissCount());
+        } finally {
+            mbeanServer.unregisterMBean(objectName);
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+
+        final int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<MessageFormat>> futures = new ArrayList<Future<MessageFormat>>();
+
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(new Callable<MessageFormat>() {
+                    @Override
+                    public MessageFormat call() throws Exception {
+                        MessageFormat messageFormat = null;
+
+                        for (int j = 0; j < 1000; j++) {
+                            provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+                            messageFormat = provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+                        }
+
+                        return messageFormat;
+                    }
+                }));
+            }
+
+            MessageFormat first = futures.get(0).get();
+
+            for (Future<MessageFormat> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, provider.getMessageFormatCache().getMessageFormatCount(liveBundle));
+    }
+
+    @Test
+    public void testNullLocale() throws Exception {
+        provider.registerBundle(BUNDLE_ID, null, liveBundle);
+
+        MessageFormat messageFormat = provider.getMessageFormat(liveBundle, "greeting.hello", null);
+        assertEquals("Hello, World!", messageFormat.format(null));
+        assertSame(messageFormat, provider.getMessageFormat(liveBundle, "greeting.hello", null));
+    }
+
+    @Test
+    public void testBoundedCache() throws Exception {
+        Map<String, String> bundleContent = new HashMap<String, String>();
+
+        for (int i = 0; i < 1000; i++) {
+            bundleContent.put("message.key." + i, "Message {0} of " + i);
+        }
+
+        ResourceBundle bundle = new SimpleListResourceBundle(bundleContent);
+
+        provider.setMaxEntries(100);
+        provider.setMaxPreviewEntries(10);
+        assertEquals(100, provider.getMaxEntries());
+        assertEquals(10, provider.getMaxPreviewEntries());
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, bundle);
+
+        // Make the first ten codes hot.
+        for (int j = 0; j < 10; j++) {
+            for (int i = 0; i < 10; i++) {
+                provider.getMessageFormat(bundle, "message.key." + i, Locale.ENGLISH);
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Message A of " + i,
+                    provider.getMessageFormat(bundle, "message.key." + i, Locale.ENGLISH).format(new Object [] { "A" }));
+        }
+
+        final ConcurrentMap<MessageFormatCacheKey, MessageTemplate> cachedMessageFormats =
+                provider.getMessageFormatCache().getCachedMessageFormats();
+        assertTrue(cachedMessageFormats.size() <= 100);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cachedMessageFormats.containsKey(new MessageFormatCacheKey(bundle, "message.key." + i, Locale.ENGLISH)));
+        }
+
+        // Lowering the limit evicts right away.
+        provider.setMaxEntries(20);
+        assertTrue(cachedMessageFormats.size() <= 20);
+
+        provider.setMaxEntries(0);
+
+        for (int i = 0; i < 1000; i++) {
+            provider.getMessageFormat(bundle, "message.key." + i, Locale.ENGLISH);
+        }
+
+        assertEquals(1000, cachedMessageFormats.size());
+    }
+
+    private static WeakReference<ResourceBundle> registerBundleAndCacheMessageFormat(
+            ConcurrentCachingRepositoryResourceBundleMessageFormatProvider provider, Locale locale) {
+        Map<String, String> bundleContent = new HashMap<String, String>();
+        bundleContent.put("greeting.hello", "Hello, World!");
+        ResourceBundle bundle = new SimpleListResourceBundle(bundleContent);
+
+        provider.registerBundle(BUNDLE_ID, locale, bundle);
+        assertNotNull(provider.getMessageFormat(bundle, "greeting.hello", locale));
+        assertNull(provider.getMessageFormat(bundle, "greeting.nonexisting", locale));
+
+        return new WeakReference<ResourceBundle>(bundle);
+    }
+
+    private static void collectGarbage(WeakReference<?> ref) throws InterruptedException {
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    private static class DirectExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
 import java.util.ResourceBundle;
 
 import javax.servlet.jsp.jstl.core.Config;
@@ -39,6 +40,10 @@ import org.springframework.context.support.DelegatingMessageSource;
 import org.springframework.mock.web.MockHttpServletRequest;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * HstRepositoryResourceBundleMessageSourceTest
@@ -98,7 +103,8 @@ public class HstRepositoryResourceBundleMessageSourceTest {
         HstServices.setComponentManager(componentManager);
 
         messageSource = new HstRepositoryResourceBundleMessageSource();
-        messageFormatProvider = (CachingRepositoryResourceBundleMessageFormatProvider) messageSource.getResourceBundleMessageFormatProvider();
+        messageFormatProvider = new CachingRepositoryResourceBundleMessageFormatProvider();
+        messageSource.setResourceBundleMessageFormatProvider(messageFormatProvider);
 
         assertEquals(0, messageFormatProvider.getBasenameLocaleBundles().size());
         assertEquals(0, messageFormatProvider.getBundleBasenameLocales().size());
@@ -146,6 +152,10 @@ public class HstRepositoryResourceBundleMessageSourceTest {
         assertEquals(2, messageFormatProvider.getCachedBundleMessageFormats().size());
         Map<String, Map<Locale, MessageFormat>> messageFormats = messageFormatProvider.getCachedBundleMessageFormats().get(liveBundle);
         assertEquals(2, messageFormats.size());
+        assertTrue(messageFormatProvider.getMissingBundleCodes().get(liveBundle).contains("file.greeting.hello.name"));
+        assertSame(messageFormatProvider, messageSource.getStatistics());
+        // Two message formats and a missing code.
+        assertEquals(Integer.valueOf(3), messageFormatProvider.getLiveEntryCountsPerBundle().get(REPOSITORY_BUNDLE_ID + ":" + Locale.ENGLISH));
 
         assertEquals(0, messageFormatProvider.getBasenameLocaleBundlesForPreview().size());
         assertEquals(0, messageFormatProvider.getBundleBasenameLocalesForPreview().size());
@@ -326,6 +336,8 @@ public class HstRepositoryResourceBundleMessageSourceTest {
 
     @Test
     public void testDynamicResourceBundleRefreshed() throws Exception {
+        messageFormatProvider.setAccessCountingEnabled(true);
+
         // This is done in LocalizationValve of HST-2 Container.
         Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, new LocalizationContext(localizationContextBundle));
 
@@ -352,6 +364,12 @@ public class HstRepositoryResourceBundleMessageSourceTest {
         assertEquals(1, messageFormats.size());
         messageFormats = messageFormatProvider.getCachedBundleMessageFormats().get(liveBundle);
         assertEquals(1, messageFormats.size());
+        assertEquals(2, messageFormatProvider.getBundleRegistrationCount());
+
+        long skippedBundleRegistrationCount = messageFormatProvider.getSkippedBundleRegistrationCount();
+        assertEquals("Howdy, John!", messageSource.getMessage("greeting.howdy.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals(2, messageFormatProvider.getBundleRegistrationCount());
+        assertTrue(messageFormatProvider.getSkippedBundleRegistrationCount() > skippedBundleRegistrationCount);
 
         // Now refresh the localizationContextBundle and liveBundle
         // to see how it removes the outdated bundle and message formats from the internal cache.
@@ -385,6 +403,20 @@ public class HstRepositoryResourceBundleMessageSourceTest {
         assertEquals(1, messageFormats.size());
         messageFormats = messageFormatProvider.getCachedBundleMessageFormats().get(liveBundle);
         assertEquals(1, messageFormats.size());
+        assertEquals(4, messageFormatProvider.getBundleRegistrationCount());
+
+        // The access counts survive the bundle refresh.
+        long howdyAccessCount = 0;
+
+        for (MessageCodeAccessCount accessCount : messageFormatProvider.getHotMessageCodes(10)) {
+            if (REPOSITORY_BUNDLE_ID.equals(accessCount.getBasename()) && "greeting.howdy.name".equals(accessCount.getCode())) {
+                howdyAccessCount = accessCount.getCount();
+            }
+        }
+
+        assertEquals(3, howdyAccessCount);
+        assertEquals(1, messageFormatProvider.getHotMessageCodes(1).size());
+        assertTrue(messageFormatProvider.getHotPreviewMessageCodes(10).isEmpty());
 
         assertEquals(0, messageFormatProvider.getBasenameLocaleBundlesForPreview().size());
         assertEquals(0, messageFormatProvider.getBundleBasenameLocalesForPreview().size());
@@ -418,6 +450,143 @@ public class HstRepositoryResourceBundleMessageSourceTest {
         assertEquals("Howdy, John!", delegatingMessageSource.getMessage("greeting.howdy.name", new Object [] { "John" }, null, Locale.ENGLISH));
     }
 
+    @Test
+    public void testMessageTemplates() throws Exception {
+        ConcurrentCachingRepositoryResourceBundleMessageFormatProvider templateProvider =
+                new ConcurrentCachingRepositoryResourceBundleMessageFormatProvider();
+        messageSource.setResourceBundleMessageFormatProvider(templateProvider);
+
+        liveBundleContent.put("greeting.files", "{0} has {1,choice,0#no files|1#one file|1<{1,number,integer} files}.");
+        liveBundleContent.put("greeting.quoted", "'{0}' is replaced by ''{0}''.");
+        liveBundle = new SimpleListResourceBundle(liveBundleContent);
+        resetMockResourceBundleRegistry(liveBundle, previewBundle);
+
+        Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, new LocalizationContext(localizationContextBundle));
+
+        assertEquals("Hello, John! Are you cool?", messageSource.getMessage("greeting.hello.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals("Howdy, John!", messageSource.getMessage("greeting.howdy.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals("John has no files.", messageSource.getMessage("greeting.files", new Object [] { "John", 0 }, Locale.ENGLISH));
+        assertEquals("John has 1,234 files.", messageSource.getMessage("greeting.files", new Object [] { "John", 1234 }, Locale.ENGLISH));
+        assertEquals("{0} is replaced by 'John'.", messageSource.getMessage("greeting.quoted", new Object [] { "John" }, Locale.ENGLISH));
+
+        // Messages from the classpath resource bundle are not maintained by the provider.
+        assertEquals("Hello, John!", messageSource.getMessage("file.greeting.hello.name", new Object [] { "John" }, Locale.ENGLISH));
+
+        MessageTemplate messageTemplate = templateProvider.getMessageTemplate(localizationContextBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertTrue(messageTemplate.isSimple());
+        assertEquals("Hello, {0}! Are you cool?", messageTemplate.getPattern());
+        assertFalse(templateProvider.getMessageTemplate(liveBundle, "greeting.files", Locale.ENGLISH).isSimple());
+
+        previewMode = true;
+        Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, new LocalizationContext(previewLocalizationContextBundle));
+
+        assertEquals("[Preview] Howdy, John!", messageSource.getMessage("greeting.howdy.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals(1, templateProvider.getMessageFormatCacheForPreview().getMessageFormatCount(previewLocalizationContextBundle));
+    }
+
+    @Test
+    public void testResourceBundlesLookedUpOnce() throws Exception {
+        final int [] resourceBundleLookups = new int[1];
+        messageSource = new HstRepositoryResourceBundleMessageSource() {
+            @Override
+            protected ResourceBundle getResourceBundle(String basename, Locale locale) {
+                ++resourceBundleLookups[0];
+                return super.getResourceBundle(basename, locale);
+            }
+        };
+        messageSource.setBasenames(new String [] { REPOSITORY_BUNDLE_ID, FILE_BUNDLE_ID });
+        Properties commonMessages = new Properties();
+        commonMessages.setProperty("common.greeting.name", "Hi, {0}!");
+        messageSource.setCommonMessages(commonMessages);
+
+        // Found in the classpath resource bundle not maintained by the provider.
+        assertEquals("Hello, John!", messageSource.getMessage("file.greeting.hello.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals(2, resourceBundleLookups[0]);
+        assertEquals("Hello, World!", messageSource.getMessage("file.greeting.hello", null, Locale.ENGLISH));
+        assertEquals(4, resourceBundleLookups[0]);
+
+        // Not found in any resource bundle.
+        assertEquals("Not found", messageSource.getMessage("greeting.nonexisting.name", new Object [] { "John" }, "Not found", Locale.ENGLISH));
+        assertEquals(6, resourceBundleLookups[0]);
+        assertEquals("Not found", messageSource.getMessage("greeting.nonexisting", null, "Not found", Locale.ENGLISH));
+        assertEquals(8, resourceBundleLookups[0]);
+        assertEquals("Hi, John!", messageSource.getMessage("common.greeting.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals(10, resourceBundleLookups[0]);
+    }
+
+    @Test
+    public void testDefaultResourceBundleMemoizedPerRequest() throws Exception {
+        final ResourceBundle initialBundle = localizationContextBundle;
+        final int [] resourceBundleLookups = new int[1];
+        LocalizationContext localizationContext = new LocalizationContext(localizationContextBundle) {
+            @Override
+            public ResourceBundle getResourceBundle() {
+                ++resourceBundleLookups[0];
+                return super.getResourceBundle();
+            }
+        };
+        Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, localizationContext);
+
+        assertEquals("Hello, John! Are you cool?", messageSource.getMessage("greeting.hello.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals("Hello, World!", messageSource.getMessage("greeting.hello", null, Locale.ENGLISH));
+        assertSame(localizationContextBundle, messageSource.findDefaultResourceBundle());
+        assertEquals(1, resourceBundleLookups[0]);
+
+        // Replacing the LocalizationContext in the same request invalidates the memoized bundle.
+        liveDefaultBundleContent.put("greeting.hello.name", "Hello, {0}! Are you really cool?");
+        localizationContextBundle = new SimpleListResourceBundle(liveDefaultBundleContent);
+        Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, new LocalizationContext(localizationContextBundle));
+
+        assertEquals("Hello, John! Are you really cool?", messageSource.getMessage("greeting.hello.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertSame(localizationContextBundle, messageSource.findDefaultResourceBundle());
+
+        // A new request resolves the bundle again.
+        MockHstRequestContext newRequestContext = new MockHstRequestContext();
+        newRequestContext.setServletRequest(request);
+        ModifiableRequestContextProvider.set(newRequestContext);
+        Config.set(request, Config.FMT_LOCALIZATION_CONTEXT, localizationContext);
+
+        assertSame(initialBundle, messageSource.findDefaultResourceBundle());
+        assertEquals(2, resourceBundleLookups[0]);
+    }
+
+    @Test
+    public void testResourceBundleChangeNotified() throws Exception {
+        DefaultRepositoryResourceBundleChangeNotifier notifier = new DefaultRepositoryResourceBundleChangeNotifier();
+        messageSource.setResourceBundleChangeNotifier(notifier);
+        assertEquals(1, notifier.getListeners().size());
+
+        // Without the default resource bundle, the messages are resolved from the repository bundles.
+        assertEquals("Howdy, John!", messageSource.getMessage("greeting.howdy.name", new Object [] { "John" }, Locale.ENGLISH));
+        previewMode = true;
+        assertEquals("[Preview] Howdy, John!", messageSource.getMessage("greeting.howdy.name", new Object [] { "John" }, Locale.ENGLISH));
+        previewMode = false;
+
+        assertEquals(1, messageFormatProvider.getBasenameLocaleBundles().size());
+        assertEquals(1, messageFormatProvider.getBasenameLocaleBundlesForPreview().size());
+
+        notifier.fireResourceBundleChanged(REPOSITORY_BUNDLE_ID);
+
+        // The bundles of the changed basename are dropped, both live and preview.
+        assertEquals(0, messageFormatProvider.getBasenameLocaleBundles().size());
+        assertNull(messageFormatProvider.getBundleBasenameLocales().get(liveBundle));
+        assertNull(messageFormatProvider.getCachedBundleMessageFormats().get(liveBundle));
+        assertEquals(0, messageFormatProvider.getBasenameLocaleBundlesForPreview().size());
+        assertNull(messageFormatProvider.getBundleBasenameLocalesForPreview().get(previewBundle));
+        assertEquals(2, messageFormatProvider.getBundleInvalidationCount());
+
+        liveBundleContent.put("greeting.howdy.name", "Hooooowdy, {0}!");
+        liveBundle = new SimpleListResourceBundle(liveBundleContent);
+        resetMockResourceBundleRegistry(liveBundle, previewBundle);
+
+        assertEquals("Hooooowdy, John!", messageSource.getMessage("greeting.howdy.name", new Object [] { "John" }, Locale.ENGLISH));
+        assertEquals(1, messageFormatProvider.getBasenameLocaleBundles().size());
+        assertEquals(0, messageFormatProvider.getBundleReplacementCount());
+
+        messageSource.setResourceBundleChangeNotifier(null);
+        assertEquals(0, notifier.getListeners().size());
+    }
+
     private void resetMockResourceBundleRegistry(final ResourceBundle liveBundle, ResourceBundle previewBundle) {
         registry = EasyMock.createNiceMock(ResourceBundleRegistry.class);
         EasyMock.expect(registry.getBundle(REPOSITORY_BUNDLE_ID, Locale.ENGLISH)).andReturn(liveBundle).anyTimes();
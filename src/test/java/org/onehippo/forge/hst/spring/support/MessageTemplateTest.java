@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.text.MessageFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MessageTemplateTest
+ */
+public class MessageTemplateTest {
+
+    private static final String [] SIMPLE_PATTERNS = {
+            "",
+            "Hello, World!",
+            "Hello, {0}!",
+            "{0}",
+            "{1} and {0}, {1} and {0}",
+            "{0}{1}{2}",
+            "Missing {3}",
+            "It''s {0}.",
+            "'{0}' is not an argument.",
+            "'It''s' {0} and '{1}'",
+            "Unbalanced '} and {0}",
+            "Unterminated 'quote {0}",
+    };
+
+    private static final String [] NON_SIMPLE_PATTERNS = {
+            "{0,number,integer}",
+            "{0,choice,0#none|1#one|1<many}",
+            "{0,date,short}",
+            "{ 0 }",
+            "{-1}",
+    };
+
+    private static final Object [][] ARGUMENTS = {
+            null,
+            {},
+            { "John" },
+            { "John", "Jane" },
+            { "John", null, "Jack" },
+            { 1234567.891, new Date(0L), Boolean.TRUE },
+            { new StringBuilder("builder"), 'c', 42L },
+    };
+
+    @Test
+    public void testSimplePatternsFormattedAsMessageFormat() throws Exception {
+        for (Locale locale : new Locale [] { Locale.ENGLISH, Locale.GERMAN }) {
+            for (String pattern : SIMPLE_PATTERNS) {
+                MessageTemplate messageTemplate = MessageTemplate.compile(pattern, locale);
+                assertTrue(pattern, messageTemplate.isSimple());
+
+                for (Object [] args : ARGUMENTS) {
+                    assertEquals(pattern, new MessageFormat(pattern, locale).format(args), messageTemplate.format(args));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNonSimplePatternsFormattedByMessageFormat() throws Exception {
+        for (String pattern : NON_SIMPLE_PATTERNS) {
+            MessageTemplate messageTemplate = MessageTemplate.compile(pattern, Locale.ENGLISH);
+            assertFalse(pattern, messageTemplate.isSimple());
+        }
+
+        MessageTemplate messageTemplate = MessageTemplate.compile("{0,choice,0#none|1#one|1<{0,number,integer}}", Locale.ENGLISH);
+        assertEquals("none", messageTemplate.format(new Object [] { 0 }));
+        assertEquals("1,234", messageTemplate.format(new Object [] { 1234 }));
+    }
+
+    @Test
+    public void testMessageFormat() throws Exception {
+        MessageTemplate messageTemplate = MessageTemplate.compile("Hello, {0}!", Locale.ENGLISH);
+        MessageFormat messageFormat = messageTemplate.getMessageFormat();
+        assertEquals("Hello, {0}!", messageFormat.toPattern());
+        assertSame(messageFormat, messageTemplate.getMessageFormat());
+        assertEquals(Locale.ENGLISH, messageFormat.getLocale());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import org.hippoecm.hst.container.ModifiableRequestContextProvider;
+import org.hippoecm.hst.mock.core.request.MockHstRequestContext;
+import org.hippoecm.hst.resourcebundle.SimpleListResourceBundle;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SnapshotRepositoryResourceBundleMessageFormatProviderTest
+ */
+public class SnapshotRepositoryResourceBundleMessageFormatProviderTest {
+
+    private static final String BUNDLE_ID = SnapshotRepositoryResourceBundleMessageFormatProviderTest.class.getPackage().getName();
+
+    private SnapshotRepositoryResourceBundleMessageFormatProvider provider;
+
+    private ResourceBundle liveBundle;
+    private ResourceBundle previewBundle;
+
+    private boolean previewMode;
+
+    @Before
+    public void before() throws Exception {
+        liveBundle = createBundle("Hello, {0}!");
+        previewBundle = createBundle("[Preview] Hello, {0}!");
+
+        provider = new SnapshotRepositoryResourceBundleMessageFormatProvider();
+
+        MockHstRequestContext requestContext = new MockHstRequestContext() {
+            @Override
+            public boolean isPreview() {
+                return previewMode;
+            }
+        };
+        ModifiableRequestContextProvider.set(requestContext);
+    }
+
+    @Test
+    public void testBundleCompiledOnRegistration() throws Exception {
+        assertNull(provider.getMessageTemplate(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+
+        MessageTemplateIndex index = provider.getMessageTemplateIndex(false, liveBundle, Locale.ENGLISH);
+        assertEquals(3, index.size());
+        assertEquals(Integer.valueOf(3), provider.getLiveEntryCountsPerBundle().get(BUNDLE_ID + ":" + Locale.ENGLISH));
+
+        MessageTemplate messageTemplate = provider.getMessageTemplate(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertSame(index.get("greeting.hello.name"), messageTemplate);
+        assertEquals("Hello, John!", messageTemplate.format(new Object [] { "John" }));
+        assertEquals("Hello, World!", provider.getMessageFormat(liveBundle, "greeting.hello", Locale.ENGLISH).format(null));
+        assertFalse(provider.getMessageTemplate(liveBundle, "greeting.count", Locale.ENGLISH).isSimple());
+        assertNull(provider.getMessageTemplate(liveBundle, "greeting.nonexisting", Locale.ENGLISH));
+
+        // Lookups don't write anything.
+        assertEquals(0, provider.getHitCount());
+        assertEquals(0, provider.getMissCount());
+        assertFalse(provider instanceof RepositoryResourceBundleMessageCodeAccessStatistics);
+    }
+
+    @Test
+    public void testLiveAndPreview() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+
+        previewMode = true;
+
+        assertNull(provider.getMessageTemplate(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.ENGLISH, previewBundle);
+        assertEquals("[Preview] Hello, John!",
+                provider.getMessageTemplate(previewBundle, "greeting.hello.name", Locale.ENGLISH).format(new Object [] { "John" }));
+
+        // Identical messages are compiled only once.
+        assertSame(provider.getMessageTemplateIndex(false, liveBundle, Locale.ENGLISH).get("greeting.hello"),
+                provider.getMessageTemplateIndex(true, previewBundle, Locale.ENGLISH).get("greeting.hello"));
+
+        assertEquals(1, provider.getLiveBundleCount());
+        assertEquals(1, provider.getPreviewBundleCount());
+        assertEquals(3, provider.getLiveEntryCount());
+        assertEquals(3, provider.getPreviewEntryCount());
+    }
+
+    @Test
+    public void testBundleReplaced() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.registerBundle(BUNDLE_ID, Locale.FRENCH, previewBundle);
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals(2, provider.getBundleRegistrationCount());
+        assertEquals(1, provider.getSkippedBundleRegistrationCount());
+
+        ResourceBundle refreshedBundle = createBundle("Hello, {0}!!");
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, refreshedBundle);
+
+        assertEquals(1, provider.getBundleReplacementCount());
+        assertEquals(2, provider.getLiveBundleCount());
+        assertNull(provider.getMessageTemplateIndex(false, liveBundle, Locale.ENGLISH));
+        assertNull(provider.getMessageTemplate(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+        assertEquals("Hello, John!!",
+                provider.getMessageTemplate(refreshedBundle, "greeting.hello.name", Locale.ENGLISH).format(new Object [] { "John" }));
+
+        provider.onResourceBundleChanged(BUNDLE_ID);
+        assertEquals(0, provider.getLiveBundleCount());
+        assertEquals(0, provider.getLiveEntryCount());
+        assertEquals(2, provider.getBundleInvalidationCount());
+        assertNull(provider.getMessageTemplate(refreshedBundle, "greeting.hello.name", Locale.ENGLISH));
+    }
+
+    @Test
+    public void testBundleRegisteredByMultipleBasenamesAndLocales() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.US, liveBundle);
+        provider.registerBundle(BUNDLE_ID, Locale.UK, liveBundle);
+        provider.registerBundle("", Locale.US, liveBundle);
+
+        // The index is compiled per locale and shared by the basenames.
+        MessageTemplateIndex usIndex = provider.getMessageTemplateIndex(false, liveBundle, Locale.US);
+        MessageTemplateIndex ukIndex = provider.getMessageTemplateIndex(false, liveBundle, Locale.UK);
+        assertNotSame(usIndex, ukIndex);
+        assertEquals(Locale.UK, ukIndex.getLocale());
+        assertEquals(1, provider.getLiveBundleCount());
+        assertEquals(6, provider.getLiveEntryCount());
+        assertEquals(3, provider.getLiveEntryCountsPerBundle().size());
+
+        // Registering the same bundle again by any basename and locale must be skipped.
+        for (int i = 0; i < 3; i++) {
+            provider.registerBundle(BUNDLE_ID, Locale.US, liveBundle);
+            provider.registerBundle(BUNDLE_ID, Locale.UK, liveBundle);
+            provider.registerBundle("", Locale.US, liveBundle);
+        }
+
+        assertEquals(3, provider.getBundleRegistrationCount());
+        assertEquals(9, provider.getSkippedBundleRegistrationCount());
+        assertSame(usIndex, provider.getMessageTemplateIndex(false, liveBundle, Locale.US));
+        assertSame(ukIndex.get("greeting.hello"), provider.getMessageTemplate(liveBundle, "greeting.hello", Locale.UK));
+
+        // The bundle is still registered by the other locale and basename after being replaced for one locale.
+        ResourceBundle refreshedBundle = createBundle("Hello, {0}!!");
+        provider.registerBundle(BUNDLE_ID, Locale.US, refreshedBundle);
+
+        assertEquals(2, provider.getLiveBundleCount());
+        assertSame(usIndex, provider.getMessageTemplateIndex(false, liveBundle, Locale.US));
+        assertSame(ukIndex, provider.getMessageTemplateIndex(false, liveBundle, Locale.UK));
+        assertEquals("Hello, John!!",
+                provider.getMessageTemplate(refreshedBundle, "greeting.hello.name", Locale.US).format(new Object [] { "John" }));
+
+        provider.registerBundle(BUNDLE_ID, Locale.UK, refreshedBundle);
+        provider.registerBundle("", Locale.US, refreshedBundle);
+
+        assertEquals(1, provider.getLiveBundleCount());
+        assertNull(provider.getMessageTemplateIndex(false, liveBundle, Locale.US));
+        assertNull(provider.getMessageTemplate(liveBundle, "greeting.hello", Locale.UK));
+    }
+
+    @Test
+    public void testIndexLookups() throws Exception {
+        Map<String, String> bundleContent = new HashMap<String, String>();
+
+        for (int i = 0; i < 1000; i++) {
+            bundleContent.put("message." + i, "Message {0} #" + i);
+        }
+
+        bundleContent.put("message.invalid", "Invalid {0,nonexisting}");
+        ResourceBundle bundle = new SimpleListResourceBundle(bundleContent);
+
+        MessageTemplateIndex index = MessageTemplateIndex.build(BUNDLE_ID, Locale.ENGLISH, bundle, new MessageTemplatePool());
+
+        assertEquals(1000, index.size());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Message John #" + i, index.get("message." + i).format(new Object [] { "John" }));
+        }
+
+        assertNull(index.get("message.invalid"));
+        assertNull(index.get("message.nonexisting"));
+    }
+
+    private static ResourceBundle createBundle(String helloNameMessage) {
+        Map<String, String> bundleContent = new HashMap<String, String>();
+        bundleContent.put("greeting.hello", "Hello, World!");
+        bundleContent.put("greeting.hello.name", helloNameMessage);
+        bundleContent.put("greeting.count", "{0,number,integer} greetings");
+        return new SimpleListResourceBundle(bundleContent);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.hippoecm.hst.container.ModifiableRequestContextProvider;
+import org.hippoecm.hst.mock.core.request.MockHstRequestContext;
+import org.hippoecm.hst.resourcebundle.SimpleListResourceBundle;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StripedCachingRepositoryResourceBundleMessageFormatProviderTest
+ */
+public class StripedCachingRepositoryResourceBundleMessageFormatProviderTest {
+
+    private static final String BUNDLE_ID = StripedCachingRepositoryResourceBundleMessageFormatProviderTest.class.getPackage().getName();
+
+    private static final Locale [] LOCALES = { Locale.ENGLISH, Locale.FRENCH, Locale.GERMAN, Locale.ITALIAN };
+
+    private StripedCachingRepositoryResourceBundleMessageFormatProvider provider;
+
+    private ResourceBundle liveBundle;
+    private ResourceBundle previewBundle;
+
+    private boolean previewMode;
+
+    @Before
+    public void before() throws Exception {
+        liveBundle = createBundle("Hello, {0}!");
+        previewBundle = createBundle("[Preview] Hello, {0}!");
+
+        provider = new StripedCachingRepositoryResourceBundleMessageFormatProvider();
+
+        MockHstRequestContext requestContext = new MockHstRequestContext() {
+            @Override
+            public boolean isPreview() {
+                return previewMode;
+            }
+        };
+        ModifiableRequestContextProvider.set(requestContext);
+    }
+
+    @Test
+    public void testLockStripes() throws Exception {
+        assertEquals(StripedCachingRepositoryResourceBundleMessageFormatProvider.DEFAULT_LOCK_STRIPES, provider.getLockStripes());
+        assertEquals(1, new StripedCachingRepositoryResourceBundleMessageFormatProvider(1).getLockStripes());
+        assertEquals(8, new StripedCachingRepositoryResourceBundleMessageFormatProvider(5).getLockStripes());
+
+        try {
+            new StripedCachingRepositoryResourceBundleMessageFormatProvider(0);
+            assertTrue("The number of lock stripes must be positive.", false);
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testCachedMessageFormats() throws Exception {
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+
+        MessageFormat messageFormat = provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertEquals("Hello, John!", messageFormat.format(new Object [] { "John" }));
+        assertSame(messageFormat, provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.nonexisting", Locale.ENGLISH));
+        assertEquals(Integer.valueOf(2), provider.getLiveEntryCountsPerBundle().get(BUNDLE_ID + ":" + Locale.ENGLISH));
+
+        previewMode = true;
+
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+        provider.registerPreviewBundle(BUNDLE_ID, Locale.ENGLISH, previewBundle);
+        messageFormat = provider.getMessageFormat(previewBundle, "greeting.hello.name", Locale.ENGLISH);
+        assertEquals("[Preview] Hello, John!", messageFormat.format(new Object [] { "John" }));
+
+        assertEquals(2, provider.getLiveEntryCount());
+        assertEquals(1, provider.getPreviewEntryCount());
+        assertEquals(1, provider.getHitCount());
+    }
+
+    @Test
+    public void testBundleReplaced() throws Exception {
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        provider.registerBundle(BUNDLE_ID, Locale.FRENCH, previewBundle);
+        provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH);
+
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, liveBundle);
+        assertEquals(1, provider.getSkippedBundleRegistrationCount());
+
+        ResourceBundle refreshedBundle = createBundle("Hello, {0}!!");
+        provider.registerBundle(BUNDLE_ID, Locale.ENGLISH, refreshedBundle);
+
+        assertEquals(1, provider.getBundleReplacementCount());
+        assertEquals(2, provider.getLiveBundleCount());
+        assertNull(provider.getMessageFormat(liveBundle, "greeting.hello.name", Locale.ENGLISH));
+        assertEquals("Hello, John!!",
+                provider.getMessageFormat(refreshedBundle, "greeting.hello.name", Locale.ENGLISH).format(new Object [] { "John" }));
+
+        provider.onResourceBundleChanged(BUNDLE_ID);
+        assertEquals(0, provider.getLiveBundleCount());
+        assertEquals(0, provider.getLiveEntryCount());
+        assertEquals(2, provider.getBundleInvalidationCount());
+        assertEquals(2, provider.getHotMessageCodes(10).get(0).getCount());
+    }
+
+    @Test
+    public void testConcurrentStress() throws Exception {
+        final int bundleCount = LOCALES.length * 2;
+        final AtomicReferenceArray<ResourceBundle> bundles = new AtomicReferenceArray<ResourceBundle>(bundleCount);
+
+        for (int i = 0; i < bundleCount; i++) {
+            bundles.set(i, createBundle("Hello, {0}! #" + i + " v0"));
+        }
+
+        final int threadCount = 8;
+        final int iterations = 5000;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                final int threadIndex = i;
+
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        startSignal.await();
+                        int formatted = 0;
+
+                        for (int j = 0; j < iterations; j++) {
+                            final int bundleIndex = (threadIndex + j) % bundleCount;
+                            final String basename = BUNDLE_ID + (bundleIndex / LOCALES.length);
+                            final Locale locale = LOCALES[bundleIndex % LOCALES.length];
+                            final ResourceBundle bundle = bundles.get(bundleIndex);
+
+                            provider.registerBundle(basename, locale, bundle);
+                            MessageFormat messageFormat = provider.getMessageFormat(bundle, "greeting.hello.name", locale);
+
+                            // Null if the bundle has been replaced in the meantime, by a newer or a stale version
+                            // registered by another thread, but never a message of another bundle.
+                            if (messageFormat != null) {
+                                synchronized (messageFormat) {
+                                    assertEquals(new MessageFormat(bundle.getString("greeting.hello.name"), locale)
+                                            .format(new Object [] { "John" }), messageFormat.format(new Object [] { "John" }));
+                                }
+
+                                ++formatted;
+                            }
+                        }
+
+                        return formatted;
+                    }
+                }));
+            }
+
+            // Publish new versions of the bundles meanwhile.
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    startSignal.await();
+
+                    for (int version = 1; version <= 50; version++) {
+                        for (int i = 0; i < bundleCount; i++) {
+                            bundles.set(i, createBundle("Hello, {0}! #" + i + " v" + version));
+                        }
+
+                        Thread.sleep(1);
+                    }
+
+                    return 0;
+                }
+            }));
+
+            startSignal.countDown();
+
+            int formatted = 0;
+
+            for (Future<Integer> future : futures) {
+                formatted += future.get();
+            }
+
+            assertTrue(formatted > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // No outdated bundle or message format is left behind.
+        assertTrue(provider.getLiveBundleCount() <= bundleCount);
+
+        for (Integer entryCount : provider.getLiveEntryCountsPerBundle().values()) {
+            assertTrue(entryCount <= 1);
+        }
+    }
+
+    private static ResourceBundle createBundle(String helloNameMessage) {
+        Map<String, String> bundleContent = new HashMap<String, String>();
+        bundleContent.put("greeting.hello.name", helloNameMessage);
+        return new SimpleListResourceBundle(bundleContent);
+    }
+}
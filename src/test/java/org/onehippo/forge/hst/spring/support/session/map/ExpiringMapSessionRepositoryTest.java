@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.session.MapSession;
+import org.springframework.session.MapSessionRepository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ExpiringMapSessionRepositoryTest
+ */
+public class ExpiringMapSessionRepositoryTest {
+
+    private ExpiringMapSessionRepository repository;
+
+    @Before
+    public void before() throws Exception {
+        repository = new ExpiringMapSessionRepository();
+        repository.setDefaultMaxInactiveInterval(1800);
+    }
+
+    @Test
+    public void testCleanUpExpiredSessions() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            repository.save(createSession(Instant.now().minusSeconds(3600)));
+        }
+
+        MapSession activeSession = createSession(Instant.now());
+        repository.save(activeSession);
+
+        MapSession eternalSession = createSession(Instant.now().minusSeconds(3600));
+        eternalSession.setMaxInactiveInterval(Duration.ofSeconds(-1));
+        repository.save(eternalSession);
+
+        assertEquals(7, repository.getSessionCount());
+
+        repository.setCleanUpBatchSize(3);
+        assertEquals(3, repository.cleanUpExpiredSessions());
+        assertEquals(2, repository.cleanUpExpiredSessions());
+        assertEquals(0, repository.cleanUpExpiredSessions());
+
+        assertEquals(2, repository.getSessionCount());
+        assertNotNull(repository.findById(activeSession.getId()));
+        assertNotNull(repository.findById(eternalSession.getId()));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyAccessedSessions() throws Exception {
+        repository.setMaxSessions(10);
+        List<MapSession> savedSessions = new ArrayList<MapSession>();
+        Instant start = Instant.now().minusSeconds(60);
+
+        for (int i = 0; i < 10; i++) {
+            MapSession session = createSession(start.plusSeconds(i));
+            repository.save(session);
+            savedSessions.add(session);
+        }
+
+        assertEquals(10, repository.getSessionCount());
+
+        // The least recently accessed sessions are evicted down to 90% of the limit.
+        repository.save(createSession(Instant.now()));
+        assertEquals(9, repository.getSessionCount());
+        assertNull(repository.findById(savedSessions.get(0).getId()));
+        assertNull(repository.findById(savedSessions.get(1).getId()));
+        assertNotNull(repository.findById(savedSessions.get(2).getId()));
+    }
+
+    @Test
+    public void testEvictSessionsEvenIfExpiredSessionsRemoved() throws Exception {
+        repository.setMaxSessions(10);
+        List<MapSession> savedSessions = new ArrayList<MapSession>();
+        Instant start = Instant.now().minusSeconds(60);
+
+        for (int i = 0; i < 10; i++) {
+            MapSession session = createSession(start.plusSeconds(i));
+            repository.save(session);
+            savedSessions.add(session);
+        }
+
+        // Removing the expired session alone would be enough, but the sessions are still evicted down to 90%
+        // so that the next saves do not scan all the sessions again.
+        MapSession expiredSession = savedSessions.get(5);
+        expiredSession.setLastAccessedTime(Instant.now().minusSeconds(3600));
+        repository.save(expiredSession);
+        repository.save(createSession(Instant.now()));
+        assertEquals(9, repository.getSessionCount());
+        assertNull(repository.findById(expiredSession.getId()));
+        assertNull(repository.findById(savedSessions.get(0).getId()));
+        assertNotNull(repository.findById(savedSessions.get(1).getId()));
+    }
+
+    @Test
+    public void testChangeSessionId() throws Exception {
+        MapSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+
+        MapSession found = repository.findById(session.getId());
+        String originalId = found.getId();
+        found.changeSessionId();
+        repository.save(found);
+
+        assertNull(repository.findById(originalId));
+        assertEquals("value", repository.findById(found.getId()).getAttribute("name"));
+        assertEquals(1, repository.getSessionCount());
+    }
+
+    @Test
+    public void testAsMapSessionRepository() throws Exception {
+        MapSessionRepository mapSessionRepository = repository;
+        MapSession session = mapSessionRepository.createSession();
+        assertEquals(Duration.ofSeconds(1800), session.getMaxInactiveInterval());
+        session.setAttribute("name", "value");
+        mapSessionRepository.save(session);
+
+        assertEquals(1, repository.getSessionCount());
+        assertEquals("value", mapSessionRepository.findById(session.getId()).getAttribute("name"));
+
+        mapSessionRepository.deleteById(session.getId());
+        assertNull(mapSessionRepository.findById(session.getId()));
+        assertEquals(0, repository.getSessionCount());
+    }
+
+    @Test
+    public void testConcurrentSaves() throws Exception {
+        repository.setMaxSessions(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        try {
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            MapSession session = repository.createSession();
+                            repository.save(session);
+                            repository.findById(session.getId());
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Saving another session after all evicts any sessions left over the limit while the others were evicting.
+        repository.save(repository.createSession());
+        assertTrue(repository.getSessionCount() <= 1000);
+    }
+
+    private MapSession createSession(final Instant lastAccessedTime) {
+        MapSession session = repository.createSession();
+        session.setLastAccessedTime(lastAccessedTime);
+        return session;
+    }
+}
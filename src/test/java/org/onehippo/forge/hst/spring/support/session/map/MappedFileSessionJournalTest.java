@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.session.MapSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MappedFileSessionJournalTest
+ */
+public class MappedFileSessionJournalTest {
+
+    private File file;
+
+    private MappedFileSessionJournal journal;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("sessions", ".journal");
+        file.delete();
+        journal = new MappedFileSessionJournal(file, 1024);
+    }
+
+    @After
+    public void after() throws Exception {
+        journal.close();
+        file.delete();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        MapSession session1 = createSession("value1");
+        MapSession session2 = createSession("value2");
+        MapSession session3 = createSession("value3");
+        journal.appendSaved(session1);
+        journal.appendSaved(session2);
+        journal.appendSaved(session3);
+        journal.appendDeleted(session2.getId());
+        session1.setAttribute("name", "modified");
+        journal.appendSaved(session1);
+
+        MapSession expiredSession = createSession("expired");
+        expiredSession.setLastAccessedTime(Instant.now().minusSeconds(3600));
+        journal.appendSaved(expiredSession);
+
+        journal.close();
+        journal = new MappedFileSessionJournal(file, 1024);
+        List<MapSession> sessions = journal.replay();
+
+        assertEquals(2, sessions.size());
+        // In the order of the last saves.
+        assertEquals(session3.getId(), sessions.get(0).getId());
+        assertEquals("value3", sessions.get(0).getAttribute("name"));
+        assertEquals(session1.getId(), sessions.get(1).getId());
+        assertEquals("modified", sessions.get(1).getAttribute("name"));
+        assertEquals(session1.getLastAccessedTime().toEpochMilli(), sessions.get(1).getLastAccessedTime().toEpochMilli());
+        assertEquals(session1.getMaxInactiveInterval(), sessions.get(1).getMaxInactiveInterval());
+
+        // Appending continues after the replayed records.
+        journal.appendDeleted(session3.getId());
+        journal.close();
+        journal = new MappedFileSessionJournal(file, 1024);
+        assertEquals(1, journal.replay().size());
+    }
+
+    @Test
+    public void testGrowWhenFull() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            journal.appendSaved(createSession("value" + i));
+        }
+
+        assertTrue(journal.getSize() > 1024);
+        assertEquals(100, journal.replay().size());
+    }
+
+    @Test
+    public void testStopReplayingAtCorruptedRecord() throws Exception {
+        journal.appendSaved(createSession("value1"));
+        int size = journal.getSize();
+        journal.appendSaved(createSession("value2"));
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.seek(size + 20);
+            raf.write(0xFF);
+        } finally {
+            raf.close();
+        }
+
+        journal = new MappedFileSessionJournal(file, 1024);
+        assertEquals(1, journal.replay().size());
+        assertEquals(size, journal.getSize());
+    }
+
+    @Test
+    public void testNotSerializableSessionNotRestored() throws Exception {
+        ExpiringMapSessionRepository repository = new ExpiringMapSessionRepository();
+        repository.setJournal(journal);
+
+        MapSession session = createSession("value1");
+        repository.save(session);
+        session.setAttribute("name", new Object());
+        repository.save(session);
+
+        // The session is still kept in memory.
+        assertNotNull(repository.findById(session.getId()));
+
+        journal.close();
+        journal = new MappedFileSessionJournal(file, 1024);
+        assertEquals(0, journal.replay().size());
+    }
+
+    @Test
+    public void testRestoreAndCompactRepository() throws Exception {
+        ExpiringMapSessionRepository repository = new ExpiringMapSessionRepository();
+        repository.setJournal(journal);
+
+        MapSession session1 = createSession("value1");
+        repository.save(session1);
+        MapSession session2 = createSession("value2");
+        repository.save(session2);
+        repository.deleteById(session2.getId());
+
+        MapSession found = repository.findById(session1.getId());
+        String originalId = found.getId();
+        found.changeSessionId();
+        repository.save(found);
+
+        for (int i = 0; i < 10; i++) {
+            found.setAttribute("name", "value" + i);
+            repository.save(found);
+        }
+
+        int size = journal.getSize();
+        repository.compactJournal();
+        assertTrue(journal.getSize() < size);
+
+        journal.close();
+        journal = new MappedFileSessionJournal(file, 1024);
+        OffHeapMapSessionRepository restoredRepository = new OffHeapMapSessionRepository(4096, 512);
+        restoredRepository.setJournal(journal);
+
+        assertEquals(1, restoredRepository.getSessionCount());
+        assertNull(restoredRepository.findById(originalId));
+        assertNull(restoredRepository.findById(session2.getId()));
+        assertNotNull(restoredRepository.findById(found.getId()));
+        assertEquals("value9", restoredRepository.findById(found.getId()).getAttribute("name"));
+    }
+
+    @Test
+    public void testConcurrentSavesAndDeletesReplayedInOrder() throws Exception {
+        journal.close();
+        journal = new MappedFileSessionJournal(file, 64 * 1024);
+        final ExpiringMapSessionRepository repository = new ExpiringMapSessionRepository();
+        repository.setJournal(journal);
+        final List<String> ids = new ArrayList<String>();
+
+        for (int i = 0; i < 10; i++) {
+            ids.add(createSession("value").getId());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        try {
+            for (int i = 0; i < 8; i++) {
+                final int thread = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            String id = ids.get(j % ids.size());
+
+                            if ((thread + j) % 3 == 0) {
+                                repository.deleteById(id);
+                            } else {
+                                MapSession session = new MapSession(id);
+                                session.setAttribute("name", "value" + thread + "-" + j);
+                                repository.save(session);
+                            }
+
+                            if (thread == 0 && j % 100 == 0) {
+                                repository.compactJournal();
+                            }
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The journal ends up with the same sessions as the repository, neither a deleted session restored
+        // nor an older copy of a session.
+        Map<String, Object> replayed = new HashMap<String, Object>();
+
+        for (MapSession session : journal.replay()) {
+            replayed.put(session.getId(), session.getAttribute("name"));
+        }
+
+        for (String id : ids) {
+            MapSession session = repository.findById(id);
+            assertEquals((session != null) ? session.getAttribute("name") : null, replayed.get(id));
+        }
+
+        assertEquals(repository.getSessionCount(), replayed.size());
+    }
+
+    private MapSession createSession(final String value) {
+        MapSession session = new MapSession();
+        session.setAttribute("name", value);
+        return session;
+    }
+}
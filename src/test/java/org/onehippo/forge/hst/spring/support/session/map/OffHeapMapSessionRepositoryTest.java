@@ -0,0 +1,217 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.map;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.session.MapSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OffHeapMapSessionRepositoryTest
+ */
+public class OffHeapMapSessionRepositoryTest {
+
+    private OffHeapMapSessionRepository repository;
+
+    @Before
+    public void before() throws Exception {
+        // 8 blocks of 512 bytes.
+        repository = new OffHeapMapSessionRepository(4096, 512);
+        repository.setDefaultMaxInactiveInterval(1800);
+    }
+
+    @Test
+    public void testSaveAndFind() throws Exception {
+        MapSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        session.setAttribute("list", new ArrayList<String>(Arrays.asList("a", "b")));
+        // Spanning multiple blocks.
+        session.setAttribute("large", new byte[1500]);
+        repository.save(session);
+
+        assertEquals(4096, repository.getAllocatedMemory());
+        assertEquals(2048, repository.getUsedMemory());
+
+        MapSession found = repository.findById(session.getId());
+        assertEquals(session.getId(), found.getId());
+        assertEquals(session.getCreationTime().toEpochMilli(), found.getCreationTime().toEpochMilli());
+        assertEquals(session.getLastAccessedTime().toEpochMilli(), found.getLastAccessedTime().toEpochMilli());
+        assertEquals(session.getMaxInactiveInterval(), found.getMaxInactiveInterval());
+        assertEquals("value", found.getAttribute("name"));
+        assertEquals(Arrays.asList("a", "b"), found.getAttribute("list"));
+        assertEquals(1500, ((byte []) found.getAttribute("large")).length);
+
+        // Modifying the found session doesn't affect the stored one until saved.
+        found.setAttribute("name", "modified");
+        assertEquals("value", repository.findById(session.getId()).getAttribute("name"));
+
+        found.removeAttribute("large");
+        repository.save(found);
+        assertEquals("modified", repository.findById(session.getId()).getAttribute("name"));
+        assertNull(repository.findById(session.getId()).getAttribute("large"));
+        assertEquals(512, repository.getUsedMemory());
+
+        repository.deleteById(session.getId());
+        assertNull(repository.findById(session.getId()));
+        assertEquals(0, repository.getUsedMemory());
+    }
+
+    @Test
+    public void testExpiredSession() throws Exception {
+        MapSession session = repository.createSession();
+        session.setLastAccessedTime(Instant.now().minusSeconds(3600));
+        repository.save(session);
+
+        MapSession eternalSession = repository.createSession();
+        eternalSession.setLastAccessedTime(Instant.now().minusSeconds(3600));
+        eternalSession.setMaxInactiveInterval(Duration.ofSeconds(-1));
+        repository.save(eternalSession);
+
+        assertNull(repository.findById(session.getId()));
+        assertNotNull(repository.findById(eternalSession.getId()));
+        assertEquals(1, repository.getSessionCount());
+        assertEquals(512, repository.getUsedMemory());
+    }
+
+    @Test
+    public void testChangeSessionId() throws Exception {
+        MapSession session = repository.createSession();
+        session.setAttribute("name", "value");
+        repository.save(session);
+
+        MapSession found = repository.findById(session.getId());
+        String originalId = found.getId();
+        found.changeSessionId();
+        repository.save(found);
+
+        assertNull(repository.findById(originalId));
+        assertEquals("value", repository.findById(found.getId()).getAttribute("name"));
+        assertEquals(1, repository.getSessionCount());
+        assertEquals(512, repository.getUsedMemory());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyAccessedSessionsWhenFull() throws Exception {
+        List<MapSession> savedSessions = new ArrayList<MapSession>();
+        Instant start = Instant.now().minusSeconds(60);
+
+        for (int i = 0; i < 8; i++) {
+            MapSession session = repository.createSession();
+            session.setLastAccessedTime(start.plusSeconds(i));
+            repository.save(session);
+            savedSessions.add(session);
+        }
+
+        assertEquals(4096, repository.getUsedMemory());
+
+        repository.save(repository.createSession());
+        assertEquals(8, repository.getSessionCount());
+        assertNull(repository.findById(savedSessions.get(0).getId()));
+        assertNotNull(repository.findById(savedSessions.get(1).getId()));
+
+        MapSession tooLargeSession = repository.createSession();
+        tooLargeSession.setAttribute("large", new byte[5000]);
+
+        try {
+            repository.save(tooLargeSession);
+            assertTrue("The session larger than the store must not be saved.", false);
+        } catch (IllegalStateException expected) {
+        }
+
+        assertNull(repository.findById(tooLargeSession.getId()));
+    }
+
+    @Test
+    public void testEvictByLastAccessedTimeOfSavedCopy() throws Exception {
+        List<MapSession> savedSessions = new ArrayList<MapSession>();
+        Instant start = Instant.now().minusSeconds(60);
+
+        for (int i = 0; i < 8; i++) {
+            MapSession session = repository.createSession();
+            session.setLastAccessedTime(start.plusSeconds(i));
+            repository.save(session);
+            savedSessions.add(session);
+        }
+
+        // Accessing the oldest session again keeps it, as the index entry is replaced by the saved copy.
+        MapSession found = repository.findById(savedSessions.get(0).getId());
+        found.setLastAccessedTime(Instant.now());
+        found.setAttribute("name", "value");
+        repository.save(found);
+
+        repository.save(repository.createSession());
+        assertEquals(8, repository.getSessionCount());
+        assertEquals("value", repository.findById(found.getId()).getAttribute("name"));
+        assertEquals(found.getLastAccessedTime().toEpochMilli(),
+                repository.findById(found.getId()).getLastAccessedTime().toEpochMilli());
+        assertNull(repository.findById(savedSessions.get(1).getId()));
+        assertNotNull(repository.findById(savedSessions.get(2).getId()));
+    }
+
+    @Test
+    public void testConcurrentSavesAndFinds() throws Exception {
+        repository = new OffHeapMapSessionRepository(64 * 1024, 512);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        try {
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            MapSession session = repository.createSession();
+                            session.setAttribute("id", session.getId());
+                            repository.save(session);
+                            MapSession found = repository.findById(session.getId());
+
+                            // Evicted by the others, or read intact.
+                            if (found != null) {
+                                assertEquals(session.getId(), found.getAttribute("id"));
+                            }
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(repository.getUsedMemory() <= 64 * 1024);
+        assertEquals(repository.getSessionCount() * 512, repository.getUsedMemory());
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 BloomReach, Inc. (https://www.bloomreach.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onehippo.forge.hst.spring.support.session.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HttpSessionDelegatingRepositoryTest
+ */
+public class HttpSessionDelegatingRepositoryTest {
+
+    private static final String PREFIX = HttpSessionDelegatingSession.ATTRIBUTE_NAME_PREFIX;
+
+    private HttpSessionDelegatingRepository repository;
+
+    private MockHttpServletRequest request;
+
+    private RecordingHttpSession httpSession;
+
+    @Before
+    public void before() throws Exception {
+        repository = new HttpSessionDelegatingRepository();
+        httpSession = new RecordingHttpSession();
+        request = new MockHttpServletRequest() {
+            @Override
+            public HttpSession getSession(boolean create) {
+                // Replace an invalidated session by a new recording session.
+                if (create && httpSession.isInvalid()) {
+                    httpSession = new RecordingHttpSession();
+                    setSession(httpSession);
+                }
+
+                return super.getSession(create);
+            }
+        };
+        request.setSession(httpSession);
+        HttpSessionDelegatingContext.setCurrentServletRequest(request);
+    }
+
+    @After
+    public void after() throws Exception {
+        HttpSessionDelegatingContext.clearCurrentServletRequest();
+    }
+
+    @Test
+    public void testSaveOnlyChangedAttributes() throws Exception {
+        HttpSessionDelegatingSession session = repository.createSession();
+        session.setAttribute("name1", "value1");
+        session.setAttribute("name2", "value2");
+
+        // Not pushed to the container's session until saved.
+        assertNull(httpSession.getAttribute(PREFIX + "name1"));
+        assertEquals("value1", session.getAttribute("name1"));
+
+        httpSession.updatedNames.clear();
+        repository.save(session);
+        assertEquals(new HashSet<String>(Arrays.asList(PREFIX + "name1", PREFIX + "name2")),
+                new HashSet<String>(httpSession.updatedNames));
+        assertEquals("value1", httpSession.getAttribute(PREFIX + "name1"));
+
+        // Nothing pushed if nothing changed.
+        httpSession.updatedNames.clear();
+        session = repository.findById(httpSession.getId());
+        assertEquals("value2", session.getAttribute("name2"));
+        repository.save(session);
+        assertTrue(httpSession.updatedNames.isEmpty());
+
+        session.setAttribute("name2", "modified");
+        session.removeAttribute("name1");
+        session.setAttribute("name3", "value3");
+        assertNull(session.getAttribute("name1"));
+        assertEquals(new HashSet<String>(Arrays.asList("name2", "name3")), session.getAttributeNames());
+
+        repository.save(session);
+        assertEquals(new HashSet<String>(Arrays.asList(PREFIX + "name1", PREFIX + "name2", PREFIX + "name3")),
+                new HashSet<String>(httpSession.updatedNames));
+        assertNull(httpSession.getAttribute(PREFIX + "name1"));
+
+        session = repository.findById(httpSession.getId());
+        assertEquals("modified", session.getAttribute("name2"));
+        assertEquals(new HashSet<String>(Arrays.asList("name2", "name3")), session.getAttributeNames());
+    }
+
+    @Test
+    public void testCacheAttributesPerRequest() throws Exception {
+        HttpSessionDelegatingSession session = repository.createSession();
+        session.setAttribute("name1", "value1");
+        repository.save(session);
+
+        session = repository.findById(httpSession.getId());
+        httpSession.readCount = 0;
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value1", session.getAttribute("name1"));
+            assertNull(session.getAttribute("nonexisting"));
+            assertEquals(new HashSet<String>(Arrays.asList("name1")), session.getAttributeNames());
+        }
+
+        assertEquals(3, httpSession.readCount);
+
+        // Saved changes are seen without reading again.
+        session.setAttribute("name2", "value2");
+        session.removeAttribute("name1");
+        repository.save(session);
+        assertNull(session.getAttribute("name1"));
+        assertEquals("value2", session.getAttribute("name2"));
+        assertEquals(3, httpSession.readCount);
+        assertEquals(new HashSet<String>(Arrays.asList("name2")), session.getAttributeNames());
+        assertEquals(4, httpSession.readCount);
+
+        // Read again from the new container's session after changing the ID.
+        session.changeSessionId();
+        RecordingHttpSession newHttpSession = (RecordingHttpSession) request.getSession(false);
+        assertEquals("value2", session.getAttribute("name2"));
+        assertEquals(1, newHttpSession.readCount);
+    }
+
+    @Test
+    public void testInvalidatedInTheMiddleOfRequest() throws Exception {
+        HttpSessionDelegatingSession session = repository.createSession();
+        session.setAttribute("name1", "value1");
+        repository.save(session);
+
+        httpSession.updatedNames.clear();
+        session = repository.findById(httpSession.getId());
+        assertEquals("value1", session.getAttribute("name1"));
+        assertEquals(new HashSet<String>(Arrays.asList("name1")), session.getAttributeNames());
+
+        // Neither the marker is bound again per request nor the container's session is probed on reads.
+        assertTrue(httpSession.updatedNames.isEmpty());
+        assertEquals(0, httpSession.lastAccessedTimeReadCount);
+
+        // Invalidated directly by other code, not through the repository.
+        httpSession.invalidate();
+
+        try {
+            session.getAttribute("name1");
+            assertTrue("The attributes of an invalidated session must not be served from the cache.", false);
+        } catch (IllegalStateException expected) {
+        }
+
+        try {
+            session.getAttributeNames();
+            assertTrue("The attribute names of an invalidated session must not be served from the cache.", false);
+        } catch (IllegalStateException expected) {
+        }
+
+        HttpSessionDelegatingSession newSession = repository.createSession();
+        assertNull(newSession.getAttribute("name1"));
+        assertTrue(newSession.getAttributeNames().isEmpty());
+    }
+
+    @Test
+    public void testDeserializedSession() throws Exception {
+        HttpSessionDelegatingSession session = repository.createSession();
+        session.setAttribute("name1", "value1");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(session);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        HttpSessionDelegatingSession deserialized = (HttpSessionDelegatingSession) in.readObject();
+        in.close();
+
+        // The unsaved changes are not serialized.
+        assertFalse(deserialized.hasChanges());
+        deserialized.setAttribute("name2", "value2");
+        assertTrue(deserialized.hasChanges());
+        assertEquals("value2", deserialized.getAttribute("name2"));
+    }
+
+    @Test
+    public void testFindByIdWithoutSession() throws Exception {
+        assertNull(repository.findById("nonexisting"));
+
+        // A container's session not created through the repository.
+        request.getSession(true);
+        assertNull(repository.findById(httpSession.getId()));
+    }
+
+    @Test
+    public void testMigrateAttributesMap() throws Exception {
+        Map<String, Object> sessionAttrs = new HashMap<String, Object>();
+        sessionAttrs.put("name", "value");
+        httpSession.setAttribute(HttpSessionDelegatingSession.NAME, Boolean.TRUE);
+        httpSession.setAttribute(HttpSessionDelegatingSession.class.getName() + ".sessionAttrsMap", sessionAttrs);
+
+        HttpSessionDelegatingSession session = repository.findById(httpSession.getId());
+        assertEquals("value", session.getAttribute("name"));
+        assertNull(httpSession.getAttribute(HttpSessionDelegatingSession.class.getName() + ".sessionAttrsMap"));
+
+        // The marker stored by an older version is replaced by the invalidation listener.
+        assertTrue(httpSession.getAttribute(HttpSessionDelegatingSession.NAME)
+                instanceof HttpSessionDelegatingSession.InvalidationListener);
+    }
+
+    @Test
+    public void testChangeSessionId() throws Exception {
+        HttpSessionDelegatingSession session = repository.createSession();
+        session.setAttribute("name1", "value1");
+        repository.save(session);
+        session.setAttribute("name2", "value2");
+
+        RecordingHttpSession originalHttpSession = httpSession;
+        String originalId = session.getId();
+        String newId = session.changeSessionId();
+        assertFalse(originalId.equals(newId));
+        assertTrue(originalHttpSession.isInvalid());
+
+        repository.save(session);
+        session = repository.findById(newId);
+        assertNotNull(session);
+        assertEquals(newId, session.getId());
+        assertEquals("value1", session.getAttribute("name1"));
+        assertEquals("value2", session.getAttribute("name2"));
+    }
+
+    private static class RecordingHttpSession extends MockHttpSession {
+
+        private final List<String> updatedNames = new ArrayList<String>();
+
+        private int readCount;
+
+        private int lastAccessedTimeReadCount;
+
+        @Override
+        public long getLastAccessedTime() {
+            ++lastAccessedTimeReadCount;
+            return super.getLastAccessedTime();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            if (name.startsWith(PREFIX)) {
+                ++readCount;
+            }
+
+            return super.getAttribute(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            ++readCount;
+            return super.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            updatedNames.add(name);
+            super.setAttribute(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            updatedNames.add(name);
+            super.removeAttribute(name);
+        }
+    }
+}
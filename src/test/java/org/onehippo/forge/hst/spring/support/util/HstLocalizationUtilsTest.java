@@ -15,17 +15,34 @@
  */
 package org.onehippo.forge.hst.spring.support.util;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 
 import org.apache.commons.collections.iterators.IteratorEnumeration;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.hippoecm.hst.configuration.hosting.Mount;
+import org.hippoecm.hst.configuration.sitemap.HstSiteMapItem;
 import org.hippoecm.hst.container.ModifiableRequestContextProvider;
+import org.hippoecm.hst.core.container.ComponentManager;
+import org.hippoecm.hst.core.request.ResolvedMount;
+import org.hippoecm.hst.core.request.ResolvedSiteMapItem;
 import org.hippoecm.hst.mock.core.request.MockHstRequestContext;
+import org.hippoecm.hst.resourcebundle.ResourceBundleRegistry;
+import org.hippoecm.hst.site.HstServices;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -52,6 +69,12 @@ public class HstLocalizationUtilsTest {
         frenchBundle2 = new MapResourceBundle();
     }
 
+    @After
+    public void tearDown() throws Exception {
+        HstServices.setComponentManager(null);
+        HstLocalizationUtils.clearCaches();
+    }
+
     @Test
     public void testGetCurrentDefaultResourceBundle_withNullOrDefaultLocale() throws Exception {
         requestContext.setPreferredLocale(null);
@@ -102,6 +125,238 @@ public class HstLocalizationUtilsTest {
         assertSame(frenchBundle1, bundleByFrench2);
     }
 
+    @Test
+    public void testGetCurrentDefaultResourceBundle_withMultipleBundles() throws Exception {
+        final String [] bundleIds = { "test.merged.site", "test.merged.channel", "test.merged.common" };
+
+        englishBundle1.put("greeting.hello", "Hello from site");
+        englishBundle2.put("greeting.hello", "Hello from channel");
+        englishBundle2.put("greeting.bye", "Bye from channel");
+        MapResourceBundle commonBundle = new MapResourceBundle();
+        commonBundle.put("footer.copyright", "Copyright");
+        MapResourceBundle refreshedCommonBundle = new MapResourceBundle();
+        refreshedCommonBundle.put("footer.copyright", "Copyright (refreshed)");
+
+        Mount mount = EasyMock.createNiceMock(Mount.class);
+        EasyMock.expect(mount.getDefaultResourceBundleIds()).andReturn(bundleIds).anyTimes();
+        ResolvedMount resolvedMount = EasyMock.createNiceMock(ResolvedMount.class);
+        EasyMock.expect(resolvedMount.getMount()).andReturn(mount).anyTimes();
+        EasyMock.replay(mount, resolvedMount);
+
+        final ResourceBundle [] commonBundles = { commonBundle };
+        ResourceBundleRegistry registry = EasyMock.createNiceMock(ResourceBundleRegistry.class);
+        EasyMock.expect(registry.getBundle(bundleIds[0], Locale.ENGLISH)).andReturn(englishBundle1).anyTimes();
+        EasyMock.expect(registry.getBundle(bundleIds[1], Locale.ENGLISH)).andReturn(englishBundle2).anyTimes();
+        EasyMock.expect(registry.getBundle(bundleIds[2], Locale.ENGLISH)).andAnswer(new IAnswer<ResourceBundle>() {
+            @Override
+            public ResourceBundle answer() throws Throwable {
+                return commonBundles[0];
+            }
+        }).anyTimes();
+        EasyMock.replay(registry);
+
+        ComponentManager componentManager = EasyMock.createNiceMock(ComponentManager.class);
+        EasyMock.expect(componentManager.getComponent(ResourceBundleRegistry.class.getName())).andReturn(registry).anyTimes();
+        EasyMock.replay(componentManager);
+        HstServices.setComponentManager(componentManager);
+
+        requestContext.setResolvedMount(resolvedMount);
+        requestContext.setPreferredLocale(Locale.ENGLISH);
+
+        ResourceBundle mergedBundle = HstLocalizationUtils.getCurrentDefaultResourceBundle();
+        assertEquals("Hello from site", mergedBundle.getString("greeting.hello"));
+        assertEquals("Bye from channel", mergedBundle.getString("greeting.bye"));
+        assertEquals("Copyright", mergedBundle.getString("footer.copyright"));
+        assertFalse(mergedBundle.containsKey("greeting.nonexisting"));
+        assertEquals(3, mergedBundle.keySet().size());
+
+        // The merged bundle is reused in the next request.
+        requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+        assertSame(mergedBundle, HstLocalizationUtils.getCurrentDefaultResourceBundle());
+
+        // A refreshed bundle invalidates the merged bundle.
+        commonBundles[0] = refreshedCommonBundle;
+        requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+        ResourceBundle refreshedMergedBundle = HstLocalizationUtils.getCurrentDefaultResourceBundle();
+        assertNotSame(mergedBundle, refreshedMergedBundle);
+        assertEquals("Copyright (refreshed)", refreshedMergedBundle.getString("footer.copyright"));
+        assertTrue(refreshedMergedBundle.containsKey("greeting.bye"));
+    }
+
+    @Test
+    public void testGetCurrentDefaultResourceBundle_cachedPerSiteMapItem() throws Exception {
+        englishBundle1.put("greeting.hello", "Hello from news");
+        englishBundle2.put("greeting.hello", "Hello from events");
+        MapResourceBundle refreshedBundle = new MapResourceBundle();
+        refreshedBundle.put("greeting.hello", "Hello from refreshed news");
+
+        Mount mount = EasyMock.createNiceMock(Mount.class);
+        EasyMock.expect(mount.getIdentifier()).andReturn("test-mount-id").anyTimes();
+        ResolvedMount resolvedMount = EasyMock.createNiceMock(ResolvedMount.class);
+        EasyMock.expect(resolvedMount.getMount()).andReturn(mount).anyTimes();
+        ResolvedSiteMapItem newsItem = createResolvedSiteMapItem("news", "test.cached.news");
+        ResolvedSiteMapItem eventsItem = createResolvedSiteMapItem("events", "test.cached.events");
+        EasyMock.replay(mount, resolvedMount);
+
+        final ResourceBundle [] newsBundles = { englishBundle1 };
+        ResourceBundleRegistry registry = EasyMock.createNiceMock(ResourceBundleRegistry.class);
+        EasyMock.expect(registry.getBundle("test.cached.news", Locale.ENGLISH)).andAnswer(new IAnswer<ResourceBundle>() {
+            @Override
+            public ResourceBundle answer() throws Throwable {
+                return newsBundles[0];
+            }
+        }).anyTimes();
+        EasyMock.expect(registry.getBundle("test.cached.events", Locale.ENGLISH)).andReturn(englishBundle2).anyTimes();
+        EasyMock.replay(registry);
+
+        ComponentManager componentManager = EasyMock.createNiceMock(ComponentManager.class);
+        EasyMock.expect(componentManager.getComponent(ResourceBundleRegistry.class.getName())).andReturn(registry).anyTimes();
+        EasyMock.replay(componentManager);
+        HstServices.setComponentManager(componentManager);
+
+        requestContext.setResolvedMount(resolvedMount);
+        requestContext.setPreferredLocale(Locale.ENGLISH);
+
+        requestContext.setResolvedSiteMapItem(newsItem);
+        assertSame(englishBundle1, HstLocalizationUtils.getCurrentDefaultResourceBundle());
+
+        requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+        requestContext.setResolvedSiteMapItem(eventsItem);
+        assertSame(englishBundle2, HstLocalizationUtils.getCurrentDefaultResourceBundle());
+
+        requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+        requestContext.setResolvedSiteMapItem(newsItem);
+        assertSame(englishBundle1, HstLocalizationUtils.getCurrentDefaultResourceBundle());
+
+        // The cached bundle is validated against the bundle currently in the registry.
+        newsBundles[0] = refreshedBundle;
+        requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+        assertSame(refreshedBundle, HstLocalizationUtils.getCurrentDefaultResourceBundle());
+    }
+
+    @Test
+    public void testGetCurrentDefaultResourceBundle_withMissingBundle() throws Exception {
+        englishBundle1.put("greeting.hello", "Hello");
+        final MapResourceBundle germanBundle = new MapResourceBundle();
+
+        Mount mount = EasyMock.createNiceMock(Mount.class);
+        EasyMock.expect(mount.getIdentifier()).andReturn("test-missing-mount-id").anyTimes();
+        EasyMock.expect(mount.getDefaultResourceBundleIds())
+                .andReturn(new String [] { "test.missing.nonexisting", "test.missing.existing" }).anyTimes();
+        ResolvedMount resolvedMount = EasyMock.createNiceMock(ResolvedMount.class);
+        EasyMock.expect(resolvedMount.getMount()).andReturn(mount).anyTimes();
+        EasyMock.replay(mount, resolvedMount);
+
+        final int [] missingLookups = { 0 };
+        IAnswer<ResourceBundle> missingBundleAnswer = new IAnswer<ResourceBundle>() {
+            @Override
+            public ResourceBundle answer() throws Throwable {
+                ++missingLookups[0];
+                throw new MissingResourceException("Not found", "test.missing.nonexisting", "");
+            }
+        };
+        ResourceBundleRegistry registry = EasyMock.createNiceMock(ResourceBundleRegistry.class);
+        EasyMock.expect(registry.getBundle("test.missing.nonexisting", Locale.ENGLISH)).andAnswer(missingBundleAnswer).anyTimes();
+        EasyMock.expect(registry.getBundle("test.missing.nonexisting", Locale.FRENCH)).andAnswer(missingBundleAnswer).anyTimes();
+        EasyMock.expect(registry.getBundle("test.missing.existing", Locale.ENGLISH)).andReturn(englishBundle1).anyTimes();
+        EasyMock.expect(registry.getBundle("test.missing.existing", Locale.FRENCH)).andReturn(frenchBundle1).anyTimes();
+        EasyMock.expect(registry.getBundle("test.missing.nonexisting", Locale.GERMAN)).andAnswer(missingBundleAnswer).anyTimes();
+        EasyMock.expect(registry.getBundle("test.missing.existing", Locale.GERMAN)).andReturn(germanBundle).anyTimes();
+        EasyMock.replay(registry);
+
+        ComponentManager componentManager = EasyMock.createNiceMock(ComponentManager.class);
+        EasyMock.expect(componentManager.getComponent(ResourceBundleRegistry.class.getName())).andReturn(registry).anyTimes();
+        EasyMock.replay(componentManager);
+        HstServices.setComponentManager(componentManager);
+
+        requestContext.setResolvedMount(resolvedMount);
+        requestContext.setPreferredLocale(Locale.ENGLISH);
+
+        DefaultResourceBundleCacheSettings cacheSettings = new DefaultResourceBundleCacheSettings();
+        assertEquals(HstLocalizationUtils.DEFAULT_MISSING_RESOURCE_BUNDLE_TTL_MILLIS,
+                cacheSettings.getMissingResourceBundleTtlMillis());
+
+        for (int i = 0; i < 3; i++) {
+            requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+            assertSame(englishBundle1, HstLocalizationUtils.getCurrentDefaultResourceBundle(null, cacheSettings));
+        }
+
+        // The missing bundle ID is looked up only once while remembered as missing.
+        assertEquals(1, missingLookups[0]);
+
+        // And looked up again once expired.
+        cacheSettings.setMissingResourceBundleTtlMillis(1L);
+        requestContext.setPreferredLocale(Locale.FRENCH);
+
+        for (int i = 0; i < 2; i++) {
+            requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+            assertSame(frenchBundle1, HstLocalizationUtils.getCurrentDefaultResourceBundle(null, cacheSettings));
+            Thread.sleep(10L);
+        }
+
+        assertEquals(3, missingLookups[0]);
+
+        // The expired entry of the locale not requested any more is purged when another missing bundle is put.
+        assertEquals(2, HstLocalizationUtils.getMissingResourceBundleCount(false));
+        requestContext.setPreferredLocale(Locale.GERMAN);
+        requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+        assertSame(germanBundle, HstLocalizationUtils.getCurrentDefaultResourceBundle(null, cacheSettings));
+        assertEquals(4, missingLookups[0]);
+        assertEquals(2, HstLocalizationUtils.getMissingResourceBundleCount(false));
+        assertEquals(0, HstLocalizationUtils.getMissingResourceBundleCount(true));
+    }
+
+    @Test
+    public void testGetCurrentDefaultResourceBundle_cachesBounded() throws Exception {
+        DefaultResourceBundleCacheSettings cacheSettings = new DefaultResourceBundleCacheSettings();
+        assertEquals(HstLocalizationUtils.DEFAULT_MAX_CACHED_RESOURCE_BUNDLES, cacheSettings.getMaxCachedResourceBundles());
+        cacheSettings.setMaxCachedResourceBundles(10);
+
+        Mount mount = EasyMock.createNiceMock(Mount.class);
+        EasyMock.expect(mount.getIdentifier()).andReturn("test-mount-id").anyTimes();
+        ResolvedMount resolvedMount = EasyMock.createNiceMock(ResolvedMount.class);
+        EasyMock.expect(resolvedMount.getMount()).andReturn(mount).anyTimes();
+        EasyMock.replay(mount, resolvedMount);
+        requestContext.setResolvedMount(resolvedMount);
+
+        final String [] bundleIds = { "test.bounded.site", "test.bounded.common" };
+        final List<ResourceBundle> bundles = Arrays.<ResourceBundle>asList(englishBundle1, englishBundle2);
+
+        // Any number of preferred locales requested doesn't grow the caches over the limit.
+        for (int i = 0; i < 30; i++) {
+            final Locale locale = new Locale("x" + i);
+            requestContext.removeAttribute(HstLocalizationUtils.DEFAULT_RESOURCE_BUNDLE_ATTR);
+            requestContext.setPreferredLocale(locale);
+            HstLocalizationUtils.getCurrentDefaultResourceBundle(null, cacheSettings);
+            HstLocalizationUtils.getMergedResourceBundle(bundleIds, locale, false, bundles, cacheSettings);
+
+            assertTrue(HstLocalizationUtils.getDefaultResourceBundleCacheSize() <= 10);
+            assertTrue(HstLocalizationUtils.getMergedResourceBundleCacheSize() <= 10);
+        }
+
+        assertTrue(HstLocalizationUtils.getDefaultResourceBundleCacheSize() > 0);
+
+        // The entry just cached is never evicted.
+        ResourceBundle mergedBundle =
+                HstLocalizationUtils.getMergedResourceBundle(bundleIds, Locale.ENGLISH, false, bundles, cacheSettings);
+        assertSame(mergedBundle,
+                HstLocalizationUtils.getMergedResourceBundle(bundleIds, Locale.ENGLISH, false, bundles, cacheSettings));
+
+        HstLocalizationUtils.clearCaches();
+        assertEquals(0, HstLocalizationUtils.getDefaultResourceBundleCacheSize());
+        assertEquals(0, HstLocalizationUtils.getMergedResourceBundleCacheSize());
+    }
+
+    private static ResolvedSiteMapItem createResolvedSiteMapItem(final String id, final String bundleId) {
+        HstSiteMapItem siteMapItem = EasyMock.createNiceMock(HstSiteMapItem.class);
+        EasyMock.expect(siteMapItem.getId()).andReturn(id).anyTimes();
+        EasyMock.expect(siteMapItem.getResourceBundleIds()).andReturn(new String [] { bundleId }).anyTimes();
+        ResolvedSiteMapItem resolvedSiteMapItem = EasyMock.createNiceMock(ResolvedSiteMapItem.class);
+        EasyMock.expect(resolvedSiteMapItem.getHstSiteMapItem()).andReturn(siteMapItem).anyTimes();
+        EasyMock.replay(siteMapItem, resolvedSiteMapItem);
+        return resolvedSiteMapItem;
+    }
+
     private static class MapResourceBundle extends ResourceBundle {
 
         private Map<String, Object> map;